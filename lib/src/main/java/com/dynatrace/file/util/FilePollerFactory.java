@@ -21,11 +21,15 @@ import java.util.logging.Logger;
 
 class FilePollerFactory {
   private static final Logger logger = Logger.getLogger(FilePollerFactory.class.getName());
-  private static final boolean IS_MAC_OS =
-      System.getProperty("os.name", "").toLowerCase().contains("mac");
 
   private FilePollerFactory() {}
 
+  // read on every call rather than in a static initializer, so that a native image does not keep
+  // the OS of the machine it was built on.
+  private static boolean isMacOs() {
+    return System.getProperty("os.name", "").toLowerCase().contains("mac");
+  }
+
   /**
    * Creates the default {@link FilePoller} based on the current OS.
    *
@@ -42,7 +46,7 @@ class FilePollerFactory {
    *     successful.
    */
   static FilePoller getDefault(String fileName, Duration pollInterval) throws IOException {
-    if (IS_MAC_OS) {
+    if (isMacOs()) {
       logger.fine("Running on macOS");
       if (pollInterval == null) {
         pollInterval = Duration.ofSeconds(60);
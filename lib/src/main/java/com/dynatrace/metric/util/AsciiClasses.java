@@ -0,0 +1,93 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * A precomputed classification of the 128 ASCII characters, shared by the normalizers and
+ * validators. Each entry holds a set of flags, so classifying an ASCII character is a single array
+ * load. Non-ASCII characters are never part of any class and have to be handled by the caller.
+ */
+final class AsciiClasses {
+  static final int ASCII_LIMIT = 0x80;
+
+  /** Control characters, invalid in string values (see {@link StringValueValidator}). */
+  static final int INVALID = 1;
+  /** Characters that are escaped in unquoted string values and dimension values. */
+  static final int ESCAPE = 1 << 1;
+  /** Characters that are escaped in quoted string values. */
+  static final int ESCAPE_QUOTED = 1 << 2;
+  /** Characters allowed in units. */
+  static final int UNIT = 1 << 3;
+  /** Characters allowed at the start of the first metric key section. */
+  static final int METRIC_KEY_FIRST_SECTION_START = 1 << 4;
+  /** Characters allowed at the start of subsequent metric key sections. */
+  static final int METRIC_KEY_SECTION_START = 1 << 5;
+  /** Characters allowed in metric keys, except for the section separator. */
+  static final int METRIC_KEY = 1 << 6;
+  /** Characters allowed at the start of a dimension key section. */
+  static final int DIMENSION_KEY_SECTION_START = 1 << 7;
+  /** Characters allowed in dimension keys, except for the section separator. */
+  static final int DIMENSION_KEY = 1 << 8;
+
+  private static final short[] TABLE = new short[ASCII_LIMIT];
+
+  static {
+    for (int c = 0; c < ASCII_LIMIT; c++) {
+      boolean lower = c >= 'a' && c <= 'z';
+      boolean upper = c >= 'A' && c <= 'Z';
+      boolean digit = c >= '0' && c <= '9';
+      int flags = 0;
+
+      if (c < 0x20 || c == 0x7F) {
+        flags |= INVALID;
+      }
+      if (c == ',' || c == '=' || c == ' ' || c == '\\' || c == '"') {
+        flags |= ESCAPE;
+      }
+      if (c == '\\' || c == '"') {
+        flags |= ESCAPE_QUOTED;
+      }
+      if (lower || upper || digit || c == '%' || c == '[' || c == ']' || c == '/' || c == '_') {
+        flags |= UNIT;
+      }
+      if (lower || upper || c == '_') {
+        flags |= METRIC_KEY_FIRST_SECTION_START;
+      }
+      if (lower || upper || digit || c == '_') {
+        flags |= METRIC_KEY_SECTION_START;
+      }
+      if (lower || upper || digit || c == '_' || c == '-') {
+        flags |= METRIC_KEY;
+      }
+      if (lower || c == '_') {
+        flags |= DIMENSION_KEY_SECTION_START;
+      }
+      if (lower || digit || c == '_' || c == '-' || c == ':') {
+        flags |= DIMENSION_KEY;
+      }
+      TABLE[c] = (short) flags;
+    }
+  }
+
+  private AsciiClasses() {}
+
+  /**
+   * @param codePoint The character or code point to classify.
+   * @param classes One or more of the class flags, combined with '|'.
+   * @return True if the code point is an ASCII character in any of the classes.
+   */
+  static boolean is(int codePoint, int classes) {
+    return codePoint >= 0 && codePoint < ASCII_LIMIT && (TABLE[codePoint] & classes) != 0;
+  }
+}
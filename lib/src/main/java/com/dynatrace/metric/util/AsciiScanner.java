@@ -0,0 +1,160 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * Word-at-a-time (SWAR) helpers for scanning strings. Four UTF-16 code units (or eight Latin-1
+ * bytes) are packed into one {@code long} and checked with a handful of arithmetic operations
+ * instead of one comparison per character. All checks only answer whether <em>any</em> lane
+ * matches; callers fall back to a per-character scan to find out which one.
+ */
+final class AsciiScanner {
+  // number of UTF-16 code units packed into one 64-bit word.
+  static final int LANES = 4;
+
+  // the lowest and the highest bit of every 16-bit lane.
+  private static final long LOW_BITS = 0x0001_0001_0001_0001L;
+  private static final long HIGH_BITS = 0x8000_8000_8000_8000L;
+
+  // number of bytes packed into one 64-bit word.
+  static final int BYTE_LANES = 8;
+
+  // the lowest and the highest bit of every 8-bit lane.
+  private static final long LOW_BYTES = 0x0101_0101_0101_0101L;
+  private static final long HIGH_BYTES = 0x8080_8080_8080_8080L;
+
+  private static final long QUOTE_BYTES = LOW_BYTES * '"';
+  private static final long EQUALS_BYTES = LOW_BYTES * '=';
+  private static final long BLANK_BYTES = LOW_BYTES * ' ';
+  private static final long COMMA_BYTES = LOW_BYTES * ',';
+  private static final long BACKSLASH_BYTES = LOW_BYTES * '\\';
+
+  private static final long QUOTE = LOW_BITS * '"';
+  private static final long EQUALS = LOW_BITS * '=';
+  private static final long BLANK = LOW_BITS * ' ';
+  private static final long COMMA = LOW_BITS * ',';
+  private static final long BACKSLASH = LOW_BITS * '\\';
+
+  // code units below this value are ASCII control characters.
+  private static final int FIRST_PRINTABLE = 0x20;
+  // code units above this value are either DEL or outside of the ASCII range.
+  private static final int LAST_PRINTABLE = 0x7E;
+
+  private AsciiScanner() {}
+
+  /** Packs the four code units starting at {@code offset} into one word, lowest lane first. */
+  static long word(String s, int offset) {
+    return s.charAt(offset)
+        | (long) s.charAt(offset + 1) << 16
+        | (long) s.charAt(offset + 2) << 32
+        | (long) s.charAt(offset + 3) << 48;
+  }
+
+  /** Sets the high bit of the result if any of the lanes in the word is zero. */
+  private static long zeroLanes(long word) {
+    return (word - LOW_BITS) & ~word & HIGH_BITS;
+  }
+
+  /**
+   * Checks if any lane holds one of the characters that need to be escaped in dimension values
+   * (quote, equals, blank, comma, backslash).
+   */
+  static boolean hasCharacterToEscape(long word) {
+    return (zeroLanes(word ^ QUOTE)
+            | zeroLanes(word ^ EQUALS)
+            | zeroLanes(word ^ BLANK)
+            | zeroLanes(word ^ COMMA)
+            | zeroLanes(word ^ BACKSLASH))
+        != 0;
+  }
+
+  /**
+   * Checks if any lane holds a character that is not printable ASCII, i.e. a control character, DEL
+   * or anything outside of the ASCII range.
+   */
+  static boolean hasNonPrintableAscii(long word) {
+    long below = (word - LOW_BITS * FIRST_PRINTABLE) & ~word;
+    long above = (word + LOW_BITS * (0x7FFF - LAST_PRINTABLE)) | word;
+    return ((below | above) & HIGH_BITS) != 0;
+  }
+
+  /** Sets the high bit of the result if any of the byte lanes in the word is zero. */
+  private static long zeroByteLanes(long word) {
+    return (word - LOW_BYTES) & ~word & HIGH_BYTES;
+  }
+
+  /** Packs the eight bytes starting at {@code offset} into one word, lowest lane first. */
+  static long word(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFFL)
+        | (bytes[offset + 1] & 0xFFL) << 8
+        | (bytes[offset + 2] & 0xFFL) << 16
+        | (bytes[offset + 3] & 0xFFL) << 24
+        | (bytes[offset + 4] & 0xFFL) << 32
+        | (bytes[offset + 5] & 0xFFL) << 40
+        | (bytes[offset + 6] & 0xFFL) << 48
+        | (bytes[offset + 7] & 0xFFL) << 56;
+  }
+
+  /**
+   * Checks if the Latin-1 encoded bytes contain any of the characters that need to be escaped in
+   * dimension values, eight bytes at a time.
+   *
+   * @param bytes The Latin-1 encoded string to scan.
+   * @return True if at least one character needs to be escaped.
+   */
+  static boolean containsCharacterToEscape(byte[] bytes) {
+    final int length = bytes.length;
+    int offset = 0;
+    for (; offset + BYTE_LANES <= length; offset += BYTE_LANES) {
+      long word = word(bytes, offset);
+      if ((zeroByteLanes(word ^ QUOTE_BYTES)
+              | zeroByteLanes(word ^ EQUALS_BYTES)
+              | zeroByteLanes(word ^ BLANK_BYTES)
+              | zeroByteLanes(word ^ COMMA_BYTES)
+              | zeroByteLanes(word ^ BACKSLASH_BYTES))
+          != 0) {
+        return true;
+      }
+    }
+    for (; offset < length; offset++) {
+      if (StringValueValidator.shouldEscapeString(Latin1.charAt(bytes, offset))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if the string contains any of the characters that need to be escaped in dimension
+   * values, four characters at a time.
+   *
+   * @param s The string to scan.
+   * @return True if at least one character needs to be escaped.
+   */
+  static boolean containsCharacterToEscape(String s) {
+    final int length = s.length();
+    int offset = 0;
+    for (; offset + LANES <= length; offset += LANES) {
+      if (hasCharacterToEscape(word(s, offset))) {
+        return true;
+      }
+    }
+    for (; offset < length; offset++) {
+      if (StringValueValidator.shouldEscapeString(s.charAt(offset))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A concurrent cache that holds at most a fixed number of entries. Lookups never block. When the
+ * cache grows beyond its limit, one thread evicts entries using the CLOCK (second chance)
+ * algorithm: entries that were read since the last sweep survive one more round, so frequently used
+ * entries tend to stay in the cache.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+final class BoundedCache<K, V> {
+  private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+  private final int maxSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  // only one thread sweeps at a time; the others just skip eviction.
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  // the clock hand. Only accessed while holding the eviction lock.
+  private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+  private static final class Entry<V> {
+    private final V value;
+    private volatile boolean referenced;
+
+    private Entry(V value) {
+      this.value = value;
+    }
+  }
+
+  BoundedCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the cached value for the key, or compute and cache it if it is not present.
+   *
+   * @param key The key to look up. Must not be null.
+   * @param compute Creates the value for a missing key. If it returns null, nothing is cached.
+   * @return The cached or newly computed value.
+   */
+  V get(K key, Function<? super K, ? extends V> compute) {
+    Entry<V> entry = map.get(key);
+    if (entry != null) {
+      hits.increment();
+      if (!entry.referenced) {
+        // avoid writing to the shared entry on every hit.
+        entry.referenced = true;
+      }
+      return entry.value;
+    }
+
+    misses.increment();
+    V value = compute.apply(key);
+    if (value == null) {
+      return null;
+    }
+
+    Entry<V> previous = map.putIfAbsent(key, new Entry<>(value));
+    if (previous != null) {
+      // another thread computed the same value concurrently, keep the first one.
+      return previous.value;
+    }
+    if (map.size() > maxSize) {
+      evict();
+    }
+    return value;
+  }
+
+  private void evict() {
+    if (!evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      while (map.size() > maxSize) {
+        if (hand == null || !hand.hasNext()) {
+          hand = map.entrySet().iterator();
+          if (!hand.hasNext()) {
+            break;
+          }
+        }
+        Map.Entry<K, Entry<V>> candidate = hand.next();
+        if (candidate.getValue().referenced) {
+          candidate.getValue().referenced = false;
+        } else if (map.remove(candidate.getKey(), candidate.getValue())) {
+          evictions.increment();
+        }
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  int size() {
+    return map.size();
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  long getMissCount() {
+    return misses.sum();
+  }
+
+  long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** @return The share of lookups that were served from the cache, or 0 if there were none. */
+  double getHitRatio() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Guards aggregators against metrics with an exploding number of series, e.g. because a user ID was
+ * used as a dimension. Pass the dimensions of every series through {@link #limit} before recording
+ * to it: the first distinct {@link DimensionList}s of every normalized metric key are passed
+ * through unchanged, up to the configured maximum. Beyond it, the dimensions of new series are
+ * replaced by a single overflow dimension ("otel.metric.overflow=true" by default), so all of them
+ * are folded into one overflow series per metric key.
+ *
+ * <p>The admitted series of a metric key are counted exactly, and the series beyond the limit are
+ * counted approximately in a 4 KB HyperLogLog sketch, so the memory per metric key is bounded. Each
+ * flush emits one "metric.series.dropped" delta counter line per metric key that folded new series,
+ * with the normalized metric key in the "metric.key" dimension. Its value is the growth of the
+ * estimated number of folded series since the previous flush, so a folded series is counted once,
+ * however often it is recorded.
+ *
+ * <p>Admitted series that were not passed through {@link #limit} for 10 flushes in a row expire and
+ * free their slot, like the idle series of the aggregators, so series of pods or versions that are
+ * gone do not keep the limit filled. Expiry only happens when the limiter is flushed, e.g. by a
+ * {@link FlushScheduler}. Folded series are tracked for the lifetime of the limiter.
+ */
+public final class CardinalityLimiter implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(CardinalityLimiter.class.getName());
+  private static final ThrottledWarning overflowWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  static final String DROPPED_METRIC_KEY = "metric.series.dropped";
+  static final String METRIC_KEY_DIMENSION_KEY = "metric.key";
+  private static final int DEFAULT_MAX_SERIES = 1000;
+  private static final int PRECISION = 12;
+
+  private final MetricBuilderFactory factory;
+  private final int maxSeries;
+  private final DimensionList overflowDimensions;
+  private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+  // the number of flushes so far, only written by the synchronized flush.
+  private volatile int flushes;
+
+  private CardinalityLimiter(
+      MetricBuilderFactory factory, int maxSeries, DimensionList overflowDimensions) {
+    this.factory = factory;
+    this.maxSeries = maxSeries;
+    this.overflowDimensions = overflowDimensions;
+  }
+
+  /**
+   * Create a new {@link CardinalityLimiter} without prefix or default dimensions, which admits 1000
+   * series per metric key.
+   *
+   * @return A new {@link CardinalityLimiter}.
+   */
+  public static CardinalityLimiter create() {
+    return builder().build();
+  }
+
+  /** @return A new {@link CardinalityLimiterBuilder} to configure a {@link CardinalityLimiter}. */
+  public static CardinalityLimiterBuilder builder() {
+    return new CardinalityLimiterBuilder();
+  }
+
+  /**
+   * Get the dimensions to record a series with. Series that were admitted before, and new series
+   * while the metric key is below the limit, keep their dimensions. Other series are folded into
+   * the overflow series. Metric keys that cannot be normalized are passed through, since the
+   * aggregators drop them anyway.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The passed dimensions, or the overflow dimensions if the series was folded.
+   */
+  public DimensionList limit(String metricKey, DimensionList dimensions) {
+    String normalizedMetricKey;
+    try {
+      normalizedMetricKey = factory.newMetricBuilder(metricKey).getNormalizedMetricKey();
+    } catch (MetricException e) {
+      return dimensions;
+    }
+    DimensionList series = dimensions != null ? dimensions : DimensionList.create();
+    Limit limit = limits.get(normalizedMetricKey);
+    if (limit == null) {
+      limit = limits.computeIfAbsent(normalizedMetricKey, k -> new Limit());
+    }
+    if (limit.admit(series, maxSeries, flushes)) {
+      return dimensions;
+    }
+    limit.overflow.add(Fingerprint.of(normalizedMetricKey, series));
+    if (!limit.overflowed) {
+      limit.overflowed = true;
+    }
+    overflowWarning.warn(
+        () ->
+            String.format(
+                "metric '%s' exceeds %d series, folding new series into the overflow series",
+                normalizedMetricKey, maxSeries));
+    return overflowDimensions;
+  }
+
+  /**
+   * Get the number of distinct series recorded for a metric key. The count of admitted series that
+   * did not expire is exact, and folded series are estimated with a standard error of about 1.6%.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @return The number of distinct series, or 0 if the metric key is unknown or invalid.
+   */
+  public long getSeriesCount(String metricKey) {
+    Limit limit;
+    try {
+      limit = limits.get(factory.newMetricBuilder(metricKey).getNormalizedMetricKey());
+    } catch (MetricException e) {
+      return 0;
+    }
+    return limit == null ? 0 : limit.admitted.size() + limit.overflow.estimate();
+  }
+
+  /**
+   * Serialize one delta counter line with the estimated number of series that were folded for the
+   * first time since the last flush, for every metric key that folded new series. Admitted series
+   * that were not seen for 10 flushes expire.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public synchronized List<String> flush(Instant timestamp) {
+    int flush = ++flushes;
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+      entry.getValue().expire(flush);
+      long dropped = entry.getValue().newlyFolded();
+      if (dropped <= 0) {
+        continue;
+      }
+      try {
+        lines.add(
+            factory
+                .newMetricBuilder(DROPPED_METRIC_KEY)
+                .setDimensions(
+                    DimensionList.create(
+                        Dimension.create(METRIC_KEY_DIMENSION_KEY, entry.getKey())))
+                .setLongCounterValueDelta(dropped)
+                .setTimestamp(timestamp)
+                .serializeMetricLine());
+      } catch (MetricException e) {
+        serializationWarning.warn(
+            () ->
+                String.format(
+                    "dropping overflow counter of '%s': %s", entry.getKey(), e.getMessage()));
+      }
+    }
+    return lines;
+  }
+
+  private static final class Limit {
+    final Map<DimensionList, Admitted> admitted = new ConcurrentHashMap<>();
+    // reserved slots in admitted, may briefly exceed its size while series are added.
+    final AtomicInteger reserved = new AtomicInteger();
+    final HyperLogLog overflow = new HyperLogLog(PRECISION);
+    // set once the first series is folded, so flushes only estimate keys that folded series.
+    volatile boolean overflowed;
+    // the estimate of folded series at the last flush, only accessed by the synchronized flush.
+    long reportedFolded;
+
+    /** @return the growth of the estimated number of folded series since the last call. */
+    long newlyFolded() {
+      if (!overflowed) {
+        return 0;
+      }
+      long folded = overflow.estimate();
+      // estimates may dip slightly when switching from linear counting to the HyperLogLog estimate.
+      long newlyFolded = folded - reportedFolded;
+      reportedFolded = Math.max(reportedFolded, folded);
+      return newlyFolded;
+    }
+
+    boolean admit(DimensionList dimensions, int maxSeries, int flush) {
+      Admitted series = admitted.get(dimensions);
+      if (series != null) {
+        series.seen(flush);
+        return true;
+      }
+      if (reserved.incrementAndGet() > maxSeries) {
+        reserved.decrementAndGet();
+        return false;
+      }
+      if (admitted.putIfAbsent(dimensions, new Admitted(flush)) != null) {
+        // another thread admitted the same series first.
+        reserved.decrementAndGet();
+      }
+      return true;
+    }
+
+    /** Remove the admitted series that were not seen for the last 10 flushes. */
+    void expire(int flush) {
+      for (Iterator<Admitted> it = admitted.values().iterator(); it.hasNext(); ) {
+        // the flush that ends the window a series was seen in does not count as idle.
+        if (flush - it.next().lastSeen > SeriesMap.DEFAULT_MAX_IDLE_FLUSHES) {
+          it.remove();
+          reserved.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static final class Admitted {
+    // the number of flushes when the series was last seen.
+    volatile int lastSeen;
+
+    Admitted(int flush) {
+      this.lastSeen = flush;
+    }
+
+    void seen(int flush) {
+      // written once per flush, repeated calls only read it.
+      if (lastSeen != flush) {
+        lastSeen = flush;
+      }
+    }
+  }
+
+  /** Builder class for {@link CardinalityLimiter} objects. */
+  public static class CardinalityLimiterBuilder {
+    private MetricBuilderFactory factory;
+    private int maxSeries = DEFAULT_MAX_SERIES;
+    private DimensionList overflowDimensions =
+        DimensionList.create(Dimension.create("otel.metric.overflow", "true"));
+
+    private CardinalityLimiterBuilder() {}
+
+    /**
+     * Set the {@link MetricBuilderFactory} whose prefix is part of the normalized metric keys, and
+     * which creates the lines with the number of folded series.
+     *
+     * @param factory The {@link MetricBuilderFactory} of the guarded aggregators.
+     * @return this
+     */
+    public CardinalityLimiterBuilder withMetricBuilderFactory(MetricBuilderFactory factory) {
+      this.factory = factory;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of series per metric key, not counting the overflow series. Defaults
+     * to 1000.
+     *
+     * @param maxSeries The maximum number of series per metric key.
+     * @return this
+     * @throws IllegalArgumentException if the maximum is not positive.
+     */
+    public CardinalityLimiterBuilder withMaxSeriesPerMetric(int maxSeries) {
+      if (maxSeries < 1) {
+        throw new IllegalArgumentException("maxSeries must be positive");
+      }
+      this.maxSeries = maxSeries;
+      return this;
+    }
+
+    /**
+     * Set the dimensions of the overflow series. Defaults to "otel.metric.overflow=true".
+     *
+     * @param overflowDimensions The dimensions that replace the dimensions of folded series.
+     * @return this
+     * @throws IllegalArgumentException if the dimensions are null.
+     */
+    public CardinalityLimiterBuilder withOverflowDimensions(DimensionList overflowDimensions) {
+      if (overflowDimensions == null) {
+        throw new IllegalArgumentException("overflowDimensions cannot be null");
+      }
+      this.overflowDimensions = overflowDimensions;
+      return this;
+    }
+
+    /** @return A new {@link CardinalityLimiter} with the settings of this builder. */
+    public CardinalityLimiter build() {
+      MetricBuilderFactory localFactory =
+          factory != null ? factory : MetricBuilderFactory.builder().build();
+      return new CardinalityLimiter(localFactory, maxSeries, overflowDimensions);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Converts cumulative counter values, as exposed by many sources (e.g. JMX or /proc), into delta
+ * counters. The last cumulative value of every series is kept in a primitive map, keyed by the
+ * 64-bit {@link Fingerprint} of the normalized metric key and the {@link DimensionList}, so the
+ * converter holds no strings or boxed values per series. Series that were not updated for the idle
+ * timeout are evicted, so memory stays bounded by the number of recently active series.
+ *
+ * <p>The first value of a series (or the first after it was evicted) only sets its baseline and
+ * produces no metric. A value lower than the previous one is treated as a reset of the source, and
+ * the new value is reported as the delta. Methods are synchronized, as conversions are cheap and
+ * sources are usually polled from a single thread.
+ */
+public final class CumulativeToDeltaConverter {
+  static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+  // long and double series are tracked separately, even if they share key and dimensions.
+  private static final long LONG_SERIES = 1;
+  private static final long DOUBLE_SERIES = 2;
+
+  private final MetricBuilderFactory factory;
+  private final long idleTimeoutNanos;
+  private final LongSupplier nanoClock;
+  private final FingerprintMap lastValues = new FingerprintMap();
+  private long lastEvictionNanos;
+
+  CumulativeToDeltaConverter(
+      MetricBuilderFactory factory, Duration idleTimeout, LongSupplier nanoClock) {
+    if (factory == null) {
+      throw new IllegalArgumentException("factory cannot be null");
+    }
+    if (idleTimeout == null || idleTimeout.isNegative() || idleTimeout.isZero()) {
+      throw new IllegalArgumentException("idleTimeout must be positive");
+    }
+    this.factory = factory;
+    this.idleTimeoutNanos = idleTimeout.toNanos();
+    this.nanoClock = nanoClock;
+    this.lastEvictionNanos = nanoClock.getAsLong();
+  }
+
+  /**
+   * Create a new {@link CumulativeToDeltaConverter} without prefix or default dimensions, which
+   * evicts series that were not updated for ten minutes.
+   *
+   * @return A new {@link CumulativeToDeltaConverter}.
+   */
+  public static CumulativeToDeltaConverter create() {
+    return create(MetricBuilderFactory.builder().build());
+  }
+
+  /**
+   * Create a new {@link CumulativeToDeltaConverter} that creates its metrics with the passed {@link
+   * MetricBuilderFactory}, and evicts series that were not updated for ten minutes.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metrics with.
+   * @return A new {@link CumulativeToDeltaConverter}.
+   */
+  public static CumulativeToDeltaConverter create(MetricBuilderFactory factory) {
+    return create(factory, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Create a new {@link CumulativeToDeltaConverter} that creates its metrics with the passed {@link
+   * MetricBuilderFactory}.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metrics with.
+   * @param idleTimeout The time after which series that were not updated are evicted. Should be
+   *     longer than the interval at which the sources are polled.
+   * @return A new {@link CumulativeToDeltaConverter}.
+   */
+  public static CumulativeToDeltaConverter create(
+      MetricBuilderFactory factory, Duration idleTimeout) {
+    return new CumulativeToDeltaConverter(factory, idleTimeout, System::nanoTime);
+  }
+
+  /**
+   * Convert the current cumulative value of a long counter series into a delta.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param total The current cumulative value.
+   * @return A {@link Metric.Builder} with the delta since the previous value set, or null if this
+   *     is the first value of the series.
+   * @throws MetricException if the metric key is invalid.
+   */
+  public synchronized Metric.Builder convert(String metricKey, DimensionList dimensions, long total)
+      throws MetricException {
+    Metric.Builder builder = factory.newMetricBuilder(metricKey).setDimensions(dimensions);
+    long fingerprint = fingerprint(builder, dimensions, LONG_SERIES);
+    long now = now();
+
+    int slot = lastValues.find(fingerprint);
+    if (slot < 0) {
+      lastValues.add(fingerprint, total, now);
+      return null;
+    }
+    long previous = lastValues.valueAt(slot);
+    lastValues.setValueAt(slot, total, now);
+    return builder.setLongCounterValueDelta(total >= previous ? total - previous : total);
+  }
+
+  /**
+   * Convert the current cumulative value of a double counter series into a delta.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param total The current cumulative value.
+   * @return A {@link Metric.Builder} with the delta since the previous value set, or null if this
+   *     is the first value of the series.
+   * @throws MetricException if the metric key is invalid or the value is NaN or infinite.
+   */
+  public synchronized Metric.Builder convert(
+      String metricKey, DimensionList dimensions, double total) throws MetricException {
+    if (Double.isNaN(total) || Double.isInfinite(total)) {
+      throw new MetricException(String.format("cumulative value %s is not finite", total));
+    }
+    Metric.Builder builder = factory.newMetricBuilder(metricKey).setDimensions(dimensions);
+    long fingerprint = fingerprint(builder, dimensions, DOUBLE_SERIES);
+    long now = now();
+
+    int slot = lastValues.find(fingerprint);
+    if (slot < 0) {
+      lastValues.add(fingerprint, Double.doubleToLongBits(total), now);
+      return null;
+    }
+    double previous = Double.longBitsToDouble(lastValues.valueAt(slot));
+    lastValues.setValueAt(slot, Double.doubleToLongBits(total), now);
+    return builder.setDoubleCounterValueDelta(total >= previous ? total - previous : total);
+  }
+
+  private static long fingerprint(Metric.Builder builder, DimensionList dimensions, long type)
+      throws MetricException {
+    DimensionList series = dimensions != null ? dimensions : DimensionList.create();
+    long fingerprint = Fingerprint.of(builder.getNormalizedMetricKey(), series);
+    return Fingerprint.finish(Fingerprint.add(fingerprint, type));
+  }
+
+  // evicts idle series at most once per idle timeout, so each eviction pass over the map is
+  // amortized over all conversions in between.
+  private long now() {
+    long now = nanoClock.getAsLong();
+    if (now - lastEvictionNanos >= idleTimeoutNanos) {
+      lastValues.removeUnusedSince(now - idleTimeoutNanos);
+      lastEvictionNanos = now;
+    }
+    return now;
+  }
+
+  /** @return the number of series that are currently tracked. */
+  synchronized int size() {
+    return lastValues.size();
+  }
+}
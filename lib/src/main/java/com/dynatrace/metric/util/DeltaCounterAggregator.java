@@ -0,0 +1,213 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates delta counters on the client. All values added to a series between two flushes are
+ * summed up, and each flush emits one "count,delta=" line per series that changed, instead of one
+ * line per added value. Series are identified by their normalized metric key and their {@link
+ * DimensionList}.
+ *
+ * <p>Adding to a {@link LongCounter} completes in a bounded number of steps, and adding to a {@link
+ * DoubleCounter} never blocks. Counters that are updated from many threads spread their updates
+ * over striped cells, so they do not contend on a single cache line. Values added while a flush is
+ * running are reported either by that flush or by the next one.
+ *
+ * <p>Series that did not change for 10 flushes in a row are evicted, so series with short-lived
+ * dimension values do not accumulate. Series whose counter was returned by {@link #longCounter} or
+ * {@link #doubleCounter} are kept, since the caller may still add to it.
+ */
+public final class DeltaCounterAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(DeltaCounterAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  private final SeriesMap<Counter> series;
+
+  private DeltaCounterAggregator(MetricBuilderFactory factory) {
+    this.series = new SeriesMap<>(factory);
+  }
+
+  /**
+   * Create a new {@link DeltaCounterAggregator} without prefix or default dimensions.
+   *
+   * @return A new {@link DeltaCounterAggregator}.
+   */
+  public static DeltaCounterAggregator create() {
+    return create(MetricBuilderFactory.builder().build());
+  }
+
+  /**
+   * Create a new {@link DeltaCounterAggregator} that creates its lines with the passed {@link
+   * MetricBuilderFactory}, so they carry its prefix, default dimensions and Dynatrace metadata.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+   * @return A new {@link DeltaCounterAggregator}.
+   */
+  public static DeltaCounterAggregator create(MetricBuilderFactory factory) {
+    return new DeltaCounterAggregator(factory);
+  }
+
+  /**
+   * Get the long counter for a series, creating it if it does not exist yet. Keep the returned
+   * counter to add to it without looking up the series again. Series whose counter was returned are
+   * never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link LongCounter} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link DoubleCounter}.
+   */
+  public LongCounter longCounter(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, LongCounter.class, LongCounter::new);
+  }
+
+  /**
+   * Get the double counter for a series, creating it if it does not exist yet. Keep the returned
+   * counter to add to it without looking up the series again. Series whose counter was returned are
+   * never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link DoubleCounter} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link LongCounter}.
+   */
+  public DoubleCounter doubleCounter(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, DoubleCounter.class, DoubleCounter::new);
+  }
+
+  /**
+   * Add a value to the long counter of a series, see {@link #longCounter}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param delta The value to add.
+   */
+  public void add(String metricKey, DimensionList dimensions, long delta) {
+    LongCounter counter = series.get(metricKey, dimensions, LongCounter.class, LongCounter::new);
+    counter.add(delta);
+    series.recorded(counter);
+  }
+
+  /**
+   * Add a value to the double counter of a series, see {@link #doubleCounter}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param delta The value to add.
+   */
+  public void add(String metricKey, DimensionList dimensions, double delta) {
+    DoubleCounter counter =
+        series.get(metricKey, dimensions, DoubleCounter.class, DoubleCounter::new);
+    counter.add(delta);
+    series.recorded(counter);
+  }
+
+  /**
+   * Serialize one "count,delta=" line for every series that changed since the last flush, and reset
+   * all counters.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public List<String> flush(Instant timestamp) {
+    List<String> lines = new ArrayList<>();
+    series.drainAll(
+        counter -> {
+          try {
+            String line = counter.drainTo(series.getFactory(), timestamp);
+            if (line == null) {
+              return false;
+            }
+            lines.add(line);
+          } catch (MetricException e) {
+            serializationWarning.warn(
+                () -> String.format("dropping counter '%s': %s", counter.key, e.getMessage()));
+          }
+          return true;
+        });
+    return lines;
+  }
+
+  private abstract static class Counter extends SeriesMap.State {
+    final StripedCells cells = new StripedCells(1);
+
+    Counter(SeriesKey key) {
+      super(key);
+    }
+
+    /** @return the serialized line for the drained value, or null if the value is 0. */
+    abstract String drainTo(MetricBuilderFactory factory, Instant timestamp) throws MetricException;
+  }
+
+  /** A long delta counter of a single series. */
+  public static final class LongCounter extends Counter {
+    private LongCounter(SeriesKey key) {
+      super(key);
+    }
+
+    /**
+     * Add a value to the counter.
+     *
+     * @param delta The value to add.
+     */
+    public void add(long delta) {
+      cells.add(0, delta);
+    }
+
+    @Override
+    String drainTo(MetricBuilderFactory factory, Instant timestamp) throws MetricException {
+      long value = cells.drain(0);
+      if (value == 0) {
+        return null;
+      }
+      return key.newMetricBuilder(factory, timestamp)
+          .setLongCounterValueDelta(value)
+          .serializeMetricLine();
+    }
+  }
+
+  /** A double delta counter of a single series. */
+  public static final class DoubleCounter extends Counter {
+    private DoubleCounter(SeriesKey key) {
+      super(key);
+    }
+
+    /**
+     * Add a value to the counter.
+     *
+     * @param delta The value to add.
+     */
+    public void add(double delta) {
+      cells.addDouble(0, delta);
+    }
+
+    @Override
+    String drainTo(MetricBuilderFactory factory, Instant timestamp) throws MetricException {
+      double value = cells.drainDouble(0);
+      if (value == 0) {
+        return null;
+      }
+      return key.newMetricBuilder(factory, timestamp)
+          .setDoubleCounterValueDelta(value)
+          .serializeMetricLine();
+    }
+  }
+}
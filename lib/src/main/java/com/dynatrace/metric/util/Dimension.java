@@ -13,26 +13,39 @@
  */
 package com.dynatrace.metric.util;
 
+import java.util.Arrays;
 import java.util.Objects;
 
 /** The dimension class represents a key-value pair of strings. */
 public final class Dimension {
+  // Key and value are either stored as String or, for normalized dimensions that only contain
+  // Latin-1 characters, as one byte per character. Exactly one of each pair is set, unless the
+  // value itself is null.
   private final String key;
   private final String value;
+  private final byte[] compactKey;
+  private final byte[] compactValue;
+  // the escaped compact value, shared between all dimensions with the same interned value. Null
+  // if the value was not interned.
+  private final byte[] escapedValue;
 
-  private Dimension(String key, String value) {
+  private Dimension(
+      String key, String value, byte[] compactKey, byte[] compactValue, byte[] escapedValue) {
     this.key = key;
     this.value = value;
+    this.compactKey = compactKey;
+    this.compactValue = compactValue;
+    this.escapedValue = escapedValue;
   }
 
   /** @return A {@link String} containing the dimension key. */
   public String getKey() {
-    return key;
+    return compactKey != null ? Latin1.decode(compactKey) : key;
   }
 
   /** @return A {@link String} containing the dimension value. */
   public String getValue() {
-    return value;
+    return compactValue != null ? Latin1.decode(compactValue) : value;
   }
 
   /**
@@ -43,7 +56,49 @@ public final class Dimension {
    * @return a new {@link Dimension} object with the two set values.
    */
   public static Dimension create(String key, String value) {
-    return new Dimension(key, value);
+    return new Dimension(key, value, null, null, null);
+  }
+
+  /**
+   * Create a Dimension from an already normalized key and value. Both are stored in their compact
+   * form if they only contain Latin-1 characters.
+   */
+  static Dimension createNormalized(String key, String value) {
+    return createNormalized(Latin1.encode(key), key, value);
+  }
+
+  /**
+   * Create a Dimension from an already normalized key in its compact form and a normalized value.
+   * The key array may be shared with other dimensions.
+   */
+  static Dimension createNormalized(byte[] compactKey, String value) {
+    return createNormalized(compactKey, null, value);
+  }
+
+  private static Dimension createNormalized(byte[] compactKey, String key, String value) {
+    byte[] compactValue = Latin1.encode(value);
+    return new Dimension(
+        compactKey == null ? key : null,
+        compactValue == null ? value : null,
+        compactKey,
+        compactValue,
+        null);
+  }
+
+  /**
+   * Create a Dimension from an already normalized key in its compact form and an interned value.
+   * The value representations are shared with all other dimensions using the same interned value.
+   */
+  static Dimension createInterned(byte[] compactKey, DimensionValueInterner.Value value) {
+    return new Dimension(null, value.value, compactKey, value.compactValue, value.escapedValue);
+  }
+
+  boolean hasKey() {
+    return compactKey != null ? compactKey.length > 0 : key != null && !key.isEmpty();
+  }
+
+  boolean hasValue() {
+    return compactValue != null ? compactValue.length > 0 : value != null && !value.isEmpty();
   }
 
   /**
@@ -56,7 +111,88 @@ public final class Dimension {
   }
 
   String serialize() {
-    return String.format("%s=%s", key, Normalize.escapeDimensionValue(value));
+    StringBuilder builder = new StringBuilder();
+    serializeTo(builder);
+    return builder.toString();
+  }
+
+  /** Appends "key=value" with an escaped value to the builder. */
+  void serializeTo(StringBuilder builder) {
+    if (compactKey != null) {
+      Latin1.appendTo(builder, compactKey);
+    } else {
+      builder.append(key);
+    }
+    builder.append('=');
+
+    if (escapedValue != null) {
+      // interned values were escaped once when they were interned.
+      Latin1.appendTo(builder, escapedValue);
+    } else if (compactValue != null
+        && compactValue.length > 0
+        && !Normalize.needToEscapeDimensionValue(compactValue)) {
+      // nothing to escape, copy the characters straight into the output.
+      Latin1.appendTo(builder, compactValue);
+    } else {
+      Normalize.appendEscapedDimensionValue(builder, getValue());
+    }
+  }
+
+  /** Adds key and value to the fingerprint, without decoding compact strings. */
+  long addTo(long fingerprint) {
+    fingerprint =
+        compactKey != null
+            ? Fingerprint.addLatin1(fingerprint, compactKey)
+            : Fingerprint.add(fingerprint, key);
+    return compactValue != null
+        ? Fingerprint.addLatin1(fingerprint, compactValue)
+        : Fingerprint.add(fingerprint, value);
+  }
+
+  /**
+   * @return The key of this dimension, wrapped to be used as a hash map key without decoding its
+   *     compact form.
+   */
+  Key mapKey() {
+    return new Key(key, compactKey);
+  }
+
+  /** Compares the keys of two dimensions like {@link String#compareTo}, without decoding them. */
+  static int compareKeys(Dimension left, Dimension right) {
+    int leftLength = left.keyLength();
+    int rightLength = right.keyLength();
+    for (int i = 0; i < Math.min(leftLength, rightLength); i++) {
+      int difference = left.keyCharAt(i) - right.keyCharAt(i);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return leftLength - rightLength;
+  }
+
+  private int keyLength() {
+    return compactKey != null ? compactKey.length : key.length();
+  }
+
+  private char keyCharAt(int index) {
+    return compactKey != null ? Latin1.charAt(compactKey, index) : key.charAt(index);
+  }
+
+  private static boolean contentEquals(String s1, byte[] b1, String s2, byte[] b2) {
+    if (b1 != null) {
+      return b2 != null ? Arrays.equals(b1, b2) : s2 != null && Latin1.contentEquals(b1, s2);
+    }
+    if (b2 != null) {
+      return s1 != null && Latin1.contentEquals(b2, s1);
+    }
+    return Objects.equals(s1, s2);
+  }
+
+  private static int contentHashCode(String s, byte[] b) {
+    if (b != null) {
+      return Latin1.hashCode(b);
+    }
+    return s == null ? 0 : s.hashCode();
   }
 
   @Override
@@ -64,11 +200,37 @@ public final class Dimension {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     Dimension dimension = (Dimension) o;
-    return Objects.equals(key, dimension.key) && Objects.equals(value, dimension.value);
+    return contentEquals(key, compactKey, dimension.key, dimension.compactKey)
+        && contentEquals(value, compactValue, dimension.value, dimension.compactValue);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(key, value);
+    // same result as Objects.hash(getKey(), getValue()), without decoding compact strings.
+    return 31 * (31 + contentHashCode(key, compactKey)) + contentHashCode(value, compactValue);
+  }
+
+  /** The key of a {@link Dimension}, compared by its characters in either representation. */
+  static final class Key {
+    private final String key;
+    private final byte[] compactKey;
+
+    private Key(String key, byte[] compactKey) {
+      this.key = key;
+      this.compactKey = compactKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key other = (Key) o;
+      return contentEquals(key, compactKey, other.key, other.compactKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return contentHashCode(key, compactKey);
+    }
   }
 }
@@ -16,20 +16,72 @@ package com.dynatrace.metric.util;
 import java.util.*;
 import java.util.logging.Logger;
 
-/** An immutable list of normalized {@link Dimension Dimensions}. */
+/**
+ * An immutable list of normalized {@link Dimension Dimensions}. Lists created from raw dimensions
+ * are normalized lazily, exactly once, when they are first serialized, merged or accessed. Lists
+ * that are dropped before that (e.g. because the metric was filtered or sampled) are never
+ * normalized.
+ */
 public final class DimensionList {
   private static final Logger logger = Logger.getLogger(DimensionList.class.getName());
+  private static final ThrottledWarning emptyKeyWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning emptyValueWarning = new ThrottledWarning(logger);
 
-  private final List<Dimension> dimensions;
+  // the normalized dimensions, null until the raw dimensions have been normalized.
+  private volatile List<Dimension> dimensions;
+  // the raw dimensions and the interner to use when normalizing them. Only accessed while holding
+  // the lock on this list, and cleared once the dimensions are normalized.
+  private List<Dimension> rawDimensions;
+  private DimensionValueInterner interner;
+  // the dimensions as they are serialized: without duplicate keys and invalid dimensions, sorted by
+  // key. Null until first compared or fingerprinted.
+  private volatile List<Dimension> canonical;
+  // the cached hash code of the canonical dimensions, 0 until first computed.
+  private int hash;
 
   private DimensionList(List<Dimension> dimensions) {
     this.dimensions = dimensions;
   }
 
+  private DimensionList(List<Dimension> rawDimensions, DimensionValueInterner interner) {
+    this.rawDimensions = rawDimensions;
+    this.interner = interner;
+  }
+
+  private static DimensionList deferred(
+      Collection<Dimension> dimensions, DimensionValueInterner interner) {
+    if (dimensions == null || dimensions.isEmpty()) {
+      return new DimensionList(new ArrayList<>());
+    }
+    // copy the input so later changes to the passed collection do not affect this list.
+    return new DimensionList(new ArrayList<>(dimensions), interner);
+  }
+
+  private List<Dimension> normalized() {
+    List<Dimension> result = dimensions;
+    if (result == null) {
+      synchronized (this) {
+        result = dimensions;
+        if (result == null) {
+          result = Normalize.dimensionList(rawDimensions, interner);
+          dimensions = result;
+          rawDimensions = null;
+          interner = null;
+        }
+      }
+    }
+    return result;
+  }
+
+  /** @return true if the dimensions of this list have already been normalized. */
+  boolean isNormalized() {
+    return dimensions != null;
+  }
+
   /**
    * Create a new {@link DimensionList} from a {@link Collection} of {@link Dimension Dimensions}.
    * All {@link DimensionList DimensionLists} must be normalized, therefore any collection passed
-   * here will be normalized before storing it. Normalization does not remove duplicates.
+   * here will be normalized before it is first used. Normalization does not remove duplicates.
    * Normalization will drop invalid {@link Dimension} objects.
    *
    * @param dimensions A collection of {@link Dimension} objects, to be normalized and stored.
@@ -37,7 +89,24 @@ public final class DimensionList {
    *     still contain duplicate keys but no invalid {@link Dimension Dimensions}.
    */
   public static DimensionList fromCollection(Collection<Dimension> dimensions) {
-    return new DimensionList(Normalize.dimensionList(dimensions));
+    return deferred(dimensions, null);
+  }
+
+  /**
+   * Create a new {@link DimensionList} from a {@link Collection} of {@link Dimension Dimensions},
+   * like {@link #fromCollection(Collection)}. Dimension values are looked up in the passed {@link
+   * DimensionValueInterner}, so that each distinct value is only normalized and escaped once and
+   * then shared between all {@link Dimension Dimensions} that use it.
+   *
+   * @param dimensions A collection of {@link Dimension} objects, to be normalized and stored.
+   * @param interner The {@link DimensionValueInterner} to share dimension values with. If null,
+   *     this method behaves like {@link #fromCollection(Collection)}.
+   * @return A {@link DimensionList} object, containing normalized {@link Dimension Dimensions}. Can
+   *     still contain duplicate keys but no invalid {@link Dimension Dimensions}.
+   */
+  public static DimensionList fromCollection(
+      Collection<Dimension> dimensions, DimensionValueInterner interner) {
+    return deferred(dimensions, interner);
   }
 
   /**
@@ -84,7 +153,7 @@ public final class DimensionList {
    * @return true if the list is empty and false otherwise.
    */
   public boolean isEmpty() {
-    return dimensions.isEmpty();
+    return normalized().isEmpty();
   }
 
   /**
@@ -105,21 +174,23 @@ public final class DimensionList {
       return DimensionList.create();
     }
 
-    Map<String, Dimension> dimensionMap = new HashMap<>();
+    // keyed without decoding compact keys, which would allocate a string per dimension.
+    Map<Dimension.Key, Dimension> dimensionMap = new HashMap<>();
     for (DimensionList dl : dimensionLists) {
       if (dl == null) {
         continue;
       }
       // overwrite dimension keys with items that are passed further right.
-      for (Dimension dimension : dl.dimensions) {
-        if (dimension.getKey() == null || dimension.getKey().isEmpty()) {
-          logger.warning("skipping empty key");
+      for (Dimension dimension : dl.normalized()) {
+        if (!dimension.hasKey()) {
+          emptyKeyWarning.warn(() -> "skipping empty key");
           continue;
         }
-        dimensionMap.put(dimension.getKey(), dimension);
+        dimensionMap.put(dimension.mapKey(), dimension);
       }
     }
-    return DimensionList.fromCollection(dimensionMap.values());
+    // all passed lists are already normalized, and normalizing them again would not change them.
+    return new DimensionList(new ArrayList<>(dimensionMap.values()));
   }
 
   /**
@@ -128,18 +199,27 @@ public final class DimensionList {
    * @return An unmodifiable {@link Collection} of {@link Dimension} objects.
    */
   public Collection<Dimension> getDimensions() {
-    return Collections.unmodifiableList(dimensions);
+    return Collections.unmodifiableList(normalized());
   }
 
   String serialize() {
-    if (dimensions.isEmpty()) {
+    if (normalized().isEmpty()) {
       return "";
     }
 
     StringBuilder builder = new StringBuilder();
+    serializeTo(builder);
+    return builder.toString();
+  }
+
+  /**
+   * Appends the comma-separated, serialized dimensions to the builder. Invalid dimensions are
+   * skipped.
+   */
+  void serializeTo(StringBuilder builder) {
     boolean firstIteration = true;
 
-    for (Dimension dimension : dimensions) {
+    for (Dimension dimension : normalized()) {
       // if the dimension is not valid, don't add it to the serialized line
       if (isDimensionValid(dimension)) {
         if (!firstIteration) {
@@ -148,11 +228,68 @@ public final class DimensionList {
           firstIteration = false;
         }
 
-        builder.append(dimension.serialize());
+        dimension.serializeTo(builder);
       }
     }
+  }
 
-    return builder.toString();
+  /**
+   * The dimensions that identify a series: the last dimension of every key, like {@link #merge}
+   * keeps it, without dimensions that would be skipped when serializing, sorted by key.
+   */
+  private List<Dimension> canonical() {
+    List<Dimension> result = canonical;
+    if (result == null) {
+      Map<Dimension.Key, Dimension> unique = new HashMap<>();
+      for (Dimension dimension : normalized()) {
+        if (dimension.hasKey()) {
+          unique.put(dimension.mapKey(), dimension);
+        }
+      }
+      result = new ArrayList<>(unique.size());
+      for (Dimension dimension : unique.values()) {
+        if (dimension.hasValue()) {
+          result.add(dimension);
+        }
+      }
+      result.sort(Dimension::compareKeys);
+      canonical = result;
+    }
+    return result;
+  }
+
+  /**
+   * Two {@link DimensionList DimensionLists} are equal if they serialize to the same dimensions:
+   * the order of dimensions does not matter, and of dimensions with the same key, only the last one
+   * counts. Comparing lists normalizes them.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    DimensionList that = (DimensionList) o;
+    return canonical().equals(that.canonical());
+  }
+
+  @Override
+  public int hashCode() {
+    int result = hash;
+    if (result == 0) {
+      // racy but safe, every thread computes the same value from the immutable dimensions.
+      result = canonical().hashCode();
+      hash = result;
+    }
+    return result;
+  }
+
+  /** Adds the dimensions to the fingerprint, so that equal lists have the same fingerprint. */
+  long addTo(long fingerprint) {
+    List<Dimension> dimensions = canonical();
+    fingerprint = Fingerprint.add(fingerprint, dimensions.size());
+    for (Dimension dimension : dimensions) {
+      fingerprint = dimension.addTo(fingerprint);
+    }
+    return fingerprint;
   }
 
   static boolean isDimensionValid(Dimension dimension) {
@@ -160,16 +297,16 @@ public final class DimensionList {
     // dimension with empty keys. DimensionLists will always be normalized upon creation. At the
     // point where this method is used, all dimensions should be part of a dimension list, and
     // therefore never contain null or empty dimension keys.
-    String key = dimension.getKey();
-    if (key == null || key.isEmpty()) {
-      logger.warning("dimension key is null or empty.");
+    if (!dimension.hasKey()) {
+      emptyKeyWarning.warn(() -> "dimension key is null or empty.");
       return false;
     }
 
-    String value = dimension.getValue();
-    if (value == null || value.isEmpty()) {
-      logger.warning(
-          () -> String.format("dimension value for dimension key '%s' is null or empty.", key));
+    if (!dimension.hasValue()) {
+      emptyValueWarning.warn(
+          () ->
+              String.format(
+                  "dimension value for dimension key '%s' is null or empty.", dimension.getKey()));
       return false;
     }
 
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * A bounded, thread-safe interner for dimension values. Values such as host names, HTTP methods or
+ * status codes repeat across many {@link Dimension Dimensions}. When a {@link DimensionList} is
+ * created with an interner (see {@link DimensionList#fromCollection(java.util.Collection,
+ * DimensionValueInterner)}), every distinct value is normalized and escaped only once, and all
+ * {@link Dimension Dimensions} with that value share the same normalized and escaped
+ * representation.
+ *
+ * <p>The interner holds at most {@code maxSize} distinct values. Once it is full, rarely used
+ * values are evicted to make room for new ones.
+ */
+public final class DimensionValueInterner {
+  private final BoundedCache<String, Value> cache;
+
+  /** The shared, normalized representation of one dimension value. */
+  static final class Value {
+    // the normalized value, if it cannot be stored in its compact form.
+    final String value;
+    // the normalized value in its compact form, if it only contains Latin-1 characters.
+    final byte[] compactValue;
+    // the escaped, compact value. The same instance as compactValue if nothing needs to be
+    // escaped, null if the value is empty or not compact.
+    final byte[] escapedValue;
+
+    private Value(String rawValue) {
+      String normalizedValue = Normalize.dimensionValue(rawValue);
+      byte[] compact = Latin1.encode(normalizedValue);
+      this.value = compact == null ? normalizedValue : null;
+      this.compactValue = compact;
+
+      if (compact == null || compact.length == 0) {
+        this.escapedValue = null;
+      } else if (!Normalize.needToEscapeDimensionValue(compact)) {
+        this.escapedValue = compact;
+      } else {
+        StringBuilder escaped = new StringBuilder(compact.length + 8);
+        Normalize.appendNormalizedEscapedDimensionValue(escaped, rawValue);
+        this.escapedValue = Latin1.encode(escaped.toString());
+      }
+    }
+  }
+
+  private DimensionValueInterner(int maxSize) {
+    this.cache = new BoundedCache<>(maxSize);
+  }
+
+  /**
+   * Create a new {@link DimensionValueInterner}.
+   *
+   * @param maxSize The maximum number of distinct dimension values to keep.
+   * @return A new {@link DimensionValueInterner}.
+   */
+  public static DimensionValueInterner create(int maxSize) {
+    return new DimensionValueInterner(maxSize);
+  }
+
+  /**
+   * Get the shared representation for a raw (not yet normalized) dimension value.
+   *
+   * @param rawValue The dimension value as passed by the user. Must not be null.
+   */
+  Value intern(String rawValue) {
+    return cache.get(rawValue, Value::new);
+  }
+
+  /** @return The number of distinct values currently held by the interner. */
+  public int size() {
+    return cache.size();
+  }
+
+  /** @return The number of lookups that were served by an already interned value. */
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  /** @return The number of lookups for which the value had to be normalized and interned. */
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+}
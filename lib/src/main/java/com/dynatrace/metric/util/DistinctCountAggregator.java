@@ -0,0 +1,191 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Counts distinct values, e.g. unique users or IP addresses, per series in a {@link
+ * DistinctCountSketch}. Each flush emits one "gauge," line per series that recorded values, with
+ * the estimated number of distinct values recorded since the previous flush. Series are identified
+ * by their normalized metric key and their {@link DimensionList}.
+ *
+ * <p>Series that recorded nothing for 10 flushes in a row are evicted. Series whose sketch was
+ * returned by {@link #sketch} are kept, since the caller may still record to it.
+ */
+public final class DistinctCountAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(DistinctCountAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  private final SeriesMap<Series> series;
+  private final int precision;
+
+  private DistinctCountAggregator(MetricBuilderFactory factory, int precision) {
+    this.series = new SeriesMap<>(factory);
+    this.precision = precision;
+  }
+
+  /**
+   * Create a new {@link DistinctCountAggregator} without prefix or default dimensions, whose
+   * sketches have a precision of 12.
+   *
+   * @return A new {@link DistinctCountAggregator}.
+   */
+  public static DistinctCountAggregator create() {
+    return builder().build();
+  }
+
+  /**
+   * @return A new {@link DistinctCountAggregatorBuilder} to configure a {@link
+   *     DistinctCountAggregator}.
+   */
+  public static DistinctCountAggregatorBuilder builder() {
+    return new DistinctCountAggregatorBuilder();
+  }
+
+  /**
+   * Get the sketch for a series, creating it if it does not exist yet. Keep the returned sketch to
+   * record to it without looking up the series again. Values recorded to it, or merged into it, are
+   * exported and removed from the sketch with every flush. Series whose sketch was returned are
+   * never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link DistinctCountSketch} of the series.
+   */
+  public DistinctCountSketch sketch(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, Series.class, this::newSeries).sketch;
+  }
+
+  /**
+   * Record a value to the sketch of a series, see {@link #sketch}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The recorded value.
+   */
+  public void record(String metricKey, DimensionList dimensions, long value) {
+    Series s = series.get(metricKey, dimensions, Series.class, this::newSeries);
+    s.sketch.record(value);
+    series.recorded(s);
+  }
+
+  /**
+   * Record a value to the sketch of a series, see {@link #sketch}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The recorded value.
+   */
+  public void record(String metricKey, DimensionList dimensions, String value) {
+    Series s = series.get(metricKey, dimensions, Series.class, this::newSeries);
+    s.sketch.record(value);
+    series.recorded(s);
+  }
+
+  private Series newSeries(SeriesKey key) {
+    return new Series(key, DistinctCountSketch.create(precision));
+  }
+
+  /**
+   * Serialize the estimated number of distinct values for every series that recorded values since
+   * the last flush, and reset all sketches.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public List<String> flush(Instant timestamp) {
+    MetricBuilderFactory factory = series.getFactory();
+    List<String> lines = new ArrayList<>();
+    series.drainAll(
+        s -> {
+          long estimate = s.sketch.drain().getEstimate();
+          if (estimate == 0) {
+            return false;
+          }
+          try {
+            lines.add(
+                s.key
+                    .newMetricBuilder(factory, timestamp)
+                    .setLongGaugeValue(estimate)
+                    .serializeMetricLine());
+          } catch (MetricException e) {
+            serializationWarning.warn(
+                () -> String.format("dropping distinct count '%s': %s", s.key, e.getMessage()));
+          }
+          return true;
+        });
+    return lines;
+  }
+
+  private static final class Series extends SeriesMap.State {
+    final DistinctCountSketch sketch;
+
+    Series(SeriesKey key, DistinctCountSketch sketch) {
+      super(key);
+      this.sketch = sketch;
+    }
+  }
+
+  /** Builder class for {@link DistinctCountAggregator} objects. */
+  public static class DistinctCountAggregatorBuilder {
+    private MetricBuilderFactory factory;
+    private int precision = DistinctCountSketch.DEFAULT_PRECISION;
+
+    private DistinctCountAggregatorBuilder() {}
+
+    /**
+     * Set the {@link MetricBuilderFactory} to create metric lines with, so they carry its prefix,
+     * default dimensions and Dynatrace metadata.
+     *
+     * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+     * @return this
+     */
+    public DistinctCountAggregatorBuilder withMetricBuilderFactory(MetricBuilderFactory factory) {
+      this.factory = factory;
+      return this;
+    }
+
+    /**
+     * Set the precision of the sketches, see {@link DistinctCountSketch#create(int)}. Defaults to
+     * 12, which takes 4 KB per series.
+     *
+     * @param precision The base-2 logarithm of the number of registers per sketch.
+     * @return this
+     * @throws IllegalArgumentException if the precision is not between 4 and 18.
+     */
+    public DistinctCountAggregatorBuilder withPrecision(int precision) {
+      if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+        throw new IllegalArgumentException(
+            String.format(
+                "precision must be between %d and %d",
+                HyperLogLog.MIN_PRECISION, HyperLogLog.MAX_PRECISION));
+      }
+      this.precision = precision;
+      return this;
+    }
+
+    /** @return A new {@link DistinctCountAggregator} with the settings of this builder. */
+    public DistinctCountAggregator build() {
+      MetricBuilderFactory localFactory =
+          factory != null ? factory : MetricBuilderFactory.builder().build();
+      return new DistinctCountAggregator(localFactory, precision);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * A mergeable sketch that estimates the number of distinct values recorded to it, e.g. unique users
+ * or IP addresses, without storing the values (see <a
+ * href="https://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf">HyperLogLog</a>). Values are
+ * hashed to 64 bits, and the sketch keeps 2^precision one-byte registers, so its memory does not
+ * depend on the number of recorded values: 4 KB at the default precision of 12, for a standard
+ * error of about 1.6%. Each additional bit of precision doubles the memory and divides the error by
+ * the square root of two.
+ *
+ * <p>Recording never blocks, and can happen concurrently with estimating or merging. Sketches from
+ * other threads or processes are merged with {@link #merge} and {@link #fromByteArray}.
+ */
+public final class DistinctCountSketch {
+  static final int DEFAULT_PRECISION = 12;
+
+  private final HyperLogLog registers;
+
+  private DistinctCountSketch(int precision) {
+    this.registers = new HyperLogLog(precision);
+  }
+
+  /**
+   * Create a new, empty {@link DistinctCountSketch} with a precision of 12.
+   *
+   * @return A new {@link DistinctCountSketch}.
+   */
+  public static DistinctCountSketch create() {
+    return create(DEFAULT_PRECISION);
+  }
+
+  /**
+   * Create a new, empty {@link DistinctCountSketch}.
+   *
+   * @param precision The base-2 logarithm of the number of registers, between 4 and 18. The sketch
+   *     takes 2^precision bytes.
+   * @return A new {@link DistinctCountSketch}.
+   * @throws IllegalArgumentException if the precision is not between 4 and 18.
+   */
+  public static DistinctCountSketch create(int precision) {
+    return new DistinctCountSketch(precision);
+  }
+
+  /**
+   * Restore a sketch serialized with {@link #toByteArray()}, e.g. to merge the sketch of another
+   * process.
+   *
+   * @param bytes The serialized sketch.
+   * @return A new {@link DistinctCountSketch} with the registers of the serialized sketch.
+   * @throws IllegalArgumentException if the bytes are not a serialized sketch.
+   */
+  public static DistinctCountSketch fromByteArray(byte[] bytes) {
+    if (bytes == null || bytes.length == 0) {
+      throw new IllegalArgumentException("bytes cannot be null or empty");
+    }
+    int precision = bytes[0];
+    if (precision < HyperLogLog.MIN_PRECISION
+        || precision > HyperLogLog.MAX_PRECISION
+        || bytes.length != 1 + (1 << precision)) {
+      throw new IllegalArgumentException("bytes are not a serialized sketch");
+    }
+    DistinctCountSketch sketch = new DistinctCountSketch(precision);
+    for (int i = 0; i < 1 << precision; i++) {
+      int rank = bytes[1 + i];
+      if (rank < 0 || rank > 64 - precision + 1) {
+        throw new IllegalArgumentException("bytes are not a serialized sketch");
+      }
+      if (rank > 0) {
+        sketch.registers.raise(i, rank);
+      }
+    }
+    return sketch;
+  }
+
+  /** @return The base-2 logarithm of the number of registers. */
+  public int getPrecision() {
+    return registers.getPrecision();
+  }
+
+  /**
+   * Record a value.
+   *
+   * @param value The recorded value.
+   */
+  public void record(long value) {
+    registers.add(Fingerprint.finish(Fingerprint.add(Fingerprint.SEED, value)));
+  }
+
+  /**
+   * Record a value. Strings are counted by their characters, so "1" and the long 1 are different
+   * values. null is counted as a value of its own.
+   *
+   * @param value The recorded value.
+   */
+  public void record(String value) {
+    registers.add(Fingerprint.finish(Fingerprint.add(Fingerprint.SEED, value)));
+  }
+
+  /**
+   * Add all values recorded to another sketch to this sketch. The other sketch is not changed.
+   *
+   * @param other The sketch to merge into this one.
+   * @throws IllegalArgumentException if the other sketch has a different precision.
+   */
+  public void merge(DistinctCountSketch other) {
+    registers.merge(other.registers);
+  }
+
+  /**
+   * Serialize the sketch to 2^precision + 1 bytes, to merge it in another process with {@link
+   * #fromByteArray}. Values are hashed the same way on every JVM.
+   *
+   * @return The serialized sketch.
+   */
+  public byte[] toByteArray() {
+    int precision = registers.getPrecision();
+    byte[] bytes = new byte[1 + (1 << precision)];
+    bytes[0] = (byte) precision;
+    for (int i = 0; i < 1 << precision; i++) {
+      bytes[1 + i] = (byte) registers.getRegister(i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Move all values recorded so far into a new sketch, and reset this sketch. Values that are
+   * recorded concurrently end up in either of the sketches.
+   */
+  DistinctCountSketch drain() {
+    DistinctCountSketch snapshot = new DistinctCountSketch(registers.getPrecision());
+    registers.drainInto(snapshot.registers);
+    return snapshot;
+  }
+
+  /** @return The estimated number of distinct recorded values, 0 if no values were recorded. */
+  public long getEstimate() {
+    return registers.estimate();
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * 64-bit fingerprints of series, used as compact keys instead of the metric key and dimension
+ * strings. Characters are hashed with FNV-1a and the result is finished with the MurmurHash3
+ * finalizer, so fingerprints spread evenly over all 64 bits. Strings are prefixed with their length
+ * so that concatenations cannot collide. With millions of series, the chance that two series share
+ * a fingerprint is still in the order of one in a million.
+ */
+final class Fingerprint {
+  static final long SEED = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private Fingerprint() {}
+
+  static long add(long hash, long value) {
+    for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+      hash = (hash ^ ((value >>> shift) & 0xFF)) * PRIME;
+    }
+    return hash;
+  }
+
+  static long add(long hash, String s) {
+    if (s == null) {
+      return add(hash, -1L);
+    }
+    hash = add(hash, s.length());
+    for (int i = 0; i < s.length(); i++) {
+      hash = (hash ^ s.charAt(i)) * PRIME;
+    }
+    return hash;
+  }
+
+  /** Same result as {@link #add(long, String)} on the decoded string. */
+  static long addLatin1(long hash, byte[] bytes) {
+    hash = add(hash, bytes.length);
+    for (byte b : bytes) {
+      hash = (hash ^ (b & 0xFF)) * PRIME;
+    }
+    return hash;
+  }
+
+  static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** @return the fingerprint of a normalized metric key and its dimensions. */
+  static long of(String normalizedMetricKey, DimensionList dimensions) {
+    return finish(dimensions.addTo(add(SEED, normalizedMetricKey)));
+  }
+}
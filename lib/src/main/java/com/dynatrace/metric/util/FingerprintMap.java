@@ -0,0 +1,140 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+/**
+ * An open-addressing hash map from series {@link Fingerprint Fingerprints} to a long value, which
+ * also remembers when each entry was last used. Entries are stored in parallel primitive arrays, so
+ * an entry takes at most 48 bytes at the maximum load factor of 0.5, and no objects are allocated
+ * per entry. Collisions are resolved with linear probing.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class FingerprintMap {
+  // fingerprints are never 0 in the table, so 0 marks a free slot.
+  private static final long FREE = 0;
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private long[] values;
+  private long[] lastUsed;
+  private int size;
+
+  FingerprintMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    lastUsed = new long[capacity];
+    size = 0;
+  }
+
+  private static long key(long fingerprint) {
+    return fingerprint == FREE ? 1 : fingerprint;
+  }
+
+  /** @return the smallest power of two that holds the passed number of entries. */
+  private static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < entries * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int capacity() {
+    return keys.length;
+  }
+
+  /** @return the slot of the fingerprint, or -1 if it is not in the map. */
+  int find(long fingerprint) {
+    long key = key(fingerprint);
+    int mask = keys.length - 1;
+    for (int slot = (int) key & mask; ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      if (keys[slot] == FREE) {
+        return -1;
+      }
+    }
+  }
+
+  long valueAt(int slot) {
+    return values[slot];
+  }
+
+  void setValueAt(int slot, long value, long now) {
+    values[slot] = value;
+    lastUsed[slot] = now;
+  }
+
+  /** Add a fingerprint that is not in the map yet. */
+  void add(long fingerprint, long value, long now) {
+    if ((size + 1) * 2 > keys.length) {
+      rehash(capacityFor(size + 1), false, 0);
+    }
+    insert(key(fingerprint), value, now);
+  }
+
+  private void insert(long key, long value, long now) {
+    int mask = keys.length - 1;
+    int slot = (int) key & mask;
+    while (keys[slot] != FREE) {
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    setValueAt(slot, value, now);
+    size++;
+  }
+
+  /**
+   * Remove all entries that were not used since the cutoff, and shrink the table if it became
+   * mostly empty.
+   *
+   * @return the number of removed entries.
+   */
+  int removeUnusedSince(long cutoff) {
+    int remaining = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != FREE && lastUsed[slot] - cutoff >= 0) {
+        remaining++;
+      }
+    }
+    int removed = size - remaining;
+    if (removed > 0) {
+      rehash(capacityFor(remaining), true, cutoff);
+    }
+    return removed;
+  }
+
+  // re-inserts all entries, or only those used since the cutoff, into a new table.
+  private void rehash(int capacity, boolean evict, long cutoff) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    long[] oldLastUsed = lastUsed;
+    allocate(capacity);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != FREE && (!evict || oldLastUsed[slot] - cutoff >= 0)) {
+        insert(oldKeys[slot], oldValues[slot], oldLastUsed[slot]);
+      }
+    }
+  }
+}
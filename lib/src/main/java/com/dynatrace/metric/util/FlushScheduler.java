@@ -0,0 +1,275 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically flushes the registered {@link MetricAggregator MetricAggregators} and hands their
+ * lines to a sink. Windows are aligned to the wall clock rather than to the start of the scheduler,
+ * e.g. with the default interval of 60 seconds, every window ends on a full minute. All lines of a
+ * window carry the end of the window as their timestamp, so lines from different aggregators and
+ * from different processes line up, and windows do not drift.
+ *
+ * <p>At the end of every window, all registered aggregators are flushed one after another, and all
+ * of their lines are handed to the sink at once. Flushes never overlap, even on an executor with
+ * more than one thread, so the sink is never called concurrently.
+ */
+public final class FlushScheduler implements Closeable {
+  private static final Logger logger = Logger.getLogger(FlushScheduler.class.getName());
+
+  static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(60);
+
+  private final List<MetricAggregator> aggregators = new CopyOnWriteArrayList<>();
+  private final Consumer<List<String>> sink;
+  private final long intervalMillis;
+  private final Clock clock;
+  private final ScheduledExecutorService executor;
+  private final boolean ownsExecutor;
+
+  // held while flushing, so that a flush on close does not overlap a scheduled flush. It is never
+  // acquired while holding this.
+  private final Object flushLock = new Object();
+
+  // guarded by this.
+  private ScheduledFuture<?> nextFlush;
+  private Instant lastWindowEnd;
+  private boolean closed;
+  // the end of the window that is being flushed or was flushed last, guarded by flushLock.
+  private Instant flushedWindowEnd;
+
+  private FlushScheduler(
+      Consumer<List<String>> sink,
+      Duration interval,
+      Clock clock,
+      ScheduledExecutorService executor) {
+    this.sink = sink;
+    this.intervalMillis = interval.toMillis();
+    this.clock = clock;
+    this.ownsExecutor = executor == null;
+    this.executor =
+        executor != null
+            ? executor
+            : Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  Thread thread = new Thread(runnable, "dynatrace-metric-flush");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+  }
+
+  /**
+   * Create a new {@link FlushSchedulerBuilder} to configure a {@link FlushScheduler}.
+   *
+   * @param sink Receives the lines of every window that produced lines, e.g. to send them to the
+   *     Dynatrace metrics API.
+   * @return A new {@link FlushSchedulerBuilder}.
+   */
+  public static FlushSchedulerBuilder builder(Consumer<List<String>> sink) {
+    if (sink == null) {
+      throw new IllegalArgumentException("sink cannot be null");
+    }
+    return new FlushSchedulerBuilder(sink);
+  }
+
+  /**
+   * Flush the aggregator at the end of every window, starting with the current window.
+   *
+   * @param aggregator The aggregator to flush.
+   */
+  public void register(MetricAggregator aggregator) {
+    if (aggregator == null) {
+      throw new IllegalArgumentException("aggregator cannot be null");
+    }
+    aggregators.add(aggregator);
+  }
+
+  /**
+   * Stop flushing the aggregator. Values that were recorded since its last flush are not flushed.
+   *
+   * @param aggregator The aggregator to stop flushing.
+   */
+  public void unregister(MetricAggregator aggregator) {
+    aggregators.remove(aggregator);
+  }
+
+  /** @return the end of the window that contains the passed time. */
+  static Instant windowEnd(Instant time, long intervalMillis) {
+    long millis = time.toEpochMilli();
+    return Instant.ofEpochMilli(millis - Math.floorMod(millis, intervalMillis) + intervalMillis);
+  }
+
+  private synchronized void start() {
+    scheduleNextFlush();
+  }
+
+  // guarded by this.
+  private void scheduleNextFlush() {
+    if (closed) {
+      return;
+    }
+    Instant now = clock.instant();
+    Instant windowEnd = windowEnd(now, intervalMillis);
+    // timers may fire slightly before the end of a window, do not flush a window twice.
+    if (lastWindowEnd != null && !windowEnd.isAfter(lastWindowEnd)) {
+      windowEnd = lastWindowEnd.plusMillis(intervalMillis);
+    }
+    lastWindowEnd = windowEnd;
+    Instant end = windowEnd;
+    nextFlush =
+        executor.schedule(
+            () -> {
+              try {
+                runFlush(end);
+              } finally {
+                // an Error thrown by the sink or an aggregator must not end all future flushes.
+                synchronized (this) {
+                  scheduleNextFlush();
+                }
+              }
+            },
+            Duration.between(now, windowEnd).toMillis(),
+            TimeUnit.MILLISECONDS);
+  }
+
+  private void runFlush(Instant windowEnd) {
+    synchronized (flushLock) {
+      // a scheduled flush that started while the scheduler was closed must not flush again.
+      if (flushedWindowEnd != null && !windowEnd.isAfter(flushedWindowEnd)) {
+        return;
+      }
+      flushedWindowEnd = windowEnd;
+      flushWindow(windowEnd);
+    }
+  }
+
+  /** Flush all registered aggregators and hand their lines to the sink. */
+  void flushWindow(Instant windowEnd) {
+    List<String> lines = new ArrayList<>();
+    for (MetricAggregator aggregator : aggregators) {
+      try {
+        lines.addAll(aggregator.flush(windowEnd));
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "failed to flush aggregator", e);
+      }
+    }
+    // warnings whose burst has ended report their suppressed occurrences once per window.
+    ThrottledWarning.reportAllSuppressed();
+    if (lines.isEmpty()) {
+      return;
+    }
+    try {
+      sink.accept(lines);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, String.format("sink failed to accept %d lines", lines.size()), e);
+    }
+  }
+
+  /**
+   * Stop flushing at the end of windows, and flush the values recorded in the current window with
+   * the end of that window as timestamp. The current window is flushed on the calling thread, after
+   * a scheduled flush that is still running has finished. An executor that was passed to the
+   * builder is not shut down.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (nextFlush != null) {
+        nextFlush.cancel(false);
+      }
+    }
+    // the monitor is reentrant, so closing from the sink or an aggregator flushes right away.
+    synchronized (flushLock) {
+      Instant windowEnd = windowEnd(clock.instant(), intervalMillis);
+      // timers may fire slightly before the end of a window, do not flush a window twice.
+      if (flushedWindowEnd != null && !windowEnd.isAfter(flushedWindowEnd)) {
+        windowEnd = flushedWindowEnd.plusMillis(intervalMillis);
+      }
+      flushedWindowEnd = windowEnd;
+      flushWindow(windowEnd);
+    }
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /** Builder class for {@link FlushScheduler} objects. */
+  public static class FlushSchedulerBuilder {
+    private final Consumer<List<String>> sink;
+    private Duration interval = DEFAULT_INTERVAL;
+    private ScheduledExecutorService executor;
+    private Clock clock = Clock.systemUTC();
+
+    private FlushSchedulerBuilder(Consumer<List<String>> sink) {
+      this.sink = sink;
+    }
+
+    /**
+     * Set the length of the windows. Defaults to 60 seconds. Windows are aligned to the epoch, so
+     * intervals that evenly divide a minute or an hour start on full minutes or hours.
+     *
+     * @param interval The length of the windows, at least one millisecond.
+     * @return this
+     * @throws IllegalArgumentException if the interval is null or shorter than one millisecond.
+     */
+    public FlushSchedulerBuilder withInterval(Duration interval) {
+      if (interval == null || interval.toMillis() < 1) {
+        throw new IllegalArgumentException("interval must be at least one millisecond");
+      }
+      this.interval = interval;
+      return this;
+    }
+
+    /**
+     * Run the flushes on the passed executor instead of a daemon thread owned by the scheduler. The
+     * executor is not shut down when the scheduler is closed.
+     *
+     * @param executor The executor to run the flushes on.
+     * @return this
+     */
+    public FlushSchedulerBuilder withExecutor(ScheduledExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    FlushSchedulerBuilder withClock(Clock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /** @return A new {@link FlushScheduler}, which flushes at the end of every window. */
+    public FlushScheduler build() {
+      FlushScheduler scheduler = new FlushScheduler(sink, interval, clock, executor);
+      scheduler.start();
+      return scheduler;
+    }
+  }
+}
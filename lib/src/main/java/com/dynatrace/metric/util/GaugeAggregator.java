@@ -0,0 +1,361 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the last value of every gauge series on the client. Gauges can be set as often as they are
+ * sampled, but a flush only emits a "gauge," line for series whose value moved by more than the
+ * deadband since it was last emitted, and for series that have not been emitted for the heartbeat
+ * interval, so they do not go stale. Series are identified by their normalized metric key and their
+ * {@link DimensionList}. Optionally, gauges that were not set for a number of heartbeats expire,
+ * and are not emitted again until they are set, e.g. once the pool or queue they measure is gone.
+ *
+ * <p>Setting a gauge is a volatile write, plus one more per flush to mark the gauge as set. Only
+ * the flushing thread compares values with the ones last emitted.
+ *
+ * <p>Expired series are evicted after 10 flushes, unless their gauge was returned by {@link
+ * #longGauge} or {@link #doubleGauge}, since the caller may still set it.
+ */
+public final class GaugeAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(GaugeAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  static final Duration DEFAULT_HEARTBEAT = Duration.ofMinutes(5);
+
+  private final SeriesMap<Gauge> series;
+  private final double deadband;
+  private final long heartbeatNanos;
+  // 0 if gauges never expire.
+  private final int expiryHeartbeats;
+  private final LongSupplier nanoClock;
+
+  private GaugeAggregator(
+      MetricBuilderFactory factory,
+      double deadband,
+      Duration heartbeat,
+      int expiryHeartbeats,
+      LongSupplier nanoClock) {
+    this.series = new SeriesMap<>(factory);
+    this.deadband = deadband;
+    this.heartbeatNanos = heartbeat.toNanos();
+    this.expiryHeartbeats = expiryHeartbeats;
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Create a new {@link GaugeAggregator} without prefix or default dimensions, which emits every
+   * change and a heartbeat every five minutes.
+   *
+   * @return A new {@link GaugeAggregator}.
+   */
+  public static GaugeAggregator create() {
+    return builder().build();
+  }
+
+  /** @return A new {@link GaugeAggregatorBuilder} to configure a {@link GaugeAggregator}. */
+  public static GaugeAggregatorBuilder builder() {
+    return new GaugeAggregatorBuilder();
+  }
+
+  /**
+   * Get the long gauge for a series, creating it if it does not exist yet. Keep the returned gauge
+   * to set it without looking up the series again.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link LongGauge} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link DoubleGauge}.
+   */
+  public LongGauge longGauge(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, LongGauge.class, LongGauge::new);
+  }
+
+  /**
+   * Get the double gauge for a series, creating it if it does not exist yet. Keep the returned
+   * gauge to set it without looking up the series again.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link DoubleGauge} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link LongGauge}.
+   */
+  public DoubleGauge doubleGauge(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, DoubleGauge.class, DoubleGauge::new);
+  }
+
+  /**
+   * Set the long gauge of a series, see {@link #longGauge}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The current value.
+   */
+  public void set(String metricKey, DimensionList dimensions, long value) {
+    LongGauge gauge = series.get(metricKey, dimensions, LongGauge.class, LongGauge::new);
+    gauge.set(value);
+    series.recorded(gauge);
+  }
+
+  /**
+   * Set the double gauge of a series, see {@link #doubleGauge}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The current value.
+   */
+  public void set(String metricKey, DimensionList dimensions, double value) {
+    DoubleGauge gauge = series.get(metricKey, dimensions, DoubleGauge.class, DoubleGauge::new);
+    gauge.set(value);
+    series.recorded(gauge);
+  }
+
+  /**
+   * Serialize one gauge line for every series whose value changed by more than the deadband since
+   * it was last emitted, or that was last emitted at least one heartbeat interval ago and has not
+   * expired.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public synchronized List<String> flush(Instant timestamp) {
+    long now = nanoClock.getAsLong();
+    List<String> lines = new ArrayList<>();
+    series.drainAll(gauge -> emitTo(gauge, now, timestamp, lines));
+    return lines;
+  }
+
+  /** @return false if the gauge has no value because it was never set or expired. */
+  private boolean emitTo(Gauge gauge, long now, Instant timestamp, List<String> lines) {
+    // clear the flag before reading the value, so a value set meanwhile marks the gauge again.
+    boolean set = gauge.updated;
+    if (set) {
+      gauge.updated = false;
+      gauge.active = true;
+      gauge.heartbeatsWithoutSet = 0;
+    }
+    if (!gauge.active) {
+      return false;
+    }
+    long bits = gauge.bits;
+    if (gauge.emitted
+        && now - gauge.emittedNanos < heartbeatNanos
+        && !gauge.changed(bits, deadband)) {
+      return true;
+    }
+    // a gauge that was not set since the last flush only emits heartbeats, which are counted.
+    if (!set && expiryHeartbeats > 0 && ++gauge.heartbeatsWithoutSet > expiryHeartbeats) {
+      gauge.active = false;
+      gauge.emitted = false;
+      return false;
+    }
+    try {
+      lines.add(gauge.serialize(gauge.key.newMetricBuilder(series.getFactory(), timestamp), bits));
+    } catch (MetricException e) {
+      serializationWarning.warn(
+          () -> String.format("dropping gauge '%s': %s", gauge.key, e.getMessage()));
+    }
+    // invalid values are not retried before the next change or heartbeat either.
+    gauge.emitted = true;
+    gauge.emittedBits = bits;
+    gauge.emittedNanos = now;
+    return true;
+  }
+
+  private abstract static class Gauge extends SeriesMap.State {
+    // the current value, a long or the bits of a double.
+    volatile long bits;
+    // set by every set since the last flush.
+    volatile boolean updated;
+
+    // only accessed while flushing.
+    // set once the gauge was set, and cleared when it expires.
+    boolean active;
+    int heartbeatsWithoutSet;
+    boolean emitted;
+    long emittedBits;
+    long emittedNanos;
+
+    Gauge(SeriesKey key) {
+      super(key);
+    }
+
+    void setBits(long bits) {
+      this.bits = bits;
+      // written once per flush, repeated sets only read it.
+      if (!updated) {
+        updated = true;
+      }
+    }
+
+    /** @return true if the value moved by more than the deadband since it was emitted. */
+    abstract boolean changed(long bits, double deadband);
+
+    abstract String serialize(Metric.Builder builder, long bits) throws MetricException;
+  }
+
+  /** A long gauge of a single series. */
+  public static final class LongGauge extends Gauge {
+    private LongGauge(SeriesKey key) {
+      super(key);
+    }
+
+    /**
+     * Set the current value of the gauge.
+     *
+     * @param value The current value.
+     */
+    public void set(long value) {
+      setBits(value);
+    }
+
+    @Override
+    boolean changed(long value, double deadband) {
+      if (deadband == 0) {
+        return value != emittedBits;
+      }
+      return Math.abs((double) value - (double) emittedBits) > deadband;
+    }
+
+    @Override
+    String serialize(Metric.Builder builder, long value) throws MetricException {
+      return builder.setLongGaugeValue(value).serializeMetricLine();
+    }
+  }
+
+  /** A double gauge of a single series. */
+  public static final class DoubleGauge extends Gauge {
+    private DoubleGauge(SeriesKey key) {
+      super(key);
+    }
+
+    /**
+     * Set the current value of the gauge.
+     *
+     * @param value The current value.
+     */
+    public void set(double value) {
+      setBits(StripedCells.toBits(value));
+    }
+
+    @Override
+    boolean changed(long bits, double deadband) {
+      if (deadband == 0) {
+        return bits != emittedBits;
+      }
+      double value = StripedCells.toDouble(bits);
+      double emitted = StripedCells.toDouble(emittedBits);
+      // a change from or to NaN is always a change, even though it compares as false.
+      return !(Math.abs(value - emitted) <= deadband);
+    }
+
+    @Override
+    String serialize(Metric.Builder builder, long bits) throws MetricException {
+      return builder.setDoubleGaugeValue(StripedCells.toDouble(bits)).serializeMetricLine();
+    }
+  }
+
+  /** Builder class for {@link GaugeAggregator} objects. */
+  public static class GaugeAggregatorBuilder {
+    private MetricBuilderFactory factory;
+    private double deadband;
+    private Duration heartbeat = DEFAULT_HEARTBEAT;
+    private int expiryHeartbeats;
+    private LongSupplier nanoClock = System::nanoTime;
+
+    private GaugeAggregatorBuilder() {}
+
+    /**
+     * Set the {@link MetricBuilderFactory} to create metric lines with, so they carry its prefix,
+     * default dimensions and Dynatrace metadata.
+     *
+     * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+     * @return this
+     */
+    public GaugeAggregatorBuilder withMetricBuilderFactory(MetricBuilderFactory factory) {
+      this.factory = factory;
+      return this;
+    }
+
+    /**
+     * Set by how much a value has to change before it is emitted again. Defaults to 0, so every
+     * change is emitted.
+     *
+     * @param deadband The absolute change that is not emitted, zero or positive.
+     * @return this
+     * @throws IllegalArgumentException if the deadband is negative or NaN.
+     */
+    public GaugeAggregatorBuilder withDeadband(double deadband) {
+      if (!(deadband >= 0)) {
+        throw new IllegalArgumentException("deadband must be zero or positive");
+      }
+      this.deadband = deadband;
+      return this;
+    }
+
+    /**
+     * Set after which time a value is emitted again, even if it did not change. Defaults to five
+     * minutes.
+     *
+     * @param heartbeat The heartbeat interval, {@link Duration#ZERO} emits every value on every
+     *     flush.
+     * @return this
+     * @throws IllegalArgumentException if the heartbeat is null or negative.
+     */
+    public GaugeAggregatorBuilder withHeartbeat(Duration heartbeat) {
+      if (heartbeat == null || heartbeat.isNegative()) {
+        throw new IllegalArgumentException("heartbeat must be zero or positive");
+      }
+      this.heartbeat = heartbeat;
+      return this;
+    }
+
+    /**
+     * Set after how many heartbeats without a set a gauge expires. An expired gauge is not emitted
+     * until it is set again. Defaults to 0, so gauges never expire.
+     *
+     * @param heartbeats The number of heartbeats a gauge emits after it was last set, or 0 to emit
+     *     heartbeats forever.
+     * @return this
+     * @throws IllegalArgumentException if the number of heartbeats is negative.
+     */
+    public GaugeAggregatorBuilder withExpiry(int heartbeats) {
+      if (heartbeats < 0) {
+        throw new IllegalArgumentException("heartbeats must be zero or positive");
+      }
+      this.expiryHeartbeats = heartbeats;
+      return this;
+    }
+
+    GaugeAggregatorBuilder withNanoClock(LongSupplier nanoClock) {
+      this.nanoClock = nanoClock;
+      return this;
+    }
+
+    /** @return A new {@link GaugeAggregator} with the settings of this builder. */
+    public GaugeAggregator build() {
+      MetricBuilderFactory localFactory =
+          factory != null ? factory : MetricBuilderFactory.builder().build();
+      return new GaugeAggregator(localFactory, deadband, heartbeat, expiryHeartbeats, nanoClock);
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates recorded values into a histogram with fixed, caller-defined bucket boundaries per
+ * series. Each flush emits one "gauge,min=,max=,sum=,count=" summary line per series that recorded
+ * values, and one "count,delta=" line per bucket that counted values since the last flush. Since a
+ * metric key cannot hold both gauges and counters, bucket counts are reported under the metric key
+ * with the suffix ".bucket", and carry the inclusive upper bound of the bucket in the "le"
+ * dimension (e.g. "le=0.1", or "le=+Inf" for the last bucket). Histograms whose normalized metric
+ * key leaves no room for the suffix within the metric key length limit are dropped with a warning,
+ * since the truncated bucket key would collide with the summary key or be cut short.
+ *
+ * <p>Recording finds the bucket with a binary search and does not allocate. Histograms that are
+ * updated from many threads spread their updates over striped cells.
+ *
+ * <p>Series that recorded nothing for 10 flushes in a row are evicted. Series whose histogram was
+ * returned by {@link #histogram} are kept, since the caller may still record to it.
+ */
+public final class HistogramAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(HistogramAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning nonFiniteValueWarning = new ThrottledWarning(logger);
+
+  static final String BUCKET_SUFFIX = "bucket";
+  static final String BOUNDARY_DIMENSION_KEY = "le";
+  static final String INFINITE_BOUNDARY = "+Inf";
+
+  private static final int MIN = 0;
+  private static final int MAX = 1;
+  private static final int SUM = 2;
+  private static final int COUNT = 3;
+  private static final int FIRST_BUCKET = 4;
+
+  private final SeriesMap<Histogram> series;
+  private final double[] boundaries;
+
+  private HistogramAggregator(MetricBuilderFactory factory, double[] boundaries) {
+    this.series = new SeriesMap<>(factory);
+    this.boundaries = boundaries;
+  }
+
+  /**
+   * Create a new {@link HistogramAggregator} without prefix or default dimensions.
+   *
+   * @param boundaries The inclusive upper bounds of the buckets, in increasing order. Values larger
+   *     than the last boundary are counted in an additional bucket.
+   * @return A new {@link HistogramAggregator}.
+   * @throws IllegalArgumentException if the boundaries are not finite and strictly increasing.
+   */
+  public static HistogramAggregator create(double... boundaries) {
+    return create(MetricBuilderFactory.builder().build(), boundaries);
+  }
+
+  /**
+   * Create a new {@link HistogramAggregator} that creates its lines with the passed {@link
+   * MetricBuilderFactory}, so they carry its prefix, default dimensions and Dynatrace metadata.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+   * @param boundaries The inclusive upper bounds of the buckets, in increasing order. Values larger
+   *     than the last boundary are counted in an additional bucket.
+   * @return A new {@link HistogramAggregator}.
+   * @throws IllegalArgumentException if the boundaries are not finite and strictly increasing.
+   */
+  public static HistogramAggregator create(MetricBuilderFactory factory, double... boundaries) {
+    if (boundaries == null) {
+      throw new IllegalArgumentException("boundaries cannot be null");
+    }
+    for (int i = 0; i < boundaries.length; i++) {
+      if (Double.isNaN(boundaries[i]) || Double.isInfinite(boundaries[i])) {
+        throw new IllegalArgumentException("boundaries must be finite");
+      }
+      if (i > 0 && boundaries[i] <= boundaries[i - 1]) {
+        throw new IllegalArgumentException("boundaries must be strictly increasing");
+      }
+    }
+    return new HistogramAggregator(factory, boundaries.clone());
+  }
+
+  /**
+   * Get the histogram for a series, creating it if it does not exist yet. Keep the returned
+   * histogram to record to it without looking up the series again. Series whose histogram was
+   * returned are never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link Histogram} of the series.
+   */
+  public Histogram histogram(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, Histogram.class, this::newHistogram);
+  }
+
+  /**
+   * Record a value to the histogram of a series, see {@link #histogram}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The recorded value.
+   */
+  public void record(String metricKey, DimensionList dimensions, double value) {
+    Histogram histogram = series.get(metricKey, dimensions, Histogram.class, this::newHistogram);
+    histogram.record(value);
+    series.recorded(histogram);
+  }
+
+  private Histogram newHistogram(SeriesKey key) {
+    MetricBuilderFactory factory = series.getFactory();
+    DimensionList[] bucketDimensions = new DimensionList[boundaries.length + 1];
+    for (int i = 0; i < bucketDimensions.length; i++) {
+      String boundary = i < boundaries.length ? Double.toString(boundaries[i]) : INFINITE_BOUNDARY;
+      bucketDimensions[i] =
+          DimensionList.merge(
+              key.getDimensions(),
+              DimensionList.create(Dimension.create(BOUNDARY_DIMENSION_KEY, boundary)));
+    }
+    SeriesKey bucketKey =
+        new SeriesKey(factory, key.getMetricKey() + "." + BUCKET_SUFFIX, key.getDimensions());
+    String normalizedKey = key.getNormalizedMetricKey();
+    if (normalizedKey != null
+        && !(normalizedKey + "." + BUCKET_SUFFIX).equals(bucketKey.getNormalizedMetricKey())) {
+      // normalization truncated the suffix, the histogram cannot be exported.
+      bucketKey = null;
+    }
+    return new Histogram(key, bucketKey, boundaries, bucketDimensions);
+  }
+
+  /**
+   * Serialize the summary and bucket lines for every series that recorded values since the last
+   * flush, and reset all histograms. Concurrent flushes are serialized, since each flush falls back
+   * to the extremes emitted by the previous one.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public synchronized List<String> flush(Instant timestamp) {
+    List<String> lines = new ArrayList<>();
+    series.drainAll(histogram -> histogram.drainTo(series.getFactory(), timestamp, lines));
+    return lines;
+  }
+
+  /** A histogram of a single series. */
+  public static final class Histogram extends SeriesMap.State {
+    // null if the metric key is too long to add the bucket suffix.
+    private final SeriesKey bucketKey;
+    private final double[] boundaries;
+    private final DimensionList[] bucketDimensions;
+    private final StripedCells cells;
+    // the extremes of the last emitted summary, only accessed by the synchronized flush.
+    private double emittedMin = Double.POSITIVE_INFINITY;
+    private double emittedMax = Double.NEGATIVE_INFINITY;
+
+    private Histogram(
+        SeriesKey key, SeriesKey bucketKey, double[] boundaries, DimensionList[] bucketDimensions) {
+      super(key);
+      this.bucketKey = bucketKey;
+      this.boundaries = boundaries;
+      this.bucketDimensions = bucketDimensions;
+      long[] initialValues = new long[FIRST_BUCKET + bucketDimensions.length];
+      initialValues[MIN] = StripedCells.toBits(Double.POSITIVE_INFINITY);
+      initialValues[MAX] = StripedCells.toBits(Double.NEGATIVE_INFINITY);
+      this.cells = new StripedCells(initialValues);
+    }
+
+    /**
+     * Record a value. NaN and infinite values cannot be serialized and are dropped.
+     *
+     * @param value The recorded value.
+     */
+    public void record(double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        nonFiniteValueWarning.warn(
+            () -> String.format("dropping value %s recorded to histogram '%s'", value, key));
+        return;
+      }
+      long bits = StripedCells.toBits(value);
+      cells.accumulate(MIN, bits, StripedCells.DOUBLE_MIN);
+      cells.accumulate(MAX, bits, StripedCells.DOUBLE_MAX);
+      cells.addDouble(SUM, value);
+      cells.add(FIRST_BUCKET + bucket(value), 1);
+      // the count is updated last, so every counted value has updated the other fields.
+      cells.add(COUNT, 1);
+    }
+
+    /** @return the index of the first bucket whose boundary is not smaller than the value. */
+    private int bucket(double value) {
+      int index = Arrays.binarySearch(boundaries, value);
+      return index >= 0 ? index : -index - 1;
+    }
+
+    /** @return false if no values were recorded since the last flush. */
+    private boolean drainTo(MetricBuilderFactory factory, Instant timestamp, List<String> lines) {
+      long count = cells.drain(COUNT);
+      if (count == 0) {
+        return false;
+      }
+      double sum = cells.drainDouble(SUM);
+      double min = StripedCells.toDouble(cells.drain(MIN, StripedCells.DOUBLE_MIN));
+      double max = StripedCells.toDouble(cells.drain(MAX, StripedCells.DOUBLE_MAX));
+      if (min > max) {
+        // the values raced with the previous flush, which already took their extremes.
+        min = emittedMin;
+        max = emittedMax;
+        if (min > max) {
+          min = max = sum / count;
+        }
+      }
+      emittedMin = min;
+      emittedMax = max;
+      // drain all buckets before serializing, so a failed line does not carry bucket counts over
+      // into the next interval, whose buckets would no longer add up to its count.
+      long[] bucketCounts = new long[bucketDimensions.length];
+      for (int i = 0; i < bucketCounts.length; i++) {
+        bucketCounts[i] = cells.drain(FIRST_BUCKET + i);
+      }
+      if (bucketKey == null) {
+        serializationWarning.warn(
+            () ->
+                String.format(
+                    "dropping histogram '%s': metric key is too long to add the suffix '.%s'",
+                    key, BUCKET_SUFFIX));
+        return true;
+      }
+
+      try {
+        lines.add(
+            key.newMetricBuilder(factory, timestamp)
+                .setDoubleSummaryValue(min, max, sum, count)
+                .serializeMetricLine());
+        for (int i = 0; i < bucketCounts.length; i++) {
+          long bucketCount = bucketCounts[i];
+          if (bucketCount != 0) {
+            lines.add(
+                bucketKey
+                    .newMetricBuilder(factory, timestamp, bucketDimensions[i])
+                    .setLongCounterValueDelta(bucketCount)
+                    .serializeMetricLine());
+          }
+        }
+      } catch (MetricException e) {
+        serializationWarning.warn(
+            () -> String.format("dropping histogram '%s': %s", key, e.getMessage()));
+      }
+      return true;
+    }
+  }
+}
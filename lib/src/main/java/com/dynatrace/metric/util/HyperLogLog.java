@@ -0,0 +1,141 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates the number of distinct 64-bit hashes added to it, using 2^precision one-byte registers.
+ * The standard error of the estimate is about 1.04 / sqrt(2^precision), e.g. 1.6% at precision 12,
+ * which takes 4 KB. Registers are packed eight to a long and only ever grow, so adding a hash is a
+ * single CAS that is skipped if the register is already large enough, and sketches of the same
+ * precision are merged by taking the maximum of every register.
+ *
+ * <p>Hashes must be well mixed, like {@link Fingerprint}s, since the estimate relies on the high
+ * bits choosing the register and the remaining bits being uniformly distributed.
+ */
+final class HyperLogLog {
+  static final int MIN_PRECISION = 4;
+  static final int MAX_PRECISION = 18;
+
+  private final int precision;
+  private final AtomicLongArray registers;
+
+  HyperLogLog(int precision) {
+    if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException(
+          String.format("precision must be between %d and %d", MIN_PRECISION, MAX_PRECISION));
+    }
+    this.precision = precision;
+    this.registers = new AtomicLongArray((1 << precision) / 8);
+  }
+
+  int getPrecision() {
+    return precision;
+  }
+
+  /**
+   * Add a hash. Completes in a single CAS, unless other threads update the same eight registers.
+   */
+  void add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // the sentinel bit caps the rank at 64 - precision + 1.
+    int rank = Long.numberOfLeadingZeros(hash << precision | 1L << (precision - 1)) + 1;
+    raise(index, rank);
+  }
+
+  /** Raise a register to at least the passed rank. */
+  void raise(int index, int rank) {
+    int word = index >>> 3;
+    int shift = (index & 7) << 3;
+    long current;
+    do {
+      current = registers.get(word);
+      if ((int) (current >>> shift & 0xFF) >= rank) {
+        return;
+      }
+    } while (!registers.compareAndSet(
+        word, current, current & ~(0xFFL << shift) | (long) rank << shift));
+  }
+
+  int getRegister(int index) {
+    return (int) (registers.get(index >>> 3) >>> ((index & 7) << 3) & 0xFF);
+  }
+
+  /**
+   * Add all hashes of another sketch to this one.
+   *
+   * @throws IllegalArgumentException if the sketches have different precisions.
+   */
+  void merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("cannot merge sketches with different precisions");
+    }
+    for (int i = 0; i < 1 << precision; i++) {
+      int rank = other.getRegister(i);
+      if (rank > 0) {
+        raise(i, rank);
+      }
+    }
+  }
+
+  /**
+   * Move all registers into another sketch of the same precision, and reset them in this sketch.
+   * Hashes that are added concurrently are counted by either of the sketches.
+   */
+  void drainInto(HyperLogLog target) {
+    for (int word = 0; word < registers.length(); word++) {
+      long drained = registers.getAndSet(word, 0);
+      for (int i = 0; drained != 0; i++, drained >>>= 8) {
+        int rank = (int) (drained & 0xFF);
+        if (rank > 0) {
+          target.raise(word << 3 | i, rank);
+        }
+      }
+    }
+  }
+
+  /** @return the estimated number of distinct hashes added. */
+  long estimate() {
+    int m = 1 << precision;
+    double sum = 0;
+    int zeros = 0;
+    for (int i = 0; i < m; i++) {
+      int rank = getRegister(i);
+      sum += Double.longBitsToDouble((long) (1023 - rank) << 52);
+      if (rank == 0) {
+        zeros++;
+      }
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate while many registers are still empty.
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+}
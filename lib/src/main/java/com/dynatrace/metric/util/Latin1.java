@@ -0,0 +1,87 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for storing strings that only contain characters up to U+00FF as one byte per character.
+ * The resulting arrays are only used internally and are never handed out.
+ */
+final class Latin1 {
+  private static final int MAX_LATIN1_CHAR = 0xFF;
+
+  private Latin1() {}
+
+  /**
+   * Encode the string to one byte per character.
+   *
+   * @param s The string to encode.
+   * @return The compact representation, or null if the string is null or contains characters that
+   *     cannot be represented in Latin-1.
+   */
+  static byte[] encode(String s) {
+    if (s == null) {
+      return null;
+    }
+    final int length = s.length();
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c > MAX_LATIN1_CHAR) {
+        return null;
+      }
+      bytes[i] = (byte) c;
+    }
+    return bytes;
+  }
+
+  static String decode(byte[] bytes) {
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  static char charAt(byte[] bytes, int index) {
+    return (char) (bytes[index] & MAX_LATIN1_CHAR);
+  }
+
+  /** Calculates the same hash code as {@link String#hashCode()} on the decoded string. */
+  static int hashCode(byte[] bytes) {
+    int hash = 0;
+    for (byte b : bytes) {
+      hash = 31 * hash + (b & MAX_LATIN1_CHAR);
+    }
+    return hash;
+  }
+
+  /** Checks if the decoded string would be equal to the passed string without decoding it. */
+  static boolean contentEquals(byte[] bytes, String s) {
+    if (s.length() != bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (charAt(bytes, i) != s.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Appends the decoded characters to the builder without creating an intermediate string. */
+  static void appendTo(StringBuilder builder, byte[] bytes) {
+    builder.ensureCapacity(builder.length() + bytes.length);
+    for (byte b : bytes) {
+      builder.append((char) (b & MAX_LATIN1_CHAR));
+    }
+  }
+}
@@ -15,7 +15,6 @@ package com.dynatrace.metric.util;
 
 import java.time.Instant;
 import java.time.ZoneOffset;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -30,14 +29,14 @@ public final class Metric {
 
     // The maximum number of characters per serialized line accepted by the ingest API.
     // Lines exceeding this threshold should be dropped.
-    private static final int METRIC_LINE_MAX_LENGTH = 50_000;
+    static final int METRIC_LINE_MAX_LENGTH = 50_000;
 
-    // The timestamp warning is rate-limited to log only once every time this factor is reached by
-    // the timestampWarningCounter.
-    private static final int TIMESTAMP_WARNING_THROTTLE_FACTOR = 1000;
-    private static final AtomicInteger timestampWarningCounter = new AtomicInteger(0);
+    // The timestamp warning is rate-limited, as invalid timestamps usually affect every metric.
+    private static final ThrottledWarning timestampWarning = new ThrottledWarning(logger);
     private final String metricKey;
     private String prefix;
+    // the normalized prefix, if it was provided by the factory. Normalized on demand otherwise.
+    private String normalizedPrefix;
     private IMetricValue value;
     private Instant time;
     private DimensionList dimensions;
@@ -78,6 +77,17 @@ public final class Metric {
      */
     public Builder setPrefix(String prefix) {
       this.prefix = prefix;
+      this.normalizedPrefix = null;
+      return this;
+    }
+
+    /**
+     * Set the prefix along with its already normalized form, so that the prefix does not have to be
+     * normalized again for every metric key.
+     */
+    Builder setPrefix(String prefix, String normalizedPrefix) {
+      this.prefix = prefix;
+      this.normalizedPrefix = normalizedPrefix;
       return this;
     }
 
@@ -245,17 +255,14 @@ public final class Metric {
 
       int year = timestamp.atZone(ZoneOffset.UTC).getYear();
       if (year < 2000 || year > 3000) {
-        if (timestampWarningCounter.getAndIncrement() == 0) {
-          logger.warning(
-              () ->
-                  String.format(
-                      "Order of magnitude of the timestamp seems off (%s). "
-                          + "The timestamp represents a time before the year 2000 or after the year 3000. "
-                          + "Skipping setting timestamp, the current server time will be added upon ingestion. "
-                          + "Only one out of every %d of these messages will be printed.",
-                      timestamp, TIMESTAMP_WARNING_THROTTLE_FACTOR));
-        }
-        timestampWarningCounter.compareAndSet(TIMESTAMP_WARNING_THROTTLE_FACTOR, 0);
+        timestampWarning.warn(
+            () ->
+                String.format(
+                    "Order of magnitude of the timestamp seems off (%s). "
+                        + "The timestamp represents a time before the year 2000 or after the year 3000. "
+                        + "Skipping setting timestamp, the current server time will be added upon ingestion. "
+                        + "This message is logged at most once per minute.",
+                    timestamp));
 
         // do not set the timestamp, metric will be exported without timestamp and the current
         // server timestamp is added upon ingestion.
@@ -322,22 +329,7 @@ public final class Metric {
       // the two required arguments, metric key and value, are set and valid, so we start assembling
       // the metric line here.
       StringBuilder builder = new StringBuilder(normalizedKeyString);
-
-      // combine default dimensions, dynamic dimensions and Dynatrace metadata dimensions into one
-      // list.
-      DimensionList allDimensions =
-          DimensionList.merge(
-              this.defaultDimensions, this.dimensions, this.dynatraceMetadataDimensions);
-      String dimensionsString = null;
-      if (!allDimensions.isEmpty()) {
-        dimensionsString = allDimensions.serialize();
-      }
-
-      // if any dimensions are present, serialize and append them to the metric string.
-      if (dimensionsString != null && !dimensionsString.isEmpty()) {
-        builder.append(",");
-        builder.append(dimensionsString);
-      }
+      appendDimensions(builder);
       builder.append(" ");
 
       // add the serialized value to the metric string.
@@ -364,6 +356,37 @@ public final class Metric {
       return builder.toString();
     }
 
+    /**
+     * Serializes the part of the metric line that identifies the series: the normalized metric key
+     * and all dimensions, without value and timestamp.
+     *
+     * @throws MetricException if the metric key is invalid.
+     */
+    String serializeSeries() throws MetricException {
+      StringBuilder builder = new StringBuilder(getNormalizedMetricKey());
+      appendDimensions(builder);
+      return builder.toString();
+    }
+
+    private void appendDimensions(StringBuilder builder) {
+      // combine default dimensions, dynamic dimensions and Dynatrace metadata dimensions into one
+      // list.
+      DimensionList allDimensions =
+          DimensionList.merge(
+              this.defaultDimensions, this.dimensions, this.dynatraceMetadataDimensions);
+
+      // if any dimensions are present, serialize them straight into the metric string. Roll back
+      // the separator if none of them turned out to be valid.
+      if (!allDimensions.isEmpty()) {
+        int lengthWithoutDimensions = builder.length();
+        builder.append(",");
+        allDimensions.serializeTo(builder);
+        if (builder.length() == lengthWithoutDimensions + 1) {
+          builder.setLength(lengthWithoutDimensions);
+        }
+      }
+    }
+
     /**
      * Creates a Dynatrace Metadata line containing unit and description, if set. Metadata lines can
      * be sent to the same Dynatrace metrics API and contain additional information about the
@@ -420,7 +443,10 @@ public final class Metric {
       if (this.prefix == null || this.prefix.isEmpty()) {
         normalizedMetricKey = Normalize.metricKey(metricKey);
       } else {
-        normalizedMetricKey = Normalize.metricKey(String.format("%s.%s", prefix, metricKey));
+        if (normalizedPrefix == null) {
+          normalizedPrefix = Normalize.metricKey(prefix);
+        }
+        normalizedMetricKey = Normalize.metricKey(prefix, normalizedPrefix, metricKey);
       }
 
       if (normalizedMetricKey == null || normalizedMetricKey.isEmpty()) {
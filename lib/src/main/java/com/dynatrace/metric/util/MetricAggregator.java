@@ -0,0 +1,34 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Accumulates recorded values per series on the client and turns them into metric lines when
+ * flushed. Recording into an aggregator is cheap and thread-safe; serialization only happens once
+ * per series and flush.
+ */
+public interface MetricAggregator {
+  /**
+   * Serialize the values recorded since the last flush and start a new interval. Series that cannot
+   * be serialized are dropped.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines, at most one per series and value type.
+   */
+  List<String> flush(Instant timestamp);
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Serializes large batches of {@link Metric.Builder Metric.Builders} into request payloads. Every
+ * payload holds at most {@link DynatraceMetricApiConstants#getPayloadLinesLimit()} lines and is
+ * serialized by its own task, so batches are spread across all threads of the {@link Executor}. The
+ * returned payloads keep the order of the passed metrics.
+ */
+public final class MetricBatchSerializer {
+  private static final Logger logger = Logger.getLogger(MetricBatchSerializer.class.getName());
+
+  private final Executor executor;
+  private final int linesPerPayload;
+
+  private MetricBatchSerializer(Executor executor, int linesPerPayload) {
+    this.executor = executor;
+    this.linesPerPayload = linesPerPayload;
+  }
+
+  /**
+   * Create a new {@link MetricBatchSerializer} that runs on the {@link ForkJoinPool#commonPool()
+   * common pool}.
+   *
+   * @return A new {@link MetricBatchSerializer}.
+   */
+  public static MetricBatchSerializer create() {
+    return create(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Create a new {@link MetricBatchSerializer} that runs on the passed {@link Executor}.
+   *
+   * @param executor The {@link Executor} on which the payloads are serialized.
+   * @return A new {@link MetricBatchSerializer}.
+   */
+  public static MetricBatchSerializer create(Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor cannot be null");
+    }
+    return new MetricBatchSerializer(executor, DynatraceMetricApiConstants.getPayloadLinesLimit());
+  }
+
+  /**
+   * Serialize the passed metrics into newline-separated payloads. Metrics that cannot be serialized
+   * (see {@link Metric.Builder#serializeMetricLine()}) are dropped.
+   *
+   * @param metrics The metrics to serialize.
+   * @return A {@link List} of payloads in the order of the passed metrics. Each payload holds at
+   *     most {@link DynatraceMetricApiConstants#getPayloadLinesLimit()} lines. Payloads in which no
+   *     metric could be serialized are omitted.
+   */
+  public List<String> serialize(List<Metric.Builder> metrics) {
+    if (metrics == null || metrics.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    int payloadCount = (metrics.size() + linesPerPayload - 1) / linesPerPayload;
+    if (payloadCount == 1) {
+      // not worth handing a single payload to another thread.
+      return toPayloadList(Collections.singletonList(serializePayload(metrics)));
+    }
+
+    List<CompletableFuture<String>> futures = new ArrayList<>(payloadCount);
+    for (int start = 0; start < metrics.size(); start += linesPerPayload) {
+      List<Metric.Builder> chunk =
+          metrics.subList(start, Math.min(start + linesPerPayload, metrics.size()));
+      futures.add(CompletableFuture.supplyAsync(() -> serializePayload(chunk), executor));
+    }
+
+    List<String> payloads = new ArrayList<>(payloadCount);
+    for (CompletableFuture<String> future : futures) {
+      payloads.add(future.join());
+    }
+    return toPayloadList(payloads);
+  }
+
+  private static List<String> toPayloadList(List<String> payloads) {
+    List<String> nonEmpty = new ArrayList<>(payloads.size());
+    for (String payload : payloads) {
+      if (!payload.isEmpty()) {
+        nonEmpty.add(payload);
+      }
+    }
+    return nonEmpty;
+  }
+
+  private static String serializePayload(List<Metric.Builder> metrics) {
+    StringBuilder payload = new StringBuilder();
+    for (Metric.Builder metric : metrics) {
+      String line;
+      try {
+        line = metric.serializeMetricLine();
+      } catch (MetricException e) {
+        logger.warning(() -> String.format("dropping metric from batch: %s", e.getMessage()));
+        continue;
+      }
+
+      if (payload.length() > 0) {
+        payload.append('\n');
+      }
+      payload.append(line);
+    }
+    return payload.toString();
+  }
+}
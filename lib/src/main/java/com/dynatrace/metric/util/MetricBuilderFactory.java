@@ -18,12 +18,15 @@ public class MetricBuilderFactory {
   private final DimensionList dynatraceMetadataDimensions;
   private final DimensionList defaultDimensions;
   private final String prefix;
+  // normalized once here instead of once per metric key.
+  private final String normalizedPrefix;
 
   private MetricBuilderFactory(
       DimensionList defaultDimensions, DimensionList dynatraceMetadataDimensions, String prefix) {
     this.dynatraceMetadataDimensions = dynatraceMetadataDimensions;
     this.defaultDimensions = defaultDimensions;
     this.prefix = prefix;
+    this.normalizedPrefix = prefix == null || prefix.isEmpty() ? null : Normalize.metricKey(prefix);
   }
 
   /**
@@ -49,7 +52,7 @@ public class MetricBuilderFactory {
     return Metric.builder(metricKey)
         .setDefaultDimensions(defaultDimensions)
         .setDynatraceMetadataDimensions(dynatraceMetadataDimensions)
-        .setPrefix(prefix);
+        .setPrefix(prefix, normalizedPrefix);
   }
 
   /** Builder class for {@link MetricBuilderFactory} objects. */
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes newline-terminated metric lines as UTF-8 to an {@link OutputStream} or a {@link
+ * WritableByteChannel}. Lines are encoded into a reusable buffer that is handed to the underlying
+ * sink whenever it fills up, so no payload {@link String} has to be assembled in memory.
+ *
+ * <p>Instances are not thread-safe.
+ */
+public final class MetricLineWriter implements Closeable, Flushable {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  // the buffer must at least fit the longest UTF-8 encoding of a single code point.
+  private static final int MIN_BUFFER_SIZE = 4;
+  private static final byte NEWLINE = '\n';
+
+  private final OutputStream outputStream;
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer;
+  private final CharsetEncoder encoder =
+      StandardCharsets.UTF_8
+          .newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  private MetricLineWriter(OutputStream outputStream, WritableByteChannel channel, int bufferSize) {
+    if (bufferSize < MIN_BUFFER_SIZE) {
+      throw new IllegalArgumentException(
+          String.format("bufferSize must be at least %d bytes", MIN_BUFFER_SIZE));
+    }
+    this.outputStream = outputStream;
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * Create a new {@link MetricLineWriter} that writes to the passed {@link OutputStream}.
+   *
+   * @param outputStream The {@link OutputStream} to write to.
+   * @return A new {@link MetricLineWriter} with a default buffer size.
+   */
+  public static MetricLineWriter create(OutputStream outputStream) {
+    return create(outputStream, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new {@link MetricLineWriter} that writes to the passed {@link OutputStream}.
+   *
+   * @param outputStream The {@link OutputStream} to write to.
+   * @param bufferSize The number of bytes that are buffered before writing to the stream.
+   * @return A new {@link MetricLineWriter}.
+   */
+  public static MetricLineWriter create(OutputStream outputStream, int bufferSize) {
+    if (outputStream == null) {
+      throw new IllegalArgumentException("outputStream cannot be null");
+    }
+    return new MetricLineWriter(outputStream, null, bufferSize);
+  }
+
+  /**
+   * Create a new {@link MetricLineWriter} that writes to the passed {@link WritableByteChannel}.
+   *
+   * @param channel The {@link WritableByteChannel} to write to.
+   * @return A new {@link MetricLineWriter} with a default buffer size.
+   */
+  public static MetricLineWriter create(WritableByteChannel channel) {
+    return create(channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Create a new {@link MetricLineWriter} that writes to the passed {@link WritableByteChannel}.
+   *
+   * @param channel The {@link WritableByteChannel} to write to.
+   * @param bufferSize The number of bytes that are buffered before writing to the channel.
+   * @return A new {@link MetricLineWriter}.
+   */
+  public static MetricLineWriter create(WritableByteChannel channel, int bufferSize) {
+    if (channel == null) {
+      throw new IllegalArgumentException("channel cannot be null");
+    }
+    return new MetricLineWriter(null, channel, bufferSize);
+  }
+
+  /**
+   * Serialize the metric and write the resulting line.
+   *
+   * @param metric The {@link Metric.Builder} to serialize.
+   * @throws MetricException if the metric cannot be serialized (see {@link
+   *     Metric.Builder#serializeMetricLine()}). Nothing is written in that case.
+   * @throws IOException if writing to the underlying sink fails.
+   */
+  public void write(Metric.Builder metric) throws MetricException, IOException {
+    writeLine(metric.serializeMetricLine());
+  }
+
+  /**
+   * Write an already serialized metric or metadata line, followed by a newline.
+   *
+   * @param line The line to write. Must not contain line breaks.
+   * @throws IOException if writing to the underlying sink fails.
+   */
+  public void writeLine(String line) throws IOException {
+    final int length = line.length();
+    int offset = 0;
+
+    // fast path: ASCII characters are copied into the buffer as they are.
+    while (offset < length) {
+      char c = line.charAt(offset);
+      if (c >= 0x80) {
+        break;
+      }
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      buffer.put((byte) c);
+      offset++;
+    }
+
+    if (offset < length) {
+      encode(CharBuffer.wrap(line, offset, length));
+    }
+
+    if (!buffer.hasRemaining()) {
+      drain();
+    }
+    buffer.put(NEWLINE);
+  }
+
+  private void encode(CharBuffer chars) throws IOException {
+    encoder.reset();
+    while (true) {
+      CoderResult result = encoder.encode(chars, buffer, true);
+      if (result.isOverflow()) {
+        drain();
+        continue;
+      }
+      if (result.isError()) {
+        // cannot happen with CodingErrorAction.REPLACE, but do not loop forever if it does.
+        throw new CharacterCodingException();
+      }
+      break;
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    if (outputStream != null) {
+      outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+    } else {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Write all buffered lines to the underlying sink and flush it, if it is {@link Flushable}.
+   *
+   * @throws IOException if writing to the underlying sink fails.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (buffer.position() > 0) {
+      drain();
+    }
+    if (outputStream != null) {
+      outputStream.flush();
+    }
+  }
+
+  /**
+   * Flush all buffered lines and close the underlying sink.
+   *
+   * @throws IOException if writing to or closing the underlying sink fails.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if (outputStream != null) {
+        outputStream.close();
+      } else {
+        channel.close();
+      }
+    }
+  }
+}
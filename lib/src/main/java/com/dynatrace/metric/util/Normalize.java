@@ -18,58 +18,37 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 final class Normalize {
   private static final Logger logger = Logger.getLogger(Normalize.class.getName());
-
-  //  Metric keys (mk)
-  //  characters not valid as leading characters in the first identifier key section
-  private static final Pattern re_mk_firstIdentifierSectionStart = Pattern.compile("^[^a-zA-Z_]+");
-  // characters not valid as leading characters in subsequent subsections.
-  private static final Pattern re_mk_subsequentIdentifierSectionStart =
-      Pattern.compile("^[^a-zA-Z0-9_]+");
-  // invalid characters for the rest of the key.
-  private static final Pattern re_mk_invalidCharacters = Pattern.compile("[^a-zA-Z0-9_\\-]+");
+  // bad input tends to repeat for every metric line, so these warnings are throttled.
+  private static final ThrottledWarning invalidDimensionKeyWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning emptyDimensionValueWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning emptyMetricKeyWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning emptyMetricKeySectionWarning = new ThrottledWarning(logger);
 
   // maximum string length of a metric key.
-  private static final int mk_max_length = 250;
-
-  // Dimension keys (dk)
-  // Dimension keys start with a lowercase letter or an underscore.
-  private static final Pattern re_dk_sectionStart = Pattern.compile("^[^a-z_]+");
-  // invalid characters in the rest of the dimension key
-  private static final Pattern re_dk_invalidCharacters = Pattern.compile("[^a-z0-9_\\-:]+");
+  static final int mk_max_length = 250;
 
   // maximum string length of a dimension key.
-  private static final int dk_max_length = 100;
-
-  // Dimension values (dv)
-  // Characters that need to be escaped in dimension values
-  private static final char dv_characterToEscape_quote = '"';
-  private static final char dv_characterToEscape_equals = '=';
-  private static final char dv_characterToEscape_blank = ' ';
-  private static final char dv_characterToEscape_comma = ',';
-  private static final char dv_characterToEscape_backslash = '\\';
-  private static final String dv_charactersToEscape =
-      new StringBuilder(5)
-          .append(dv_characterToEscape_quote)
-          .append(dv_characterToEscape_equals)
-          .append(dv_characterToEscape_blank)
-          .append(dv_characterToEscape_comma)
-          .append(dv_characterToEscape_backslash)
-          .toString();
-  private static final Pattern re_dv_charactersToEscape =
-      Pattern.compile("([" + Pattern.quote(dv_charactersToEscape) + "])");
-  private static final Pattern re_dv_controlCharacters = Pattern.compile("[\\p{C}]+");
-
-  // This regex checks if there is an odd number of trailing backslashes in the string. It can be
-  // read as: {not a slash}{any number of 2-slash pairs}{one slash}{end line}.
-  private static final Pattern re_dv_hasOddNumberOfTrailingBackslashes =
-      Pattern.compile("[^\\\\](?:\\\\\\\\)*\\\\$");
+  static final int dk_max_length = 100;
 
   // maximum string length of a dimension value.
-  private static final int dv_max_length = 250;
+  static final int dv_max_length = 250;
+
+  // Metric and dimension keys come from a small, stable vocabulary, so normalized keys are cached.
+  // Caches are keyed by the raw key after truncation.
+  private static final int KEY_CACHE_SIZE = 4096;
+  // dimension keys that need to be changed are normalized into a per-thread buffer, so only the
+  // resulting string is allocated.
+  private static final ThreadLocal<char[]> dimensionKeyBuffer =
+      ThreadLocal.withInitial(() -> new char[dk_max_length]);
+  private static final BoundedCache<String, String> metricKeyCache =
+      new BoundedCache<>(KEY_CACHE_SIZE);
+  private static final BoundedCache<String, String> metricKeySuffixCache =
+      new BoundedCache<>(KEY_CACHE_SIZE);
+  private static final BoundedCache<String, byte[]> dimensionKeyCache =
+      new BoundedCache<>(KEY_CACHE_SIZE);
 
   private Normalize() {} // static helper class
 
@@ -86,23 +65,67 @@ final class Normalize {
    *     normalization or an empty list if no keys are valid.
    */
   static List<Dimension> dimensionList(Collection<Dimension> dimensions) {
+    return dimensionList(dimensions, null);
+  }
+
+  /**
+   * Normalizes all dimension keys and values for a given collection of Dimensions, using the
+   * interner for dimension values, if set. Does *not* deduplicate dimensions with the same
+   * (normalized) key.
+   *
+   * @param dimensions The dimensions to normalize.
+   * @param interner The interner to share dimension values with, or null to normalize every value.
+   * @return A list holding all elements that were not discarded due to invalid keys after
+   *     normalization or an empty list if no keys are valid.
+   */
+  static List<Dimension> dimensionList(
+      Collection<Dimension> dimensions, DimensionValueInterner interner) {
     List<Dimension> normalized = new ArrayList<>();
     if (dimensions == null) {
       return normalized;
     }
     for (Dimension dimension : dimensions) {
-      String normalizedKey = dimensionKey(dimension.getKey());
-      if (isNullOrEmpty(normalizedKey)) {
-        logger.warning(
-            String.format(
-                "could not normalize dimension key: '%s'. Skipping...", dimension.getKey()));
+      byte[] normalizedKey = compactDimensionKey(dimension.getKey());
+      if (normalizedKey == null) {
+        invalidDimensionKeyWarning.warn(
+            () ->
+                String.format(
+                    "could not normalize dimension key: '%s'. Skipping...", dimension.getKey()));
+      } else if (interner != null && dimension.getValue() != null) {
+        normalized.add(
+            Dimension.createInterned(normalizedKey, interner.intern(dimension.getValue())));
       } else {
-        normalized.add(Dimension.create(normalizedKey, dimensionValue(dimension.getValue())));
+        normalized.add(
+            Dimension.createNormalized(normalizedKey, dimensionValue(dimension.getValue())));
       }
     }
     return normalized;
   }
 
+  /**
+   * Normalizes the dimension key and returns it in its compact form. Results are cached and shared
+   * between all callers, the returned array must not be modified.
+   *
+   * @param key The dimension key to normalize.
+   * @return The Latin-1 encoded normalized key, or null if the key is invalid.
+   */
+  static byte[] compactDimensionKey(String key) {
+    if (isNullOrEmpty(key)) {
+      return null;
+    }
+    if (key.length() > dk_max_length) {
+      key = key.substring(0, dk_max_length);
+    }
+
+    return dimensionKeyCache.get(
+        key,
+        k -> {
+          String normalized = normalizeDimensionKey(k);
+          // normalized keys only contain ASCII characters and can always be encoded.
+          return normalized.isEmpty() ? null : Latin1.encode(normalized);
+        });
+  }
+
   static String dimensionKey(String key) {
     if (isNullOrEmpty(key)) {
       return "";
@@ -111,43 +134,139 @@ final class Normalize {
       key = key.substring(0, dk_max_length);
     }
 
-    String[] sections = key.split("\\.");
-    StringBuilder normalizedKeyBuilder = new StringBuilder();
-    boolean firstSection = true;
+    return normalizeDimensionKey(key);
+  }
+
+  private static String normalizeDimensionKey(String key) {
+    if (isNormalizedDimensionKey(key)) {
+      return key;
+    }
 
-    for (String section : sections) {
-      if (!section.isEmpty()) {
-        // move to lowercase
-        String normalizedSection = section.toLowerCase(Locale.ROOT);
-        // replace consecutive leading invalid characters with an underscore.
-        normalizedSection = re_dk_sectionStart.matcher(normalizedSection).replaceAll("_");
-        // replace consecutive invalid characters within the section with one underscore:
-        normalizedSection = re_dk_invalidCharacters.matcher(normalizedSection).replaceAll("_");
+    String lowerCaseKey = key;
+    if (!isAscii(key)) {
+      // lowercasing can turn non-ASCII characters into valid ones (e.g. the Kelvin sign into 'k'),
+      // and can change the length of the key (e.g. for 'İ').
+      lowerCaseKey = key.toLowerCase(Locale.ROOT);
+    }
+    return buildNormalizedDimensionKey(lowerCaseKey);
+  }
 
-        // re-concatenate the split sections separated with dots.
-        if (!firstSection) {
-          normalizedKeyBuilder.append(".");
+  /** Checks if the dimension key is already normalized, i.e. if normalizing would not change it. */
+  private static boolean isNormalizedDimensionKey(String key) {
+    final int length = key.length();
+    boolean sectionStart = true;
+
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (c == '.') {
+        if (sectionStart) {
+          // empty sections are removed by normalization.
+          return false;
+        }
+        sectionStart = true;
+      } else if (sectionStart) {
+        if (!isDimensionKeySectionStart(c)) {
+          return false;
+        }
+        sectionStart = false;
+      } else if (!isDimensionKeyCharacter(c)) {
+        return false;
+      }
+    }
+    // a trailing dot is removed by normalization.
+    return !sectionStart;
+  }
+
+  /**
+   * Normalizes the dimension key in one pass. Empty sections are dropped, upper case ASCII letters
+   * are lowercased, and every run of invalid characters is replaced with one underscore. Non-ASCII
+   * characters must already have been lowercased.
+   */
+  private static String buildNormalizedDimensionKey(String key) {
+    final int length = key.length();
+    char[] buffer = dimensionKeyBuffer.get();
+    if (buffer.length < length) {
+      // the normalized key is never longer than the key itself.
+      buffer = new char[length];
+      dimensionKeyBuffer.set(buffer);
+    }
+
+    int size = 0;
+    int i = 0;
+    while (i < length) {
+      // skip empty sections
+      while (i < length && key.charAt(i) == '.') {
+        i++;
+      }
+      if (i == length) {
+        break;
+      }
+      if (size > 0) {
+        buffer[size++] = '.';
+      }
+
+      // replace consecutive leading invalid characters with an underscore.
+      if (!isDimensionKeySectionStart(toLowerCaseAscii(key.charAt(i)))) {
+        buffer[size++] = '_';
+        do {
+          i++;
+        } while (i < length
+            && key.charAt(i) != '.'
+            && !isDimensionKeySectionStart(toLowerCaseAscii(key.charAt(i))));
+      }
+
+      // replace consecutive invalid characters within the section with one underscore.
+      while (i < length && key.charAt(i) != '.') {
+        char c = toLowerCaseAscii(key.charAt(i));
+        if (isDimensionKeyCharacter(c)) {
+          buffer[size++] = c;
+          i++;
         } else {
-          firstSection = false;
+          buffer[size++] = '_';
+          do {
+            i++;
+          } while (i < length
+              && key.charAt(i) != '.'
+              && !isDimensionKeyCharacter(toLowerCaseAscii(key.charAt(i))));
         }
+      }
+    }
+    return new String(buffer, 0, size);
+  }
 
-        normalizedKeyBuilder.append(normalizedSection);
+  private static boolean isAscii(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) > 0x7F) {
+        return false;
       }
     }
-    return normalizedKeyBuilder.toString();
+    return true;
+  }
+
+  private static char toLowerCaseAscii(char c) {
+    return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static boolean isDimensionKeySectionStart(char c) {
+    return AsciiClasses.is(c, AsciiClasses.DIMENSION_KEY_SECTION_START);
+  }
+
+  private static boolean isDimensionKeyCharacter(char c) {
+    return AsciiClasses.is(c, AsciiClasses.DIMENSION_KEY);
   }
 
   static String dimensionValue(String value) {
     if (value == null) {
       return "";
     }
-    if (value.length() > dv_max_length) {
-      value = value.substring(0, dv_max_length);
+    if (value.length() <= dv_max_length && !containsControlCharacters(value)) {
+      return value;
     }
-    // collapse contained control chars to an underscore
-    value = re_dv_controlCharacters.matcher(value).replaceAll("_");
 
-    return value;
+    // truncate and collapse contained control chars to an underscore
+    StringBuilder builder = new StringBuilder(Math.min(value.length(), dv_max_length));
+    appendDimensionValue(builder, value, true, false);
+    return builder.toString();
   }
 
   /**
@@ -163,23 +282,26 @@ final class Normalize {
       return true;
     }
 
-    for (int i = 0; i < len; i++) {
-      char c = dimensionValue.charAt(i);
-      if (c == dv_characterToEscape_quote
-          || c == dv_characterToEscape_equals
-          || c == dv_characterToEscape_blank
-          || c == dv_characterToEscape_comma
-          || c == dv_characterToEscape_backslash) {
-        return true;
-      }
+    // checks four characters per step, most dimension values don't contain any of them.
+    return AsciiScanner.containsCharacterToEscape(dimensionValue);
+  }
+
+  /**
+   * Fast check for Latin-1 encoded dimension values, see {@link
+   * #needToEscapeDimensionValue(String)}.
+   */
+  static boolean needToEscapeDimensionValue(byte[] dimensionValue) {
+    if (dimensionValue.length > dv_max_length) {
+      return true;
     }
 
-    return false;
+    return AsciiScanner.containsCharacterToEscape(dimensionValue);
   }
 
   static String escapeDimensionValue(String val) {
     if (isNullOrEmpty(val)) {
-      logger.warning("null or empty dimension value passed to normalization.");
+      emptyDimensionValueWarning.warn(
+          () -> "null or empty dimension value passed to normalization.");
       return val;
     }
 
@@ -188,27 +310,170 @@ final class Normalize {
       return val;
     }
 
-    // escape characters matched by regex with backslash. $1 inserts the matched character.
-    String escaped = re_dv_charactersToEscape.matcher(val).replaceAll("\\\\$1");
-    if (escaped.length() > dv_max_length) {
-      escaped = escaped.substring(0, dv_max_length);
-      if (re_dv_hasOddNumberOfTrailingBackslashes.matcher(escaped).find()) {
-        // string has trailing backslashes. Since every backslash must be escaped, there must be an
-        // even number of backslashes, otherwise the substring operation cut an escaped character
-        // in half: e.g.: "some_long_string," -> escaped: "some_long_string\," -> cut with substring
-        // results in "some_long_string\" since the two slashes were on either side of the char
-        // at which the string was cut using substring. If this is the case, trim the last
-        // backslash character, resulting in a properly escaped string.
-        escaped = escaped.substring(0, dv_max_length - 1);
+    StringBuilder builder = new StringBuilder(dv_max_length);
+    appendDimensionValue(builder, val, false, true);
+    return builder.toString();
+  }
+
+  /**
+   * Escapes an already normalized dimension value and appends it to the builder. The result is the
+   * same as appending the result of {@link #escapeDimensionValue(String)}, without creating an
+   * intermediate string.
+   */
+  static void appendEscapedDimensionValue(StringBuilder builder, String normalizedValue) {
+    if (isNullOrEmpty(normalizedValue)) {
+      emptyDimensionValueWarning.warn(
+          () -> "null or empty dimension value passed to normalization.");
+      return;
+    }
+
+    if (!needToEscapeDimensionValue(normalizedValue)) {
+      builder.append(normalizedValue);
+    } else {
+      appendDimensionValue(builder, normalizedValue, false, true);
+    }
+  }
+
+  /**
+   * Normalizes and escapes a raw dimension value in a single pass and appends it to the builder.
+   * The result is the same as appending {@code escapeDimensionValue(dimensionValue(value))}.
+   */
+  static void appendNormalizedEscapedDimensionValue(StringBuilder builder, String value) {
+    if (isNullOrEmpty(value)) {
+      emptyDimensionValueWarning.warn(
+          () -> "null or empty dimension value passed to normalization.");
+      return;
+    }
+
+    appendDimensionValue(builder, value, true, true);
+  }
+
+  /**
+   * Appends the dimension value to the builder in a single pass.
+   *
+   * <p>If {@code normalize} is set, the value is truncated to the maximum length and every run of
+   * control characters (Unicode category C) is collapsed to one underscore. If {@code escape} is
+   * set, special characters are escaped with a backslash and the appended value is cut to the
+   * maximum length, without leaving half of an escape sequence at the end.
+   */
+  private static void appendDimensionValue(
+      StringBuilder builder, String value, boolean normalize, boolean escape) {
+    final int start = builder.length();
+    final int limit = start + dv_max_length;
+    final int end = normalize ? Math.min(value.length(), dv_max_length) : value.length();
+    boolean truncated = false;
+    boolean inControlRun = false;
+
+    int i = 0;
+    while (i < end) {
+      char c = value.charAt(i);
+      int charCount = 1;
+
+      if (normalize && !isPrintableAscii(c)) {
+        int codePoint = c;
+        // a surrogate pair that was split by truncating the value is a control character.
+        if (Character.isHighSurrogate(c)
+            && i + 1 < end
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+          charCount = 2;
+        }
+        if (isControlCharacter(codePoint)) {
+          if (!inControlRun) {
+            if (builder.length() == limit) {
+              truncated = true;
+              break;
+            }
+            builder.append('_');
+            inControlRun = true;
+          }
+          i += charCount;
+          continue;
+        }
+      }
+      inControlRun = false;
+
+      if (escape && StringValueValidator.shouldEscapeString(c)) {
+        if (builder.length() + 2 > limit) {
+          if (builder.length() < limit) {
+            // the odd trailing backslash is removed below.
+            builder.append('\\');
+          }
+          truncated = true;
+          break;
+        }
+        builder.append('\\').append(c);
+        i++;
+      } else {
+        // surrogate pairs are appended char by char, the limit can split them.
+        for (int j = 0; j < charCount; j++) {
+          if (builder.length() == limit) {
+            truncated = true;
+            break;
+          }
+          builder.append(value.charAt(i + j));
+        }
+        if (truncated) {
+          break;
+        }
+        i += charCount;
+      }
+    }
+
+    if (truncated && escape) {
+      // Every backslash is escaped, so there must be an even number of trailing backslashes.
+      // Otherwise the limit cut an escaped character in half: e.g.: "some_long_string," ->
+      // escaped: "some_long_string\," -> cut results in "some_long_string\". If this is the case,
+      // trim the last backslash character, resulting in a properly escaped string.
+      int trailingBackslashes = 0;
+      for (int j = builder.length() - 1; j >= start && builder.charAt(j) == '\\'; j--) {
+        trailingBackslashes++;
+      }
+      if (trailingBackslashes % 2 == 1) {
+        builder.setLength(builder.length() - 1);
       }
     }
+  }
+
+  private static boolean isPrintableAscii(char c) {
+    return c >= 0x20 && c <= 0x7E;
+  }
 
-    return escaped;
+  /** Checks if the code point is in the Unicode category C ("other"). */
+  private static boolean isControlCharacter(int codePoint) {
+    switch (Character.getType(codePoint)) {
+      case Character.CONTROL:
+      case Character.FORMAT:
+      case Character.PRIVATE_USE:
+      case Character.SURROGATE:
+      case Character.UNASSIGNED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean containsControlCharacters(String value) {
+    final int length = value.length();
+    int i = 0;
+    while (i < length) {
+      char c = value.charAt(i);
+      if (isPrintableAscii(c)) {
+        i++;
+        continue;
+      }
+      int codePoint = value.codePointAt(i);
+      if (isControlCharacter(codePoint)) {
+        return true;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return false;
   }
 
   static String metricKey(String key) {
     if (isNullOrEmpty(key)) {
-      logger.warning("null or empty metric key passed to normalization.");
+      emptyMetricKeyWarning.warn(() -> "null or empty metric key passed to normalization.");
       return null;
     }
 
@@ -216,49 +481,186 @@ final class Normalize {
       key = key.substring(0, mk_max_length);
     }
 
-    String[] sections = key.split("\\.");
-    if (sections.length == 0) {
+    return metricKeyCache.get(key, Normalize::normalizeMetricKey);
+  }
+
+  private static String normalizeMetricKey(String key) {
+    if (isNormalizedMetricKey(key, true)) {
+      return key;
+    }
+    return buildNormalizedMetricKey(key, true);
+  }
+
+  /**
+   * Normalizes the combination of a prefix and a metric key. The result is the same as calling
+   * {@link #metricKey(String)} on "prefix.key", but the prefix is only normalized once (using
+   * {@link #metricKey(String)}) and can be reused for any number of keys.
+   *
+   * @param prefix The prefix as passed by the user. Must not be null or empty.
+   * @param normalizedPrefix The result of calling {@link #metricKey(String)} on the prefix.
+   * @param key The metric key that is appended to the prefix.
+   * @return The normalized combination of prefix and key or null if it is invalid.
+   */
+  static String metricKey(String prefix, String normalizedPrefix, String key) {
+    if (normalizedPrefix == null) {
+      // the first section of the combined key is the first section of the prefix.
       return null;
     }
-    boolean firstSection = true;
-    StringBuilder normalizedKeyBuilder = new StringBuilder();
 
-    for (String section : sections) {
-      // can check if is empty at the very beginning, because if it is not empty it will always be
-      // at least one underscore.
-      if (section.isEmpty()) {
-        if (firstSection) {
-          logger.warning(
-              String.format(
-                  "first metric key section is empty. discarding metric with key %s...", key));
-          return null;
-        } else {
-          // skip empty sections.
-          continue;
+    // the combined key is truncated before it is normalized, so only the part of the key that fits
+    // behind the prefix and the separating dot is relevant.
+    int remainingLength = mk_max_length - prefix.length() - 1;
+    if (remainingLength <= 0) {
+      return normalizedPrefix;
+    }
+    String suffix = String.valueOf(key);
+    if (suffix.length() > remainingLength) {
+      suffix = suffix.substring(0, remainingLength);
+    }
+
+    String normalizedSuffix = metricKeySuffixCache.get(suffix, Normalize::normalizeMetricKeySuffix);
+    if (normalizedSuffix.isEmpty()) {
+      return normalizedPrefix;
+    }
+    return normalizedPrefix + "." + normalizedSuffix;
+  }
+
+  private static String normalizeMetricKeySuffix(String suffix) {
+    // all sections of the key are subsequent sections in the combined key.
+    if (isNormalizedMetricKey(suffix, false)) {
+      return suffix;
+    }
+    return buildNormalizedMetricKey(suffix, false);
+  }
+
+  static BoundedCache<String, String> getMetricKeyCache() {
+    return metricKeyCache;
+  }
+
+  static BoundedCache<String, byte[]> getDimensionKeyCache() {
+    return dimensionKeyCache;
+  }
+
+  /**
+   * Checks if the metric key is already normalized, i.e. if normalizing it would not change it.
+   *
+   * @param key The (truncated) key to check.
+   * @param startsWithFirstSection Whether the first section of the key is the first section of the
+   *     metric key, or if the key is appended to a prefix.
+   */
+  private static boolean isNormalizedMetricKey(String key, boolean startsWithFirstSection) {
+    final int length = key.length();
+    boolean firstSection = startsWithFirstSection;
+    boolean sectionStart = true;
+
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (c == '.') {
+        if (sectionStart) {
+          // empty sections are removed by normalization.
+          return false;
         }
+        sectionStart = true;
+        firstSection = false;
+      } else if (sectionStart) {
+        if (!isMetricKeySectionStart(c, firstSection)) {
+          return false;
+        }
+        sectionStart = false;
+      } else if (!isMetricKeyCharacter(c)) {
+        return false;
+      }
+    }
+    // a trailing dot is removed by normalization.
+    return length == 0 || !sectionStart;
+  }
+
+  /**
+   * Normalizes the metric key in one pass. Empty sections are dropped, a run of invalid characters
+   * at the start of a section is replaced with one underscore, and so is every other run of invalid
+   * characters.
+   */
+  private static String buildNormalizedMetricKey(String key, boolean startsWithFirstSection) {
+    final int length = key.length();
+    StringBuilder builder = new StringBuilder(length);
+    boolean firstSection = startsWithFirstSection;
+
+    int sectionStart = 0;
+    while (sectionStart <= length) {
+      int sectionEnd = key.indexOf('.', sectionStart);
+      if (sectionEnd < 0) {
+        sectionEnd = length;
       }
 
-      String normalizedSection;
-      // first key section cannot start with a number while subsequent sections can.
-      if (firstSection) {
-        normalizedSection = re_mk_firstIdentifierSectionStart.matcher(section).replaceAll("_");
+      if (sectionStart == sectionEnd) {
+        if (firstSection) {
+          if (isOnlyDots(key)) {
+            return null;
+          }
+          emptyMetricKeySectionWarning.warn(
+              () ->
+                  String.format(
+                      "first metric key section is empty. discarding metric with key %s...", key));
+          return null;
+        }
+        // skip empty sections.
       } else {
-        normalizedSection = re_mk_subsequentIdentifierSectionStart.matcher(section).replaceAll("_");
+        if (builder.length() > 0) {
+          builder.append('.');
+        }
+        appendNormalizedMetricKeySection(builder, key, sectionStart, sectionEnd, firstSection);
+        firstSection = false;
       }
+      sectionStart = sectionEnd + 1;
+    }
 
-      // replace invalid chars with an underscore
-      normalizedSection = re_mk_invalidCharacters.matcher(normalizedSection).replaceAll("_");
+    return builder.toString();
+  }
 
-      // re-concatenate the split sections separated with dots.
-      if (!firstSection) {
-        normalizedKeyBuilder.append(".");
+  private static void appendNormalizedMetricKeySection(
+      StringBuilder builder, String key, int start, int end, boolean firstSection) {
+    int i = start;
+    // first key section cannot start with a number while subsequent sections can.
+    if (!isMetricKeySectionStart(key.charAt(i), firstSection)) {
+      builder.append('_');
+      do {
+        i++;
+      } while (i < end && !isMetricKeySectionStart(key.charAt(i), firstSection));
+    }
+
+    // replace runs of invalid chars with an underscore
+    while (i < end) {
+      char c = key.charAt(i);
+      if (isMetricKeyCharacter(c)) {
+        builder.append(c);
+        i++;
       } else {
-        firstSection = false;
+        builder.append('_');
+        do {
+          i++;
+        } while (i < end && !isMetricKeyCharacter(key.charAt(i)));
       }
+    }
+  }
 
-      normalizedKeyBuilder.append(normalizedSection);
+  private static boolean isOnlyDots(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      if (key.charAt(i) != '.') {
+        return false;
+      }
     }
+    return true;
+  }
+
+  private static boolean isMetricKeySectionStart(char c, boolean firstSection) {
+    return AsciiClasses.is(
+        c,
+        firstSection
+            ? AsciiClasses.METRIC_KEY_FIRST_SECTION_START
+            : AsciiClasses.METRIC_KEY_SECTION_START);
+  }
 
-    return normalizedKeyBuilder.toString();
+  private static boolean isMetricKeyCharacter(char c) {
+    return AsciiClasses.is(c, AsciiClasses.METRIC_KEY);
   }
 }
@@ -0,0 +1,488 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongBinaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates delta counters, summaries and gauges for millions of series in native memory, so the
+ * retained heap does not grow with the number of series and the garbage collector never scans their
+ * state. Series live in an open-addressing table keyed by the 64-bit {@link Fingerprint} of their
+ * normalized metric key and dimensions. Each series takes one 64-byte slot, which holds the
+ * fingerprint, a reference to the serialized "key,dimensions" prefix of its lines, and its
+ * aggregation state. Prefixes are stored as UTF-8 in an arena of native memory, and are serialized
+ * only once, when the series is created.
+ *
+ * <p>Looking up, creating and updating series never blocks: slots are claimed and updated with
+ * atomic instructions. Looking up a series returns a primitive handle, which is used to update it.
+ * Both the table and the arena have a fixed size. When either is full, no new series are created,
+ * and looking them up returns {@link #NO_SERIES}. The same holds for series whose lines would
+ * exceed the line length accepted by the ingest API, which {@link Metric.Builder} would drop. Such
+ * series take neither a slot nor arena space, and do not count against the maximum number of
+ * series.
+ *
+ * <p>Native memory is only released by {@link #close()}, which must not be called while other
+ * threads still use the registry. The registry requires {@code sun.misc.Unsafe}, see {@link
+ * #isSupported()}.
+ */
+public final class OffHeapSeriesRegistry implements MetricAggregator, Closeable {
+  private static final Logger logger = Logger.getLogger(OffHeapSeriesRegistry.class.getName());
+  private static final ThrottledWarning fullWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  /** Returned instead of a handle if a series cannot be created. */
+  public static final long NO_SERIES = -1;
+
+  static final int SLOT_BYTES = 64;
+  private static final int PREFIX_LENGTH_BITS = 20;
+  private static final int OFFSET_SHIFT = PREFIX_LENGTH_BITS + 8;
+  // the longest value and timestamp that follow the prefix: " gauge,min=<double>,max=<double>,
+  // sum=<double>,count=<long> <long>", with up to 24 characters per double and 19 per long.
+  private static final int MAX_SUFFIX_LENGTH = 1 + 10 + 24 + 5 + 24 + 5 + 24 + 7 + 19 + 1 + 19;
+
+  // slot layout, all fields are longs.
+  private static final int FINGERPRINT = 0;
+  // arena offset << 28 | prefix length << 8 | type, written once the prefix is in the arena.
+  private static final int META = 8;
+  private static final int VALUE = 16;
+  private static final int SUM = 24;
+  private static final int MIN = 32;
+  private static final int MAX = 40;
+  private static final int EMITTED_MIN = 48;
+  private static final int EMITTED_MAX = 56;
+
+  private static final int COUNTER = 1;
+  private static final int SUMMARY = 2;
+  private static final int GAUGE = 3;
+  // the series could not be created, e.g. because the arena is full or its lines would be too long.
+  private static final long DEAD = -1;
+
+  private static final long POSITIVE_INFINITY =
+      Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+  private static final long NEGATIVE_INFINITY =
+      Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+
+  private final MetricBuilderFactory factory;
+  private final int maxSeries;
+  private final int mask;
+  private final long table;
+  private final long arena;
+  private final long arenaBytes;
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong arenaUsed = new AtomicLong();
+  private volatile boolean closed;
+
+  private OffHeapSeriesRegistry(MetricBuilderFactory factory, int maxSeries, long arenaBytes) {
+    this.factory = factory;
+    this.maxSeries = maxSeries;
+    int capacity = Integer.highestOneBit(Math.max(2, maxSeries + maxSeries / 3) - 1) << 1;
+    this.mask = capacity - 1;
+    this.arenaBytes = arenaBytes;
+    this.table = UnsafeMemory.allocateZeroed((long) capacity * SLOT_BYTES);
+    long arenaAddress;
+    try {
+      arenaAddress = UnsafeMemory.allocateZeroed(arenaBytes);
+    } catch (RuntimeException | Error e) {
+      UnsafeMemory.free(table);
+      throw e;
+    }
+    this.arena = arenaAddress;
+  }
+
+  /** @return true if native memory can be used on this JVM. */
+  public static boolean isSupported() {
+    return UnsafeMemory.isAvailable();
+  }
+
+  /**
+   * Create a new {@link OffHeapSeriesRegistry} that creates its lines with the passed {@link
+   * MetricBuilderFactory}.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+   * @param maxSeries The maximum number of series. The table takes 64 bytes per slot, and has
+   *     between 4/3 and 8/3 slots per series.
+   * @param arenaBytes The native memory for the serialized "key,dimensions" prefixes of all series.
+   * @return A new {@link OffHeapSeriesRegistry}.
+   * @throws IllegalArgumentException if the factory is null, or the sizes are not positive.
+   * @throws UnsupportedOperationException if native memory cannot be used, see {@link
+   *     #isSupported()}.
+   */
+  public static OffHeapSeriesRegistry create(
+      MetricBuilderFactory factory, int maxSeries, long arenaBytes) {
+    if (factory == null) {
+      throw new IllegalArgumentException("factory cannot be null");
+    }
+    if (maxSeries < 1 || maxSeries > (1 << 28)) {
+      throw new IllegalArgumentException("maxSeries must be between 1 and 2^28");
+    }
+    if (arenaBytes < 1 || arenaBytes >= (1L << (63 - OFFSET_SHIFT))) {
+      throw new IllegalArgumentException("arenaBytes must be between 1 and 2^35");
+    }
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("sun.misc.Unsafe is not available");
+    }
+    return new OffHeapSeriesRegistry(factory, maxSeries, arenaBytes);
+  }
+
+  /**
+   * Get the handle of a long delta counter series, creating the series if it does not exist yet.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The handle to pass to {@link #add}, or {@link #NO_SERIES} if the metric key is invalid
+   *     or the registry is full.
+   */
+  public long counter(String metricKey, DimensionList dimensions) {
+    return series(metricKey, dimensions, COUNTER);
+  }
+
+  /**
+   * Get the handle of a double summary series, creating the series if it does not exist yet.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The handle to pass to {@link #record}, or {@link #NO_SERIES} if the metric key is
+   *     invalid or the registry is full.
+   */
+  public long summary(String metricKey, DimensionList dimensions) {
+    return series(metricKey, dimensions, SUMMARY);
+  }
+
+  /**
+   * Get the handle of a double gauge series, creating the series if it does not exist yet.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The handle to pass to {@link #set}, or {@link #NO_SERIES} if the metric key is invalid
+   *     or the registry is full.
+   */
+  public long gauge(String metricKey, DimensionList dimensions) {
+    return series(metricKey, dimensions, GAUGE);
+  }
+
+  /**
+   * Add to a counter series. Completes in a single atomic instruction.
+   *
+   * @param counter The handle returned by {@link #counter}.
+   * @param delta The value to add.
+   */
+  public void add(long counter, long delta) {
+    UnsafeMemory.getAndAddLong(address(counter, COUNTER) + VALUE, delta);
+  }
+
+  /**
+   * Record an observation to a summary series. NaN and infinite values are ignored.
+   *
+   * @param summary The handle returned by {@link #summary}.
+   * @param value The observed value.
+   */
+  public void record(long summary, double value) {
+    long slot = address(summary, SUMMARY);
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    long bits = Double.doubleToRawLongBits(value);
+    accumulate(slot + MIN, bits, StripedCells.DOUBLE_MIN);
+    accumulate(slot + MAX, bits, StripedCells.DOUBLE_MAX);
+    accumulate(slot + SUM, bits, StripedCells.DOUBLE_SUM);
+    // the count is updated last, so every counted observation has updated the other fields.
+    UnsafeMemory.getAndAddLong(slot + VALUE, 1);
+  }
+
+  /**
+   * Set the current value of a gauge series. NaN and infinite values are ignored.
+   *
+   * @param gauge The handle returned by {@link #gauge}.
+   * @param value The current value.
+   */
+  public void set(long gauge, double value) {
+    long slot = address(gauge, GAUGE);
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    UnsafeMemory.putLongVolatile(slot + VALUE, Double.doubleToRawLongBits(value));
+    UnsafeMemory.putLongVolatile(slot + SUM, 1);
+  }
+
+  private static void accumulate(long address, long value, LongBinaryOperator operator) {
+    long current;
+    long next;
+    do {
+      current = UnsafeMemory.getLongVolatile(address);
+      next = operator.applyAsLong(current, value);
+    } while (next != current && !UnsafeMemory.compareAndSwapLong(address, current, next));
+  }
+
+  /** @return the number of series in the registry. */
+  public int size() {
+    return size.get();
+  }
+
+  private long slotAddress(int slot) {
+    return table + (long) slot * SLOT_BYTES;
+  }
+
+  private long address(long handle, int type) {
+    if (closed) {
+      throw new IllegalStateException("registry is closed");
+    }
+    if (handle < 0 || handle > mask) {
+      throw new IllegalArgumentException("invalid handle");
+    }
+    long slot = slotAddress((int) handle);
+    long meta = UnsafeMemory.getLongVolatile(slot + META);
+    if (meta == 0 || meta == DEAD || (int) (meta & 0xFF) != type) {
+      throw new IllegalArgumentException("handle does not refer to a series of this type");
+    }
+    return slot;
+  }
+
+  private long series(String metricKey, DimensionList dimensions, int type) {
+    if (closed) {
+      throw new IllegalStateException("registry is closed");
+    }
+    Metric.Builder builder = factory.newMetricBuilder(metricKey).setDimensions(dimensions);
+    long fingerprint;
+    try {
+      DimensionList series = dimensions != null ? dimensions : DimensionList.create();
+      fingerprint =
+          Fingerprint.finish(
+              Fingerprint.add(Fingerprint.of(builder.getNormalizedMetricKey(), series), type));
+    } catch (MetricException e) {
+      serializationWarning.warn(
+          () -> String.format("cannot create series '%s': %s", metricKey, e.getMessage()));
+      return NO_SERIES;
+    }
+    if (fingerprint == 0) {
+      // 0 marks free slots.
+      fingerprint = 1;
+    }
+
+    int slot = (int) fingerprint & mask;
+    byte[] prefix = null;
+    for (int probes = 0; probes <= mask; ) {
+      long address = slotAddress(slot);
+      long current = UnsafeMemory.getLongVolatile(address + FINGERPRINT);
+      if (current == fingerprint) {
+        return awaitPublished(address) == DEAD ? NO_SERIES : slot;
+      }
+      if (current == 0) {
+        if (prefix == null) {
+          // the series is new, so its prefix is serialized before it takes a slot.
+          prefix = serializePrefix(builder);
+          if (prefix == null) {
+            return NO_SERIES;
+          }
+        }
+        if (arenaUsed.get() + prefix.length > arenaBytes) {
+          fullWarning.warn(() -> "arena is full, cannot create new series");
+          return NO_SERIES;
+        }
+        if (size.incrementAndGet() > maxSeries) {
+          size.decrementAndGet();
+          fullWarning.warn(() -> String.format("registry is full, dropping '%s'", metricKey));
+          return NO_SERIES;
+        }
+        if (UnsafeMemory.compareAndSwapLong(address + FINGERPRINT, 0, fingerprint)) {
+          if (publish(address, prefix, type)) {
+            return slot;
+          }
+          // dead slots do not count against maxSeries.
+          size.decrementAndGet();
+          return NO_SERIES;
+        }
+        // another series claimed the slot first, look at it again.
+        size.decrementAndGet();
+        continue;
+      }
+      slot = (slot + 1) & mask;
+      probes++;
+    }
+    fullWarning.warn(() -> String.format("registry is full, dropping '%s'", metricKey));
+    return NO_SERIES;
+  }
+
+  private static long awaitPublished(long address) {
+    long meta;
+    // the thread that claimed the slot is copying the prefix, which takes nanoseconds.
+    while ((meta = UnsafeMemory.getLongVolatile(address + META)) == 0) {
+      Thread.yield();
+    }
+    return meta;
+  }
+
+  /**
+   * @return the UTF-8 "key,dimensions" prefix of the lines of the series, or null if the series is
+   *     invalid or its lines would exceed the line length limit.
+   */
+  private static byte[] serializePrefix(Metric.Builder builder) {
+    try {
+      String normalizedMetricKey = builder.getNormalizedMetricKey();
+      String series = builder.serializeSeries();
+      if (series.length() + MAX_SUFFIX_LENGTH > Metric.Builder.METRIC_LINE_MAX_LENGTH) {
+        serializationWarning.warn(
+            () ->
+                String.format(
+                    "lines of series '%s' would exceed the limit of %d characters",
+                    normalizedMetricKey, Metric.Builder.METRIC_LINE_MAX_LENGTH));
+        return null;
+      }
+      // at most three bytes per character, which always fits the length field.
+      return series.getBytes(StandardCharsets.UTF_8);
+    } catch (MetricException e) {
+      serializationWarning.warn(() -> String.format("cannot create series: %s", e.getMessage()));
+      return null;
+    }
+  }
+
+  /**
+   * Copy the prefix of the series to the arena, initialize the slot and publish it. If the series
+   * cannot be created, because another thread took the rest of the arena or for any other reason,
+   * the slot is published as dead, so that threads waiting for it do not wait forever. Dead slots
+   * keep their place in the table, but do not count against the maximum number of series.
+   */
+  private boolean publish(long address, byte[] prefix, int type) {
+    boolean published = false;
+    try {
+      long offset;
+      do {
+        offset = arenaUsed.get();
+        if (offset + prefix.length > arenaBytes) {
+          fullWarning.warn(() -> "arena is full, cannot create new series");
+          return false;
+        }
+      } while (!arenaUsed.compareAndSet(offset, offset + prefix.length));
+      for (int i = 0; i < prefix.length; i++) {
+        UnsafeMemory.putByte(arena + offset + i, prefix[i]);
+      }
+      UnsafeMemory.putLongVolatile(address + MIN, POSITIVE_INFINITY);
+      UnsafeMemory.putLongVolatile(address + MAX, NEGATIVE_INFINITY);
+      UnsafeMemory.putLongVolatile(address + EMITTED_MIN, POSITIVE_INFINITY);
+      UnsafeMemory.putLongVolatile(address + EMITTED_MAX, NEGATIVE_INFINITY);
+      UnsafeMemory.putLongVolatile(
+          address + META, offset << OFFSET_SHIFT | (long) prefix.length << 8 | type);
+      published = true;
+      return true;
+    } finally {
+      if (!published) {
+        UnsafeMemory.putLongVolatile(address + META, DEAD);
+      }
+    }
+  }
+
+  private String prefix(long meta) {
+    long offset = meta >>> OFFSET_SHIFT;
+    int length = (int) (meta >>> 8) & ((1 << PREFIX_LENGTH_BITS) - 1);
+    byte[] prefix = new byte[length];
+    for (int i = 0; i < length; i++) {
+      prefix[i] = UnsafeMemory.getByte(arena + offset + i);
+    }
+    return new String(prefix, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Serialize one line for every counter and summary that changed since the last flush, and for
+   * every gauge that was set, and reset counters and summaries.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines, or an empty list if the registry is closed.
+   */
+  @Override
+  public synchronized List<String> flush(Instant timestamp) {
+    List<String> lines = new ArrayList<>();
+    if (closed) {
+      return lines;
+    }
+    String suffix = timestamp != null ? " " + timestamp.toEpochMilli() : "";
+    for (int slot = 0; slot <= mask; slot++) {
+      long address = slotAddress(slot);
+      long meta = UnsafeMemory.getLongVolatile(address + META);
+      if (meta == 0 || meta == DEAD) {
+        continue;
+      }
+      try {
+        // lines fit the line length limit, which was checked when the series was created.
+        String value = drain(address, (int) (meta & 0xFF));
+        if (value != null) {
+          lines.add(prefix(meta) + " " + value + suffix);
+        }
+      } catch (MetricException e) {
+        serializationWarning.warn(
+            () -> String.format("dropping series '%s': %s", prefix(meta), e.getMessage()));
+      }
+    }
+    return lines;
+  }
+
+  /** @return the serialized value of the series, or null if there is nothing to emit. */
+  private static String drain(long address, int type) throws MetricException {
+    if (type == COUNTER) {
+      long delta = UnsafeMemory.getAndSetLong(address + VALUE, 0);
+      return delta == 0 ? null : new MetricValues.LongCounterValue(delta, true).serialize();
+    }
+    if (type == GAUGE) {
+      if (UnsafeMemory.getLongVolatile(address + SUM) == 0) {
+        return null;
+      }
+      return new MetricValues.DoubleGaugeValue(
+              Double.longBitsToDouble(UnsafeMemory.getLongVolatile(address + VALUE)))
+          .serialize();
+    }
+
+    // the count is drained first, see SummaryAggregator.
+    long count = UnsafeMemory.getAndSetLong(address + VALUE, 0);
+    if (count == 0) {
+      return null;
+    }
+    double sum = Double.longBitsToDouble(UnsafeMemory.getAndSetLong(address + SUM, 0));
+    double min =
+        Double.longBitsToDouble(UnsafeMemory.getAndSetLong(address + MIN, POSITIVE_INFINITY));
+    double max =
+        Double.longBitsToDouble(UnsafeMemory.getAndSetLong(address + MAX, NEGATIVE_INFINITY));
+    if (min > max) {
+      // the observations raced with the previous flush, which already took their extremes.
+      min = Double.longBitsToDouble(UnsafeMemory.getLongVolatile(address + EMITTED_MIN));
+      max = Double.longBitsToDouble(UnsafeMemory.getLongVolatile(address + EMITTED_MAX));
+      if (min > max) {
+        min = max = sum / count;
+      }
+    }
+    UnsafeMemory.putLongVolatile(address + EMITTED_MIN, Double.doubleToRawLongBits(min));
+    UnsafeMemory.putLongVolatile(address + EMITTED_MAX, Double.doubleToRawLongBits(max));
+    return new MetricValues.DoubleSummaryValue(min, max, sum, count).serialize();
+  }
+
+  /**
+   * Release the native memory of the registry. Must only be called once no other thread uses the
+   * registry or any of its handles anymore.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    UnsafeMemory.free(table);
+    UnsafeMemory.free(arena);
+  }
+}
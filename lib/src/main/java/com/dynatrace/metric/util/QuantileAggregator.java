@@ -0,0 +1,226 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the distribution of recorded values in a {@link QuantileSketch} per series. Each flush
+ * emits one "gauge,min=,max=,sum=,count=" summary line per series that recorded values, and one
+ * "gauge," line per configured quantile, which carries the quantile in the "quantile" dimension
+ * (e.g. "quantile=0.99"). Series are identified by their normalized metric key and their {@link
+ * DimensionList}.
+ *
+ * <p>Series that recorded nothing for 10 flushes in a row are evicted. Series whose sketch was
+ * returned by {@link #sketch} are kept, since the caller may still record to it.
+ */
+public final class QuantileAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(QuantileAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+
+  static final String QUANTILE_DIMENSION_KEY = "quantile";
+  private static final double[] DEFAULT_QUANTILES = {0.5, 0.95, 0.99};
+
+  private final SeriesMap<Series> series;
+  private final double relativeAccuracy;
+  private final double[] quantiles;
+
+  private QuantileAggregator(
+      MetricBuilderFactory factory, double relativeAccuracy, double[] quantiles) {
+    this.series = new SeriesMap<>(factory);
+    this.relativeAccuracy = relativeAccuracy;
+    this.quantiles = quantiles;
+  }
+
+  /**
+   * Create a new {@link QuantileAggregator} without prefix or default dimensions, which exports the
+   * 50th, 95th and 99th percentile with a relative accuracy of 1%.
+   *
+   * @return A new {@link QuantileAggregator}.
+   */
+  public static QuantileAggregator create() {
+    return builder().build();
+  }
+
+  /** @return A new {@link QuantileAggregatorBuilder} to configure a {@link QuantileAggregator}. */
+  public static QuantileAggregatorBuilder builder() {
+    return new QuantileAggregatorBuilder();
+  }
+
+  /**
+   * Get the sketch for a series, creating it if it does not exist yet. Keep the returned sketch to
+   * record to it without looking up the series again. Values recorded to it, or merged into it, are
+   * exported and removed from the sketch with every flush. Series whose sketch was returned are
+   * never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link QuantileSketch} of the series.
+   */
+  public QuantileSketch sketch(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, Series.class, this::newSeries).sketch;
+  }
+
+  /**
+   * Record a value to the sketch of a series, see {@link #sketch}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The recorded value.
+   */
+  public void record(String metricKey, DimensionList dimensions, double value) {
+    Series s = series.get(metricKey, dimensions, Series.class, this::newSeries);
+    s.sketch.record(value);
+    series.recorded(s);
+  }
+
+  private Series newSeries(SeriesKey key) {
+    DimensionList[] quantileDimensions = new DimensionList[quantiles.length];
+    for (int i = 0; i < quantiles.length; i++) {
+      quantileDimensions[i] =
+          DimensionList.merge(
+              key.getDimensions(),
+              DimensionList.create(
+                  Dimension.create(QUANTILE_DIMENSION_KEY, Double.toString(quantiles[i]))));
+    }
+    return new Series(key, QuantileSketch.create(relativeAccuracy), quantileDimensions);
+  }
+
+  /**
+   * Serialize the summary and quantile lines for every series that recorded values since the last
+   * flush, and reset all sketches.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public List<String> flush(Instant timestamp) {
+    MetricBuilderFactory factory = series.getFactory();
+    List<String> lines = new ArrayList<>();
+    series.drainAll(s -> drainTo(s, factory, timestamp, lines));
+    return lines;
+  }
+
+  /** @return false if no values were recorded since the last flush. */
+  private boolean drainTo(
+      Series s, MetricBuilderFactory factory, Instant timestamp, List<String> lines) {
+    QuantileSketch snapshot = s.sketch.drain();
+    long count = snapshot.getCount();
+    if (count == 0) {
+      return false;
+    }
+    double min = snapshot.getMin();
+    double max = snapshot.getMax();
+    try {
+      lines.add(
+          s.key
+              .newMetricBuilder(factory, timestamp)
+              .setDoubleSummaryValue(min, max, snapshot.getSum(), count)
+              .serializeMetricLine());
+      for (int i = 0; i < quantiles.length; i++) {
+        // estimates are within the relative accuracy, but never outside of the exact extremes.
+        double value = Math.max(min, Math.min(max, snapshot.getQuantile(quantiles[i])));
+        lines.add(
+            s.key
+                .newMetricBuilder(factory, timestamp, s.quantileDimensions[i])
+                .setDoubleGaugeValue(value)
+                .serializeMetricLine());
+      }
+    } catch (MetricException e) {
+      serializationWarning.warn(
+          () -> String.format("dropping sketch '%s': %s", s.key, e.getMessage()));
+    }
+    return true;
+  }
+
+  private static final class Series extends SeriesMap.State {
+    final QuantileSketch sketch;
+    // the dimensions of the series plus the quantile dimension, one list per quantile.
+    final DimensionList[] quantileDimensions;
+
+    Series(SeriesKey key, QuantileSketch sketch, DimensionList[] quantileDimensions) {
+      super(key);
+      this.sketch = sketch;
+      this.quantileDimensions = quantileDimensions;
+    }
+  }
+
+  /** Builder class for {@link QuantileAggregator} objects. */
+  public static class QuantileAggregatorBuilder {
+    private MetricBuilderFactory factory;
+    private double relativeAccuracy = QuantileSketch.DEFAULT_RELATIVE_ACCURACY;
+    private double[] quantiles = DEFAULT_QUANTILES;
+
+    private QuantileAggregatorBuilder() {}
+
+    /**
+     * Set the {@link MetricBuilderFactory} to create metric lines with, so they carry its prefix,
+     * default dimensions and Dynatrace metadata.
+     *
+     * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+     * @return this
+     */
+    public QuantileAggregatorBuilder withMetricBuilderFactory(MetricBuilderFactory factory) {
+      this.factory = factory;
+      return this;
+    }
+
+    /**
+     * Set the relative accuracy of the sketches, see {@link QuantileSketch#create(double)}.
+     * Defaults to 0.01.
+     *
+     * @param relativeAccuracy The maximum relative error of estimated quantiles.
+     * @return this
+     * @throws IllegalArgumentException if the relative accuracy is not between 0 and 1.
+     */
+    public QuantileAggregatorBuilder withRelativeAccuracy(double relativeAccuracy) {
+      if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+        throw new IllegalArgumentException("relative accuracy must be between 0 and 1");
+      }
+      this.relativeAccuracy = relativeAccuracy;
+      return this;
+    }
+
+    /**
+     * Set the quantiles that are exported with every flush. Defaults to 0.5, 0.95 and 0.99.
+     *
+     * @param quantiles The quantiles to export, each between 0 and 1.
+     * @return this
+     * @throws IllegalArgumentException if a quantile is not between 0 and 1.
+     */
+    public QuantileAggregatorBuilder withQuantiles(double... quantiles) {
+      if (quantiles == null) {
+        throw new IllegalArgumentException("quantiles cannot be null");
+      }
+      for (double quantile : quantiles) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+          throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+      }
+      this.quantiles = quantiles.clone();
+      return this;
+    }
+
+    /** @return A new {@link QuantileAggregator} with the settings of this builder. */
+    public QuantileAggregator build() {
+      MetricBuilderFactory localFactory =
+          factory != null ? factory : MetricBuilderFactory.builder().build();
+      return new QuantileAggregator(localFactory, relativeAccuracy, quantiles);
+    }
+  }
+}
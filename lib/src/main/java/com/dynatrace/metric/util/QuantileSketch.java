@@ -0,0 +1,302 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * A mergeable sketch of the distribution of recorded values, from which quantiles can be estimated
+ * with a bounded relative error (see <a href="https://arxiv.org/abs/1908.10693">DDSketch</a>).
+ * Values are counted in buckets whose boundaries grow exponentially, so every value is estimated
+ * within the relative accuracy of the sketch. Buckets are allocated in chunks when values are first
+ * recorded to them, so memory grows with the range of recorded values, and is bounded by the fixed
+ * number of buckets that cover all values from 1e-9 to 1e18. Smaller and larger values are counted
+ * in the first and last bucket. Minimum, maximum, sum and count are tracked exactly.
+ *
+ * <p>Recording never blocks, and can happen concurrently with estimating quantiles or merging.
+ */
+public final class QuantileSketch {
+  private static final Logger logger = Logger.getLogger(QuantileSketch.class.getName());
+  private static final ThrottledWarning nonFiniteValueWarning = new ThrottledWarning(logger);
+
+  static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+  private static final double MIN_INDEXED_VALUE = 1e-9;
+  private static final double MAX_INDEXED_VALUE = 1e18;
+  private static final int CHUNK_SIZE = 128;
+
+  private static final int MIN = 0;
+  private static final int MAX = 1;
+  private static final int SUM = 2;
+  private static final int ZERO_COUNT = 3;
+
+  private final double relativeAccuracy;
+  private final double gamma;
+  private final double logGamma;
+  // the bucket index of the smallest indexed value, so that bucket 0 holds it.
+  private final int indexOffset;
+  private final int bucketCount;
+  private final Store positive;
+  private final Store negative;
+  private final StripedCells cells =
+      new StripedCells(
+          StripedCells.toBits(Double.POSITIVE_INFINITY),
+          StripedCells.toBits(Double.NEGATIVE_INFINITY),
+          0,
+          0);
+
+  private QuantileSketch(double relativeAccuracy) {
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+    this.indexOffset = (int) Math.ceil(Math.log(MIN_INDEXED_VALUE) / logGamma);
+    this.bucketCount = (int) Math.ceil(Math.log(MAX_INDEXED_VALUE) / logGamma) - indexOffset + 1;
+    this.positive = new Store(bucketCount);
+    this.negative = new Store(bucketCount);
+  }
+
+  /**
+   * Create a new, empty {@link QuantileSketch} with a relative accuracy of 1%.
+   *
+   * @return A new {@link QuantileSketch}.
+   */
+  public static QuantileSketch create() {
+    return create(DEFAULT_RELATIVE_ACCURACY);
+  }
+
+  /**
+   * Create a new, empty {@link QuantileSketch}.
+   *
+   * @param relativeAccuracy The maximum relative error of estimated quantiles, between 0 and 1,
+   *     e.g. 0.01 for 1%. The memory used by the sketch is inversely proportional to it.
+   * @return A new {@link QuantileSketch}.
+   * @throws IllegalArgumentException if the relative accuracy is not between 0 and 1.
+   */
+  public static QuantileSketch create(double relativeAccuracy) {
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("relative accuracy must be between 0 and 1");
+    }
+    return new QuantileSketch(relativeAccuracy);
+  }
+
+  /** @return The maximum relative error of estimated quantiles. */
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  /**
+   * Record a value. NaN and infinite values cannot be serialized and are dropped.
+   *
+   * @param value The recorded value.
+   */
+  public void record(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      nonFiniteValueWarning.warn(() -> String.format("dropping recorded value %s", value));
+      return;
+    }
+    long bits = StripedCells.toBits(value);
+    cells.accumulate(MIN, bits, StripedCells.DOUBLE_MIN);
+    cells.accumulate(MAX, bits, StripedCells.DOUBLE_MAX);
+    cells.addDouble(SUM, value);
+    // the buckets are updated last, so every counted value has updated the other fields.
+    if (value > 0) {
+      positive.add(bucket(value), 1);
+    } else if (value < 0) {
+      negative.add(bucket(-value), 1);
+    } else {
+      cells.add(ZERO_COUNT, 1);
+    }
+  }
+
+  /**
+   * Add all values recorded to another sketch to this sketch. The other sketch is not changed.
+   *
+   * @param other The sketch to merge into this one.
+   * @throws IllegalArgumentException if the other sketch has a different relative accuracy.
+   */
+  public void merge(QuantileSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy) {
+      throw new IllegalArgumentException("cannot merge sketches with different relative accuracy");
+    }
+    cells.accumulate(MIN, other.cells.get(MIN, StripedCells.DOUBLE_MIN), StripedCells.DOUBLE_MIN);
+    cells.accumulate(MAX, other.cells.get(MAX, StripedCells.DOUBLE_MAX), StripedCells.DOUBLE_MAX);
+    cells.addDouble(SUM, StripedCells.toDouble(other.cells.get(SUM, StripedCells.DOUBLE_SUM)));
+    positive.addAll(other.positive);
+    negative.addAll(other.negative);
+    cells.add(ZERO_COUNT, other.cells.get(ZERO_COUNT, StripedCells.SUM));
+  }
+
+  /**
+   * Move all values recorded so far into a new sketch, and reset this sketch. Values that are
+   * recorded concurrently end up in either of the sketches.
+   */
+  QuantileSketch drain() {
+    QuantileSketch snapshot = new QuantileSketch(relativeAccuracy);
+    // the counts are drained first, so every drained count comes with its other fields.
+    positive.drainInto(snapshot.positive);
+    negative.drainInto(snapshot.negative);
+    snapshot.cells.add(ZERO_COUNT, cells.drain(ZERO_COUNT));
+    snapshot.cells.addDouble(SUM, cells.drainDouble(SUM));
+    snapshot.cells.accumulate(
+        MIN, cells.drain(MIN, StripedCells.DOUBLE_MIN), StripedCells.DOUBLE_MIN);
+    snapshot.cells.accumulate(
+        MAX, cells.drain(MAX, StripedCells.DOUBLE_MAX), StripedCells.DOUBLE_MAX);
+    return snapshot;
+  }
+
+  /** @return The number of recorded values. */
+  public long getCount() {
+    return cells.get(ZERO_COUNT, StripedCells.SUM) + positive.total() + negative.total();
+  }
+
+  /** @return The sum of all recorded values, 0 if no values were recorded. */
+  public double getSum() {
+    return StripedCells.toDouble(cells.get(SUM, StripedCells.DOUBLE_SUM));
+  }
+
+  /** @return The smallest recorded value, or NaN if no values were recorded. */
+  public double getMin() {
+    double min = StripedCells.toDouble(cells.get(MIN, StripedCells.DOUBLE_MIN));
+    if (min == Double.POSITIVE_INFINITY) {
+      // the minimum was not recorded yet or was drained with a previous snapshot.
+      return getCount() == 0 ? Double.NaN : getQuantile(0);
+    }
+    return min;
+  }
+
+  /** @return The largest recorded value, or NaN if no values were recorded. */
+  public double getMax() {
+    double max = StripedCells.toDouble(cells.get(MAX, StripedCells.DOUBLE_MAX));
+    if (max == Double.NEGATIVE_INFINITY) {
+      return getCount() == 0 ? Double.NaN : getQuantile(1);
+    }
+    return max;
+  }
+
+  /**
+   * Estimate a quantile of the recorded values.
+   *
+   * @param quantile The quantile to estimate, between 0 and 1, e.g. 0.99 for the 99th percentile.
+   * @return The estimated value, or NaN if no values were recorded.
+   * @throws IllegalArgumentException if the quantile is not between 0 and 1.
+   */
+  public double getQuantile(double quantile) {
+    if (!(quantile >= 0 && quantile <= 1)) {
+      throw new IllegalArgumentException("quantile must be between 0 and 1");
+    }
+    long count = getCount();
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) (quantile * (count - 1));
+
+    // negative values, from the largest absolute value to the smallest.
+    long seen = 0;
+    for (int bucket = bucketCount - 1; bucket >= 0; bucket--) {
+      seen += negative.get(bucket);
+      if (seen > rank) {
+        return -value(bucket);
+      }
+    }
+    seen += cells.get(ZERO_COUNT, StripedCells.SUM);
+    if (seen > rank) {
+      return 0;
+    }
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      seen += positive.get(bucket);
+      if (seen > rank) {
+        return value(bucket);
+      }
+    }
+    // values were recorded while counting, the largest value is the best estimate.
+    for (int bucket = bucketCount - 1; bucket >= 0; bucket--) {
+      if (positive.get(bucket) > 0) {
+        return value(bucket);
+      }
+    }
+    return 0;
+  }
+
+  /** @return the bucket of a positive value. */
+  private int bucket(double value) {
+    int index = (int) Math.ceil(Math.log(value) / logGamma) - indexOffset;
+    return Math.max(0, Math.min(bucketCount - 1, index));
+  }
+
+  /** @return the value within the relative accuracy of all values in a bucket. */
+  private double value(int bucket) {
+    return 2 * Math.pow(gamma, bucket + indexOffset) / (gamma + 1);
+  }
+
+  /** Bucket counters, allocated in chunks when they are first incremented. */
+  private static final class Store {
+    private final AtomicReferenceArray<AtomicLongArray> chunks;
+
+    Store(int bucketCount) {
+      this.chunks = new AtomicReferenceArray<>((bucketCount + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    void add(int bucket, long count) {
+      int chunkIndex = bucket / CHUNK_SIZE;
+      AtomicLongArray chunk = chunks.get(chunkIndex);
+      if (chunk == null) {
+        chunks.compareAndSet(chunkIndex, null, new AtomicLongArray(CHUNK_SIZE));
+        chunk = chunks.get(chunkIndex);
+      }
+      chunk.getAndAdd(bucket % CHUNK_SIZE, count);
+    }
+
+    long get(int bucket) {
+      AtomicLongArray chunk = chunks.get(bucket / CHUNK_SIZE);
+      return chunk == null ? 0 : chunk.get(bucket % CHUNK_SIZE);
+    }
+
+    long total() {
+      long total = 0;
+      for (int chunkIndex = 0; chunkIndex < chunks.length(); chunkIndex++) {
+        AtomicLongArray chunk = chunks.get(chunkIndex);
+        if (chunk != null) {
+          for (int i = 0; i < CHUNK_SIZE; i++) {
+            total += chunk.get(i);
+          }
+        }
+      }
+      return total;
+    }
+
+    void addAll(Store other) {
+      transfer(other, this, false);
+    }
+
+    void drainInto(Store target) {
+      transfer(this, target, true);
+    }
+
+    private static void transfer(Store source, Store target, boolean reset) {
+      for (int chunkIndex = 0; chunkIndex < source.chunks.length(); chunkIndex++) {
+        AtomicLongArray chunk = source.chunks.get(chunkIndex);
+        if (chunk == null) {
+          continue;
+        }
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+          long count = reset ? chunk.getAndSet(i, 0) : chunk.get(i);
+          if (count != 0) {
+            target.add(chunkIndex * CHUNK_SIZE + i, count);
+          }
+        }
+      }
+    }
+  }
+}
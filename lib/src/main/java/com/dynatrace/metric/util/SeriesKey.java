@@ -0,0 +1,102 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Identifies one series of an aggregator: the normalized metric key, including the prefix of the
+ * {@link MetricBuilderFactory}, and the dimensions of the series. The hash code is computed once,
+ * since keys are compared on every lookup.
+ */
+final class SeriesKey {
+  private final String metricKey;
+  // null if the metric key is invalid, such series are dropped with a warning when serialized.
+  private final String normalizedMetricKey;
+  private final DimensionList dimensions;
+  private final int hash;
+
+  SeriesKey(MetricBuilderFactory factory, String metricKey, DimensionList dimensions) {
+    this.metricKey = metricKey;
+    this.normalizedMetricKey = normalizedMetricKey(factory, metricKey);
+    this.dimensions = dimensions != null ? dimensions : DimensionList.create();
+    this.hash =
+        31 * Objects.hashCode(normalizedMetricKey != null ? normalizedMetricKey : metricKey)
+            + this.dimensions.hashCode();
+  }
+
+  private static String normalizedMetricKey(MetricBuilderFactory factory, String metricKey) {
+    try {
+      return factory.newMetricBuilder(metricKey).getNormalizedMetricKey();
+    } catch (MetricException e) {
+      return null;
+    }
+  }
+
+  /** @return the metric key as it was passed, without the prefix of the factory. */
+  String getMetricKey() {
+    return metricKey;
+  }
+
+  /** @return the normalized metric key including the prefix, or null if the key is invalid. */
+  String getNormalizedMetricKey() {
+    return normalizedMetricKey;
+  }
+
+  DimensionList getDimensions() {
+    return dimensions;
+  }
+
+  /**
+   * @return A new {@link Metric.Builder} for this series, created by the factory and with the
+   *     dimensions and the timestamp set.
+   */
+  Metric.Builder newMetricBuilder(MetricBuilderFactory factory, Instant timestamp) {
+    return newMetricBuilder(factory, timestamp, dimensions);
+  }
+
+  /**
+   * @return A new {@link Metric.Builder} for this series, but with other dimensions, e.g. the
+   *     dimensions of the series plus one that tells lines for the same series apart.
+   */
+  Metric.Builder newMetricBuilder(
+      MetricBuilderFactory factory, Instant timestamp, DimensionList dimensions) {
+    return factory.newMetricBuilder(metricKey).setDimensions(dimensions).setTimestamp(timestamp);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    SeriesKey that = (SeriesKey) o;
+    if (hash != that.hash || !Objects.equals(normalizedMetricKey, that.normalizedMetricKey)) {
+      return false;
+    }
+    // series with invalid keys are only the same series if the keys are the same.
+    return (normalizedMetricKey != null || Objects.equals(metricKey, that.metricKey))
+        && dimensions.equals(that.dimensions);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    String key = normalizedMetricKey != null ? normalizedMetricKey : metricKey;
+    return dimensions.isEmpty() ? key : key + "," + dimensions.serialize();
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The series of an aggregator, by {@link SeriesKey}. Looking up an existing series does not take
+ * any locks, only creating a series locks a single bin of the underlying map. Series are also
+ * indexed by the metric key and dimensions as they were passed, so looking up an existing series
+ * neither normalizes its metric key nor allocates.
+ *
+ * <p>Series that recorded nothing for {@link #DEFAULT_MAX_IDLE_FLUSHES} flushes in a row are
+ * evicted, so series with short-lived dimension values (e.g. pod names) do not accumulate. Series
+ * whose state was handed out to a caller through {@link #pin} are never evicted, since the caller
+ * may still record to it. Values recorded through {@link #get} to a series that was evicted
+ * meanwhile are reported by the next flush, see {@link #recorded}.
+ *
+ * @param <S> The type of the aggregation state of a series.
+ */
+final class SeriesMap<S extends SeriesMap.State> {
+  static final int DEFAULT_MAX_IDLE_FLUSHES = 10;
+
+  private static final DimensionList NO_DIMENSIONS = DimensionList.create();
+
+  private final MetricBuilderFactory factory;
+  private final Map<SeriesKey, S> series = new ConcurrentHashMap<>();
+  // the same states by the metric key as passed, then by dimensions. Different spellings of the
+  // same series (e.g. "Key" and "key") each get an entry here, but share their state.
+  private final Map<String, Map<DimensionList, S>> byMetricKey = new ConcurrentHashMap<>();
+  // evicted states that were recorded to after they were evicted, guarded by itself.
+  private final List<S> recordedAfterEviction = new ArrayList<>();
+
+  SeriesMap(MetricBuilderFactory factory) {
+    if (factory == null) {
+      throw new IllegalArgumentException("factory cannot be null");
+    }
+    this.factory = factory;
+  }
+
+  MetricBuilderFactory getFactory() {
+    return factory;
+  }
+
+  /**
+   * Get the state of a series to record to it once, creating it if it does not exist yet. Call
+   * {@link #recorded} after recording.
+   *
+   * @throws IllegalArgumentException if the series exists with a different type of state.
+   */
+  <T extends S> T get(
+      String metricKey,
+      DimensionList dimensions,
+      Class<T> type,
+      Function<SeriesKey, ? extends S> newSeries) {
+    DimensionList dimensionList = dimensions != null ? dimensions : NO_DIMENSIONS;
+    Map<DimensionList, S> byDimensions = metricKey != null ? byMetricKey.get(metricKey) : null;
+    S state = byDimensions != null ? byDimensions.get(dimensionList) : null;
+    if (state == null) {
+      state = create(metricKey, dimensionList, newSeries);
+    }
+    return checkType(state, type);
+  }
+
+  /**
+   * Get the state of a series to hand it out to a caller, creating it if it does not exist yet. The
+   * series is never evicted.
+   *
+   * @throws IllegalArgumentException if the series exists with a different type of state.
+   */
+  <T extends S> T pin(
+      String metricKey,
+      DimensionList dimensions,
+      Class<T> type,
+      Function<SeriesKey, ? extends S> newSeries) {
+    T state = get(metricKey, dimensions, type, newSeries);
+    while (!state.pin()) {
+      // the series was evicted since it was looked up, and is no longer in the map.
+      state =
+          checkType(
+              create(metricKey, dimensions != null ? dimensions : NO_DIMENSIONS, newSeries), type);
+    }
+    return state;
+  }
+
+  /** Report the values recorded to a state returned by {@link #get} if it was evicted meanwhile. */
+  void recorded(S state) {
+    if (state.evicted && !state.queued) {
+      synchronized (recordedAfterEviction) {
+        if (!state.queued) {
+          state.queued = true;
+          recordedAfterEviction.add(state);
+        }
+      }
+    }
+  }
+
+  private <T extends S> T checkType(S state, Class<T> type) {
+    if (!type.isInstance(state)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "series '%s' is already recorded as %s",
+              state.key, state.getClass().getSimpleName()));
+    }
+    return type.cast(state);
+  }
+
+  private S create(
+      String metricKey, DimensionList dimensions, Function<SeriesKey, ? extends S> newSeries) {
+    SeriesKey key = new SeriesKey(factory, metricKey, dimensions);
+    S state = series.get(key);
+    if (state == null) {
+      state = series.computeIfAbsent(key, newSeries);
+    }
+    if (metricKey != null) {
+      Map<DimensionList, S> byDimensions =
+          byMetricKey.computeIfAbsent(metricKey, k -> new ConcurrentHashMap<>());
+      S indexed = byDimensions.putIfAbsent(dimensions, state);
+      if (indexed != null && indexed != state && indexed.evicted) {
+        byDimensions.replace(dimensions, indexed, state);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Drain every series, and evict the series that recorded nothing for {@link
+   * #DEFAULT_MAX_IDLE_FLUSHES} flushes in a row. Concurrent calls are serialized.
+   *
+   * @param drain Drains a series and returns whether it recorded anything since the last flush.
+   */
+  synchronized void drainAll(Predicate<? super S> drain) {
+    List<S> queued;
+    synchronized (recordedAfterEviction) {
+      queued = new ArrayList<>(recordedAfterEviction);
+      recordedAfterEviction.clear();
+      // dequeue them before draining, so values recorded after the drain are reported again.
+      for (S state : queued) {
+        state.queued = false;
+      }
+    }
+    for (S state : queued) {
+      drain.test(state);
+    }
+
+    boolean evictedAny = false;
+    for (S state : series.values()) {
+      if (drain.test(state)) {
+        state.idleFlushes = 0;
+      } else if (++state.idleFlushes >= DEFAULT_MAX_IDLE_FLUSHES && evict(state)) {
+        evictedAny = true;
+        // values recorded between the drain and the eviction.
+        drain.test(state);
+      }
+    }
+    if (evictedAny) {
+      for (Map<DimensionList, S> byDimensions : byMetricKey.values()) {
+        byDimensions.values().removeIf(state -> state.evicted);
+      }
+      // an index that is removed while a series is created is created again by the next lookup.
+      byMetricKey.values().removeIf(Map::isEmpty);
+    }
+  }
+
+  private boolean evict(S state) {
+    synchronized (state) {
+      if (state.pinned) {
+        return false;
+      }
+      state.evicted = true;
+      series.remove(state.key, state);
+      return true;
+    }
+  }
+
+  /** @return the number of series that are currently tracked. */
+  int size() {
+    return series.size();
+  }
+
+  /** The aggregation state of a single series. */
+  abstract static class State {
+    final SeriesKey key;
+    // set once the state was handed out, guarded by this when it is set.
+    volatile boolean pinned;
+    // set once the state was removed from the map, guarded by this.
+    volatile boolean evicted;
+    // set while the state waits to be drained after it was evicted, guarded by the queue.
+    volatile boolean queued;
+    // the number of flushes in a row that found nothing to drain, only accessed while flushing.
+    int idleFlushes;
+
+    State(SeriesKey key) {
+      this.key = key;
+    }
+
+    /** @return false if the state was evicted and cannot be pinned anymore. */
+    boolean pin() {
+      if (pinned) {
+        return true;
+      }
+      synchronized (this) {
+        if (evicted) {
+          return false;
+        }
+        pinned = true;
+        return true;
+      }
+    }
+  }
+}
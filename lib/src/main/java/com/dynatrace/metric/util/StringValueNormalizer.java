@@ -48,7 +48,7 @@ class StringValueNormalizer {
     boolean wasNormalizedBefore = false;
 
     for (int offset = 0; offset < length; ) {
-      final int codePoint = value.codePointAt(offset);
+      final int codePoint = codePointAt(value, offset);
 
       if (StringValueValidator.isInvalidCodePoint(codePoint)) {
         if (wasNormalizedBefore) {
@@ -109,7 +109,7 @@ class StringValueNormalizer {
     StringValueValidator.State state = StringValueValidator.State.START;
 
     for (int offset = 0; offset < length; ) {
-      final int codePoint = value.codePointAt(offset);
+      final int codePoint = codePointAt(value, offset);
       switch (state) {
         case START:
           sb.appendCodePoint(codePoint);
@@ -164,4 +164,10 @@ class StringValueNormalizer {
 
     return sb.toString();
   }
+
+  /** Like {@link String#codePointAt(int)}, with a shortcut for ASCII characters. */
+  private static int codePointAt(String value, int offset) {
+    final char c = value.charAt(offset);
+    return c < AsciiClasses.ASCII_LIMIT ? c : value.codePointAt(offset);
+  }
 }
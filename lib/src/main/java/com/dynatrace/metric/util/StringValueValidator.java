@@ -16,11 +16,7 @@ final class StringValueValidator {
    *     otherwise.
    */
   static boolean shouldEscapeString(int codePoint) {
-    return codePoint == CodePoints.COMMA
-        || codePoint == CodePoints.EQUALS
-        || codePoint == CodePoints.BLANK
-        || codePoint == CodePoints.BACKSLASH
-        || codePoint == CodePoints.QUOTE;
+    return AsciiClasses.is(codePoint, AsciiClasses.ESCAPE);
   }
 
   /**
@@ -31,7 +27,7 @@ final class StringValueValidator {
    *     otherwise.
    */
   static boolean shouldEscapeQuotedString(int codePoint) {
-    return codePoint == CodePoints.QUOTE || codePoint == CodePoints.BACKSLASH;
+    return AsciiClasses.is(codePoint, AsciiClasses.ESCAPE_QUOTED);
   }
 
   /**
@@ -41,6 +37,10 @@ final class StringValueValidator {
    * @return True if the codepoint falls into the list of invalid chars, false otherwise.
    */
   static boolean isInvalidCodePoint(int codePoint) {
+    if (codePoint < AsciiClasses.ASCII_LIMIT) {
+      return AsciiClasses.is(codePoint, AsciiClasses.INVALID);
+    }
+
     switch (Character.getType(codePoint)) {
       case Character.UNASSIGNED:
         // support all emojis of unicode range "Supplemental Symbols and Pictographs"
@@ -113,13 +113,35 @@ final class StringValueValidator {
     }
 
     for (int offset = 0; offset < length; ) {
-      final int codePoint = value.codePointAt(offset);
-
-      if (isInvalidCodePoint(codePoint) || shouldEscapeString(codePoint)) {
-        return true;
+      // fast path: four printable ASCII characters that need no escaping can be skipped at once.
+      if (offset + AsciiScanner.LANES <= length) {
+        final long word = AsciiScanner.word(value, offset);
+        if (!AsciiScanner.hasNonPrintableAscii(word) && !AsciiScanner.hasCharacterToEscape(word)) {
+          offset += AsciiScanner.LANES;
+          continue;
+        }
       }
 
-      offset += Character.charCount(codePoint);
+      // slow path: check the code points in the current word one by one.
+      final int wordEnd = Math.min(offset + AsciiScanner.LANES, length);
+      while (offset < wordEnd) {
+        final char c = value.charAt(offset);
+        if (c < AsciiClasses.ASCII_LIMIT) {
+          if (AsciiClasses.is(c, AsciiClasses.INVALID | AsciiClasses.ESCAPE)) {
+            return true;
+          }
+          offset++;
+          continue;
+        }
+
+        final int codePoint = value.codePointAt(offset);
+
+        if (isInvalidCodePoint(codePoint) || shouldEscapeString(codePoint)) {
+          return true;
+        }
+
+        offset += Character.charCount(codePoint);
+      }
     }
     return false;
   }
@@ -145,6 +167,15 @@ final class StringValueValidator {
 
     // start from the first quote (thus skipping it) and stops before the last one
     for (int offset = quoteSize; offset < contentLength; ) {
+      final char c = value.charAt(offset);
+      if (c < AsciiClasses.ASCII_LIMIT) {
+        if (AsciiClasses.is(c, AsciiClasses.INVALID | AsciiClasses.ESCAPE_QUOTED)) {
+          return true;
+        }
+        offset++;
+        continue;
+      }
+
       final int codePoint = value.codePointAt(offset);
 
       if (isInvalidCodePoint(codePoint) || shouldEscapeQuotedString(codePoint)) {
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A fixed number of numeric fields that many threads update concurrently. Updates go to a single
+ * base cell until two threads collide on it. From then on, every thread updates its own stripe, and
+ * stripes are spaced so that no two of them share a cache line. Unlike {@link
+ * java.util.concurrent.atomic.LongAdder#sumThenReset()}, draining a field atomically swaps every
+ * cell, so an update that races with a drain is either part of this drain or of the next one, but
+ * never lost.
+ */
+final class StripedCells {
+  private static final int CACHE_LINE_LONGS = 8;
+  private static final int MAX_STRIPES = 64;
+  /** The number of stripes, a power of two. */
+  static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+  static final LongBinaryOperator SUM = Long::sum;
+  static final LongBinaryOperator MIN = Math::min;
+  static final LongBinaryOperator MAX = Math::max;
+  static final LongBinaryOperator DOUBLE_SUM =
+      (left, right) -> toBits(toDouble(left) + toDouble(right));
+  static final LongBinaryOperator DOUBLE_MIN =
+      (left, right) -> toBits(Math.min(toDouble(left), toDouble(right)));
+  static final LongBinaryOperator DOUBLE_MAX =
+      (left, right) -> toBits(Math.max(toDouble(left), toDouble(right)));
+
+  private static final AtomicReferenceFieldUpdater<StripedCells, AtomicLongArray> STRIPES_UPDATER =
+      AtomicReferenceFieldUpdater.newUpdater(StripedCells.class, AtomicLongArray.class, "stripes");
+
+  // the value every cell of a field starts with and is reset to when drained.
+  private final long[] initialValues;
+  // the number of longs between the same field of two neighbouring stripes.
+  private final int stride;
+  private final AtomicLongArray base;
+  // null until the base cells were contended.
+  private volatile AtomicLongArray stripes;
+
+  /** Create cells for the passed number of fields, that all start out as 0. */
+  StripedCells(int fields) {
+    this(new long[fields]);
+  }
+
+  /** Create cells for one field per passed initial value. */
+  StripedCells(long... initialValues) {
+    this.initialValues = initialValues.clone();
+    this.stride =
+        (initialValues.length + CACHE_LINE_LONGS - 1) / CACHE_LINE_LONGS * CACHE_LINE_LONGS;
+    this.base = new AtomicLongArray(this.initialValues);
+  }
+
+  static int stripeCount(int processors) {
+    int count = Integer.highestOneBit(Math.max(1, processors));
+    if (count < processors) {
+      count <<= 1;
+    }
+    return Math.min(count, MAX_STRIPES);
+  }
+
+  static long toBits(double value) {
+    return Double.doubleToRawLongBits(value);
+  }
+
+  static double toDouble(long bits) {
+    return Double.longBitsToDouble(bits);
+  }
+
+  /** Add to a long field. Completes in a bounded number of steps, whatever other threads do. */
+  void add(int field, long delta) {
+    AtomicLongArray cells = stripes;
+    if (cells == null) {
+      long current = base.get(field);
+      if (base.compareAndSet(field, current, current + delta)) {
+        return;
+      }
+      cells = inflate();
+    }
+    cells.getAndAdd(slot(field), delta);
+  }
+
+  /** Add to a field that holds the bits of a double. */
+  void addDouble(int field, double delta) {
+    accumulate(field, toBits(delta), DOUBLE_SUM);
+  }
+
+  /**
+   * Combine a field with the passed value, e.g. with {@link #MIN}. Cells that would not change are
+   * not written, so repeatedly recording values that do not lower a minimum only reads the cell.
+   */
+  void accumulate(int field, long value, LongBinaryOperator operator) {
+    AtomicLongArray cells = stripes;
+    if (cells == null) {
+      long current = base.get(field);
+      long next = operator.applyAsLong(current, value);
+      if (next == current || base.compareAndSet(field, current, next)) {
+        return;
+      }
+      cells = inflate();
+    }
+    int slot = slot(field);
+    long current;
+    long next;
+    do {
+      current = cells.get(slot);
+      next = operator.applyAsLong(current, value);
+    } while (next != current && !cells.compareAndSet(slot, current, next));
+  }
+
+  /** @return the sum of a long field since the last drain, and resets the field. */
+  long drain(int field) {
+    return drain(field, SUM);
+  }
+
+  /** @return the sum of a double field since the last drain, and resets the field. */
+  double drainDouble(int field) {
+    return toDouble(drain(field, DOUBLE_SUM));
+  }
+
+  /**
+   * Read a field without resetting it. Concurrent updates may or may not be part of the result.
+   *
+   * @return the initial value combined with the current value of every cell.
+   */
+  long get(int field, LongBinaryOperator operator) {
+    long result = operator.applyAsLong(initialValues[field], base.get(field));
+    AtomicLongArray cells = stripes;
+    if (cells != null) {
+      for (int slot = field; slot < cells.length(); slot += stride) {
+        result = operator.applyAsLong(result, cells.get(slot));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Atomically reset every cell of a field to its initial value.
+   *
+   * @return the initial value combined with the previous value of every cell.
+   */
+  long drain(int field, LongBinaryOperator operator) {
+    long initialValue = initialValues[field];
+    long result = operator.applyAsLong(initialValue, base.getAndSet(field, initialValue));
+    AtomicLongArray cells = stripes;
+    if (cells != null) {
+      for (int slot = field; slot < cells.length(); slot += stride) {
+        result = operator.applyAsLong(result, cells.getAndSet(slot, initialValue));
+      }
+    }
+    return result;
+  }
+
+  private AtomicLongArray inflate() {
+    AtomicLongArray cells = new AtomicLongArray(STRIPES * stride);
+    for (int slot = 0; slot < cells.length(); slot++) {
+      int field = slot % stride;
+      if (field < initialValues.length) {
+        cells.set(slot, initialValues[field]);
+      }
+    }
+    STRIPES_UPDATER.compareAndSet(this, null, cells);
+    return stripes;
+  }
+
+  private int slot(int field) {
+    // thread ids are handed out sequentially, so they spread evenly over the stripes.
+    int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    return stripe * stride + field;
+  }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates observations into summaries on the client. Minimum, maximum, sum and count of all
+ * values recorded to a series between two flushes are tracked, and each flush emits one
+ * "gauge,min=,max=,sum=,count=" line per series that recorded values. Series are identified by
+ * their normalized metric key and their {@link DimensionList}.
+ *
+ * <p>Recording never blocks. Summaries that are updated from many threads spread their updates over
+ * striped cells, where the fields of one stripe share a cache line and no two stripes do. Minimum
+ * and maximum are updated with compare-and-set loops that skip the write if the value does not
+ * change them. An observation that races with a flush is counted either by that flush or by the
+ * next one; its minimum, maximum and sum may be reported with the adjacent interval.
+ *
+ * <p>Series that recorded nothing for 10 flushes in a row are evicted. Series whose summary was
+ * returned by {@link #longSummary} or {@link #doubleSummary} are kept, since the caller may still
+ * record to it.
+ */
+public final class SummaryAggregator implements MetricAggregator {
+  private static final Logger logger = Logger.getLogger(SummaryAggregator.class.getName());
+  private static final ThrottledWarning serializationWarning = new ThrottledWarning(logger);
+  private static final ThrottledWarning nonFiniteValueWarning = new ThrottledWarning(logger);
+
+  private static final int MIN = 0;
+  private static final int MAX = 1;
+  private static final int SUM = 2;
+  private static final int COUNT = 3;
+
+  private final SeriesMap<Summary> series;
+
+  private SummaryAggregator(MetricBuilderFactory factory) {
+    this.series = new SeriesMap<>(factory);
+  }
+
+  /**
+   * Create a new {@link SummaryAggregator} without prefix or default dimensions.
+   *
+   * @return A new {@link SummaryAggregator}.
+   */
+  public static SummaryAggregator create() {
+    return create(MetricBuilderFactory.builder().build());
+  }
+
+  /**
+   * Create a new {@link SummaryAggregator} that creates its lines with the passed {@link
+   * MetricBuilderFactory}, so they carry its prefix, default dimensions and Dynatrace metadata.
+   *
+   * @param factory The {@link MetricBuilderFactory} to create metric lines with.
+   * @return A new {@link SummaryAggregator}.
+   */
+  public static SummaryAggregator create(MetricBuilderFactory factory) {
+    return new SummaryAggregator(factory);
+  }
+
+  /**
+   * Get the long summary for a series, creating it if it does not exist yet. Keep the returned
+   * summary to record to it without looking up the series again. Series whose summary was returned
+   * are never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link LongSummary} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link DoubleSummary}.
+   */
+  public LongSummary longSummary(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, LongSummary.class, LongSummary::new);
+  }
+
+  /**
+   * Get the double summary for a series, creating it if it does not exist yet. Keep the returned
+   * summary to record to it without looking up the series again. Series whose summary was returned
+   * are never evicted.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @return The {@link DoubleSummary} of the series.
+   * @throws IllegalArgumentException if the series is already a {@link LongSummary}.
+   */
+  public DoubleSummary doubleSummary(String metricKey, DimensionList dimensions) {
+    return series.pin(metricKey, dimensions, DoubleSummary.class, DoubleSummary::new);
+  }
+
+  /**
+   * Record a value to the long summary of a series, see {@link #longSummary}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The observed value.
+   */
+  public void record(String metricKey, DimensionList dimensions, long value) {
+    LongSummary summary = series.get(metricKey, dimensions, LongSummary.class, LongSummary::new);
+    summary.record(value);
+    series.recorded(summary);
+  }
+
+  /**
+   * Record a value to the double summary of a series, see {@link #doubleSummary}.
+   *
+   * @param metricKey The metric key (not including the prefix of the factory).
+   * @param dimensions The dimensions of the series, or null for none.
+   * @param value The observed value.
+   */
+  public void record(String metricKey, DimensionList dimensions, double value) {
+    DoubleSummary summary =
+        series.get(metricKey, dimensions, DoubleSummary.class, DoubleSummary::new);
+    summary.record(value);
+    series.recorded(summary);
+  }
+
+  /**
+   * Serialize one summary line for every series that recorded values since the last flush, and
+   * reset all summaries. Concurrent flushes are serialized, since each flush falls back to the
+   * extremes emitted by the previous one.
+   *
+   * @param timestamp The timestamp to set on every line, or null to let the server set the time of
+   *     ingestion.
+   * @return The serialized metric lines.
+   */
+  @Override
+  public synchronized List<String> flush(Instant timestamp) {
+    List<String> lines = new ArrayList<>();
+    series.drainAll(
+        summary -> {
+          try {
+            String line = summary.drainTo(series.getFactory(), timestamp);
+            if (line == null) {
+              return false;
+            }
+            lines.add(line);
+          } catch (MetricException e) {
+            serializationWarning.warn(
+                () -> String.format("dropping summary '%s': %s", summary.key, e.getMessage()));
+          }
+          return true;
+        });
+    return lines;
+  }
+
+  private abstract static class Summary extends SeriesMap.State {
+    final StripedCells cells;
+    // the extremes of the last emitted line, only accessed by the synchronized flush.
+    long emittedMin;
+    long emittedMax;
+
+    Summary(SeriesKey key, long initialMin, long initialMax) {
+      super(key);
+      this.cells = new StripedCells(initialMin, initialMax, 0, 0);
+      this.emittedMin = initialMin;
+      this.emittedMax = initialMax;
+    }
+
+    /**
+     * Drain the count first. Observations update the count last, so every counted observation has
+     * already updated the other fields. Nothing is drained if nothing was counted, so the fields of
+     * observations that are still being recorded are kept for the next flush.
+     *
+     * @return the serialized line, or null if no values were recorded.
+     */
+    String drainTo(MetricBuilderFactory factory, Instant timestamp) throws MetricException {
+      long count = cells.drain(COUNT);
+      if (count == 0) {
+        return null;
+      }
+      return serialize(key.newMetricBuilder(factory, timestamp), count);
+    }
+
+    abstract String serialize(Metric.Builder builder, long count) throws MetricException;
+  }
+
+  /** A summary of long values of a single series. */
+  public static final class LongSummary extends Summary {
+    private LongSummary(SeriesKey key) {
+      super(key, Long.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * Record an observed value.
+     *
+     * @param value The observed value.
+     */
+    public void record(long value) {
+      cells.accumulate(MIN, value, StripedCells.MIN);
+      cells.accumulate(MAX, value, StripedCells.MAX);
+      cells.add(SUM, value);
+      cells.add(COUNT, 1);
+    }
+
+    @Override
+    String serialize(Metric.Builder builder, long count) throws MetricException {
+      long sum = cells.drain(SUM);
+      long min = cells.drain(MIN, StripedCells.MIN);
+      long max = cells.drain(MAX, StripedCells.MAX);
+      if (min > max) {
+        // the observations raced with the previous flush, which already took their extremes.
+        min = emittedMin;
+        max = emittedMax;
+        if (min > max) {
+          min = max = sum / count;
+        }
+      }
+      emittedMin = min;
+      emittedMax = max;
+      return builder.setLongSummaryValue(min, max, sum, count).serializeMetricLine();
+    }
+  }
+
+  /** A summary of double values of a single series. */
+  public static final class DoubleSummary extends Summary {
+    private DoubleSummary(SeriesKey key) {
+      super(
+          key,
+          StripedCells.toBits(Double.POSITIVE_INFINITY),
+          StripedCells.toBits(Double.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * Record an observed value. NaN and infinite values cannot be serialized and are dropped.
+     *
+     * @param value The observed value.
+     */
+    public void record(double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        nonFiniteValueWarning.warn(
+            () -> String.format("dropping value %s recorded to summary '%s'", value, key));
+        return;
+      }
+      long bits = StripedCells.toBits(value);
+      cells.accumulate(MIN, bits, StripedCells.DOUBLE_MIN);
+      cells.accumulate(MAX, bits, StripedCells.DOUBLE_MAX);
+      cells.addDouble(SUM, value);
+      cells.add(COUNT, 1);
+    }
+
+    @Override
+    String serialize(Metric.Builder builder, long count) throws MetricException {
+      double sum = cells.drainDouble(SUM);
+      double min = StripedCells.toDouble(cells.drain(MIN, StripedCells.DOUBLE_MIN));
+      double max = StripedCells.toDouble(cells.drain(MAX, StripedCells.DOUBLE_MAX));
+      if (min > max) {
+        // the observations raced with the previous flush, which already took their extremes.
+        min = StripedCells.toDouble(emittedMin);
+        max = StripedCells.toDouble(emittedMax);
+        if (min > max) {
+          min = max = sum / count;
+        }
+      }
+      emittedMin = StripedCells.toBits(min);
+      emittedMax = StripedCells.toBits(max);
+      return builder.setDoubleSummaryValue(min, max, sum, count).serializeMetricLine();
+    }
+  }
+}
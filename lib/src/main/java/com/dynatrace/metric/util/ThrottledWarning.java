@@ -0,0 +1,132 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A warning that is logged at most once per interval. Occurrences in between are only counted, and
+ * the number of suppressed occurrences is reported with the next warning that is logged. Recording
+ * an occurrence does not take any locks, so a burst of invalid data does not turn into a burst of
+ * log records that contend on the logging handlers.
+ *
+ * <p>When a burst ends, no further warning reports its suppressed occurrences. {@link
+ * #reportAllSuppressed()} logs a summary for every warning whose interval has passed since it was
+ * last logged. {@link FlushScheduler} calls it at the end of every window; without a scheduler,
+ * suppressed occurrences are only reported with the next warning that is logged.
+ */
+final class ThrottledWarning {
+  static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(1);
+
+  // the warnings created with the default interval, which are all held in static fields.
+  private static final List<ThrottledWarning> warnings = new CopyOnWriteArrayList<>();
+
+  private final Logger logger;
+  private final long intervalNanos;
+  private final LongSupplier nanoClock;
+
+  // the earliest time at which the next warning will be logged, in terms of the nano clock.
+  private final AtomicLong nextWarningNanos;
+  private final LongAdder suppressed = new LongAdder();
+  // the message of the last warning that was logged, to identify the suppressed occurrences.
+  private volatile String lastMessage;
+
+  ThrottledWarning(Logger logger) {
+    this(logger, DEFAULT_INTERVAL, System::nanoTime);
+    warnings.add(this);
+  }
+
+  ThrottledWarning(Logger logger, Duration interval, LongSupplier nanoClock) {
+    this.logger = logger;
+    this.intervalNanos = interval.toNanos();
+    this.nanoClock = nanoClock;
+    this.nextWarningNanos = new AtomicLong(nanoClock.getAsLong());
+  }
+
+  /**
+   * Record one occurrence of the warning. The message is only created if the warning is logged.
+   *
+   * @param message Creates the message for this occurrence.
+   */
+  void warn(Supplier<String> message) {
+    if (!logger.isLoggable(Level.WARNING)) {
+      return;
+    }
+
+    long now = nanoClock.getAsLong();
+    long next = nextWarningNanos.get();
+    // compare the difference to stay correct if the nano clock overflows.
+    if (now - next < 0 || !nextWarningNanos.compareAndSet(next, now + intervalNanos)) {
+      suppressed.increment();
+      return;
+    }
+
+    long suppressedCount = suppressed.sumThenReset();
+    String text = message.get();
+    lastMessage = text;
+    if (suppressedCount == 0) {
+      logger.warning(text);
+    } else {
+      logger.warning(
+          () ->
+              String.format(
+                  "%s (%d similar warnings were suppressed since the last one was logged)",
+                  text, suppressedCount));
+    }
+  }
+
+  /**
+   * Log the number of suppressed occurrences if there are any and the interval has passed since the
+   * warning was last logged. This counts as logging the warning, so the next occurrence within the
+   * interval is suppressed.
+   */
+  void reportSuppressed() {
+    if (suppressed.sum() == 0) {
+      return;
+    }
+    long now = nanoClock.getAsLong();
+    long next = nextWarningNanos.get();
+    if (now - next < 0 || !nextWarningNanos.compareAndSet(next, now + intervalNanos)) {
+      return;
+    }
+    long suppressedCount = suppressed.sumThenReset();
+    if (suppressedCount > 0) {
+      logger.warning(
+          () ->
+              String.format(
+                  "%d warnings similar to '%s' were suppressed since the last one was logged",
+                  suppressedCount, lastMessage));
+    }
+  }
+
+  /** {@link #reportSuppressed() Report} the suppressed occurrences of all warnings. */
+  static void reportAllSuppressed() {
+    for (ThrottledWarning warning : warnings) {
+      warning.reportSuppressed();
+    }
+  }
+
+  /** @return The number of occurrences that were suppressed since the last warning was logged. */
+  long getSuppressedCount() {
+    return suppressed.sum();
+  }
+}
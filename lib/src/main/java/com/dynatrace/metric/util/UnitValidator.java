@@ -21,33 +21,12 @@ final class UnitValidator {
       return false;
     }
 
-    for (int offset = 0; offset < length; ) {
-      final int codePoint = unit.codePointAt(offset);
-      if (!isAllowedChar(codePoint)) {
+    for (int offset = 0; offset < length; offset++) {
+      // all allowed characters are ASCII, so the string can be checked char by char.
+      if (!AsciiClasses.is(unit.charAt(offset), AsciiClasses.UNIT)) {
         return false;
       }
-      offset += Character.charCount(codePoint);
     }
     return true;
   }
-
-  private static boolean isAllowedChar(int codePoint) {
-    // Uppercase and lowercase letters, numbers and characters '%','[',']','/' and '_'
-    return isLetter(codePoint)
-        || isNumber(codePoint)
-        || codePoint == CodePoints.PERCENT_SIGN
-        || codePoint == CodePoints.OPEN_SQUARE_BRACKET
-        || codePoint == CodePoints.CLOSE_SQUARE_BRACKET
-        || codePoint == CodePoints.FORWARDSLASH
-        || codePoint == CodePoints.UNDERSCORE;
-  }
-
-  private static boolean isLetter(int codePoint) {
-    return (codePoint >= CodePoints.A_LOWERCASE && codePoint <= CodePoints.Z_LOWERCASE)
-        || (codePoint >= CodePoints.A_UPPERCASE && codePoint <= CodePoints.Z_UPPERCASE);
-  }
-
-  private static boolean isNumber(int codePoint) {
-    return codePoint >= CodePoints.ZERO && codePoint <= CodePoints.NINE;
-  }
 }
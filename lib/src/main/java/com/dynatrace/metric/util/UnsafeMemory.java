@@ -0,0 +1,203 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Atomic access to native memory through {@code sun.misc.Unsafe}. The class is looked up
+ * reflectively and its methods are bound to method handles, so the library neither needs it to
+ * compile nor fails to load where it is not available; {@link #isAvailable()} tells whether it can
+ * be used. The handles are constants, so the JIT compiles each access to the plain memory
+ * instruction.
+ *
+ * <p>Addresses are not checked. Callers must only access memory they allocated and did not free.
+ */
+final class UnsafeMemory {
+  private static final Logger logger = Logger.getLogger(UnsafeMemory.class.getName());
+
+  private static final MethodHandle ALLOCATE_MEMORY;
+  private static final MethodHandle FREE_MEMORY;
+  private static final MethodHandle SET_MEMORY;
+  private static final MethodHandle GET_BYTE;
+  private static final MethodHandle PUT_BYTE;
+  private static final MethodHandle GET_LONG_VOLATILE;
+  private static final MethodHandle PUT_LONG_VOLATILE;
+  private static final MethodHandle COMPARE_AND_SWAP_LONG;
+  private static final MethodHandle GET_AND_ADD_LONG;
+  private static final MethodHandle GET_AND_SET_LONG;
+
+  static {
+    MethodHandle[] handles = new MethodHandle[10];
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType objectLong = MethodType.methodType(long.class, Object.class, long.class);
+
+      handles[0] =
+          lookup.findVirtual(
+              unsafeClass, "allocateMemory", MethodType.methodType(long.class, long.class));
+      handles[1] =
+          lookup.findVirtual(
+              unsafeClass, "freeMemory", MethodType.methodType(void.class, long.class));
+      handles[2] =
+          lookup.findVirtual(
+              unsafeClass,
+              "setMemory",
+              MethodType.methodType(void.class, long.class, long.class, byte.class));
+      handles[3] =
+          lookup.findVirtual(unsafeClass, "getByte", MethodType.methodType(byte.class, long.class));
+      handles[4] =
+          lookup.findVirtual(
+              unsafeClass, "putByte", MethodType.methodType(void.class, long.class, byte.class));
+      handles[5] = lookup.findVirtual(unsafeClass, "getLongVolatile", objectLong);
+      handles[6] =
+          lookup.findVirtual(
+              unsafeClass,
+              "putLongVolatile",
+              MethodType.methodType(void.class, Object.class, long.class, long.class));
+      handles[7] =
+          lookup.findVirtual(
+              unsafeClass,
+              "compareAndSwapLong",
+              MethodType.methodType(
+                  boolean.class, Object.class, long.class, long.class, long.class));
+      handles[8] =
+          lookup.findVirtual(
+              unsafeClass,
+              "getAndAddLong",
+              MethodType.methodType(long.class, Object.class, long.class, long.class));
+      handles[9] =
+          lookup.findVirtual(
+              unsafeClass,
+              "getAndSetLong",
+              MethodType.methodType(long.class, Object.class, long.class, long.class));
+      for (int i = 0; i < handles.length; i++) {
+        handles[i] = handles[i].bindTo(unsafe);
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.FINE, "sun.misc.Unsafe is not available, native memory cannot be used", e);
+      handles = new MethodHandle[handles.length];
+    }
+    ALLOCATE_MEMORY = handles[0];
+    FREE_MEMORY = handles[1];
+    SET_MEMORY = handles[2];
+    GET_BYTE = handles[3];
+    PUT_BYTE = handles[4];
+    GET_LONG_VOLATILE = handles[5];
+    PUT_LONG_VOLATILE = handles[6];
+    COMPARE_AND_SWAP_LONG = handles[7];
+    GET_AND_ADD_LONG = handles[8];
+    GET_AND_SET_LONG = handles[9];
+  }
+
+  private UnsafeMemory() {}
+
+  static boolean isAvailable() {
+    return GET_AND_SET_LONG != null;
+  }
+
+  private static RuntimeException propagate(Throwable t) {
+    if (t instanceof RuntimeException) {
+      return (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    return new IllegalStateException(t);
+  }
+
+  /** @return the address of newly allocated, zeroed memory. */
+  static long allocateZeroed(long bytes) {
+    try {
+      long address = (long) ALLOCATE_MEMORY.invokeExact(bytes);
+      SET_MEMORY.invokeExact(address, bytes, (byte) 0);
+      return address;
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static void free(long address) {
+    try {
+      FREE_MEMORY.invokeExact(address);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static byte getByte(long address) {
+    try {
+      return (byte) GET_BYTE.invokeExact(address);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static void putByte(long address, byte value) {
+    try {
+      PUT_BYTE.invokeExact(address, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static long getLongVolatile(long address) {
+    try {
+      return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static void putLongVolatile(long address, long value) {
+    try {
+      PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static boolean compareAndSwapLong(long address, long expected, long value) {
+    try {
+      return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static long getAndAddLong(long address, long delta) {
+    try {
+      return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address, delta);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+
+  static long getAndSetLong(long address, long value) {
+    try {
+      return (long) GET_AND_SET_LONG.invokeExact((Object) null, address, value);
+    } catch (Throwable t) {
+      throw propagate(t);
+    }
+  }
+}
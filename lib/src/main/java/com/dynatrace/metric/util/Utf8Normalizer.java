@@ -0,0 +1,409 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Normalizes UTF-8 encoded metric keys, dimension keys, dimension values and string values, for
+ * callers that already hold the raw bytes (e.g. when relaying metric lines). The results are the
+ * UTF-8 encoded results of the normalization applied by {@link Metric.Builder}, {@link
+ * DimensionList} and {@link Metric.Builder#setDescription(String)}, but ASCII input is processed
+ * without decoding it to a {@link String} or encoding the result.
+ *
+ * <p>Input is read from the remaining bytes of a {@link ByteBuffer} (or a range of a byte array),
+ * without changing the position of the buffer. The normalized bytes are written to the output
+ * buffer, starting at its position. If the output buffer does not have enough room, a {@link
+ * java.nio.BufferOverflowException} is thrown and the content written past its original position is
+ * undefined.
+ */
+public final class Utf8Normalizer {
+  private Utf8Normalizer() {}
+
+  /**
+   * Normalize a metric key.
+   *
+   * @param key The UTF-8 encoded metric key.
+   * @param out The buffer to write the normalized key to.
+   * @return The number of bytes written. 0 if the key is invalid, in which case nothing is written.
+   */
+  public static int metricKey(ByteBuffer key, ByteBuffer out) {
+    final int from = key.position();
+    final int to = key.limit();
+    if (from == to) {
+      return 0;
+    }
+
+    final int end = Math.min(to, from + Normalize.mk_max_length);
+    if (!isAscii(key, from, end)) {
+      return put(Normalize.metricKey(decode(key, from, to)), out);
+    }
+    if (key.get(from) == '.') {
+      // the first section of the key is empty.
+      return 0;
+    }
+    if (isNormalizedMetricKey(key, from, end)) {
+      return copy(key, from, end, out);
+    }
+
+    final int start = out.position();
+    boolean firstSection = true;
+    int i = from;
+    while (i < end) {
+      // skip empty sections
+      while (i < end && key.get(i) == '.') {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      if (!firstSection) {
+        out.put((byte) '.');
+      }
+      i = putNormalizedMetricKeySection(key, i, end, firstSection, out);
+      firstSection = false;
+    }
+    return out.position() - start;
+  }
+
+  /** @see #metricKey(ByteBuffer, ByteBuffer) */
+  public static int metricKey(byte[] key, int offset, int length, ByteBuffer out) {
+    return metricKey(ByteBuffer.wrap(key, offset, length), out);
+  }
+
+  /**
+   * Normalize a dimension key.
+   *
+   * @param key The UTF-8 encoded dimension key.
+   * @param out The buffer to write the normalized key to.
+   * @return The number of bytes written. 0 if the key is invalid, in which case nothing is written.
+   */
+  public static int dimensionKey(ByteBuffer key, ByteBuffer out) {
+    final int from = key.position();
+    final int to = key.limit();
+    if (from == to) {
+      return 0;
+    }
+
+    final int end = Math.min(to, from + Normalize.dk_max_length);
+    if (!isAscii(key, from, end)) {
+      return put(Normalize.dimensionKey(decode(key, from, to)), out);
+    }
+    if (isNormalizedDimensionKey(key, from, end)) {
+      return copy(key, from, end, out);
+    }
+
+    final int start = out.position();
+    int i = from;
+    while (i < end) {
+      // skip empty sections
+      while (i < end && key.get(i) == '.') {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      if (out.position() > start) {
+        out.put((byte) '.');
+      }
+
+      // replace consecutive leading invalid characters with an underscore.
+      if (!AsciiClasses.is(toLowerCase(key.get(i)), AsciiClasses.DIMENSION_KEY_SECTION_START)) {
+        out.put((byte) '_');
+        do {
+          i++;
+        } while (i < end
+            && key.get(i) != '.'
+            && !AsciiClasses.is(toLowerCase(key.get(i)), AsciiClasses.DIMENSION_KEY_SECTION_START));
+      }
+
+      // replace consecutive invalid characters within the section with one underscore.
+      while (i < end && key.get(i) != '.') {
+        byte c = toLowerCase(key.get(i));
+        if (AsciiClasses.is(c, AsciiClasses.DIMENSION_KEY)) {
+          out.put(c);
+          i++;
+        } else {
+          out.put((byte) '_');
+          do {
+            i++;
+          } while (i < end
+              && key.get(i) != '.'
+              && !AsciiClasses.is(toLowerCase(key.get(i)), AsciiClasses.DIMENSION_KEY));
+        }
+      }
+    }
+    return out.position() - start;
+  }
+
+  /** @see #dimensionKey(ByteBuffer, ByteBuffer) */
+  public static int dimensionKey(byte[] key, int offset, int length, ByteBuffer out) {
+    return dimensionKey(ByteBuffer.wrap(key, offset, length), out);
+  }
+
+  /**
+   * Normalize and escape a dimension value. The result can be written to a metric line as is.
+   *
+   * @param value The UTF-8 encoded dimension value.
+   * @param out The buffer to write the normalized and escaped value to.
+   * @return The number of bytes written. 0 if the value is empty.
+   */
+  public static int dimensionValue(ByteBuffer value, ByteBuffer out) {
+    final int from = value.position();
+    final int to = value.limit();
+    if (from == to) {
+      return 0;
+    }
+
+    final int end = Math.min(to, from + Normalize.dv_max_length);
+    if (!isAscii(value, from, end)) {
+      StringBuilder builder = new StringBuilder();
+      Normalize.appendNormalizedEscapedDimensionValue(builder, decode(value, from, to));
+      return put(builder.toString(), out);
+    }
+    if (!contains(value, from, end, AsciiClasses.INVALID | AsciiClasses.ESCAPE)) {
+      return copy(value, from, end, out);
+    }
+
+    final int start = out.position();
+    final int limit = start + Normalize.dv_max_length;
+    boolean truncated = false;
+    boolean inControlRun = false;
+    for (int i = from; i < end; i++) {
+      byte c = value.get(i);
+      if (AsciiClasses.is(c, AsciiClasses.INVALID)) {
+        // collapse contained control chars to an underscore
+        if (!inControlRun) {
+          if (out.position() == limit) {
+            truncated = true;
+            break;
+          }
+          out.put((byte) '_');
+          inControlRun = true;
+        }
+        continue;
+      }
+      inControlRun = false;
+
+      if (AsciiClasses.is(c, AsciiClasses.ESCAPE)) {
+        if (out.position() + 2 > limit) {
+          if (out.position() < limit) {
+            // the odd trailing backslash is removed below.
+            out.put((byte) '\\');
+          }
+          truncated = true;
+          break;
+        }
+        out.put((byte) '\\').put(c);
+      } else {
+        if (out.position() == limit) {
+          truncated = true;
+          break;
+        }
+        out.put(c);
+      }
+    }
+
+    if (truncated) {
+      // do not leave half of an escape sequence at the end, see Normalize.
+      int trailingBackslashes = 0;
+      for (int j = out.position() - 1; j >= start && out.get(j) == '\\'; j--) {
+        trailingBackslashes++;
+      }
+      if (trailingBackslashes % 2 == 1) {
+        out.position(out.position() - 1);
+      }
+    }
+    return out.position() - start;
+  }
+
+  /** @see #dimensionValue(ByteBuffer, ByteBuffer) */
+  public static int dimensionValue(byte[] value, int offset, int length, ByteBuffer out) {
+    return dimensionValue(ByteBuffer.wrap(value, offset, length), out);
+  }
+
+  /**
+   * Normalize a string value, such as a metric description. Values wrapped in double quotes are
+   * normalized as quoted strings.
+   *
+   * @param value The UTF-8 encoded value.
+   * @param maxLength The maximum length of the normalized value, in UTF-16 characters (the same as
+   *     {@link String#length()}).
+   * @param out The buffer to write the normalized value to.
+   * @return The number of bytes written. 0 if the value is empty, in which case nothing is written.
+   */
+  public static int stringValue(ByteBuffer value, int maxLength, ByteBuffer out) {
+    final int from = value.position();
+    final int to = value.limit();
+    if (from == to) {
+      return 0;
+    }
+
+    // valid ASCII values are copied as they are, everything else is rare enough to be decoded.
+    final int length = to - from;
+    if (length <= maxLength && isAscii(value, from, to)) {
+      boolean isQuoted = value.get(from) == '"' && value.get(to - 1) == '"';
+      if (!isQuoted && !contains(value, from, to, AsciiClasses.INVALID | AsciiClasses.ESCAPE)) {
+        return copy(value, from, to, out);
+      }
+      if (isQuoted
+          && length != 2
+          && !contains(
+              value, from + 1, to - 1, AsciiClasses.INVALID | AsciiClasses.ESCAPE_QUOTED)) {
+        return copy(value, from, to, out);
+      }
+    }
+    return put(StringValueNormalizer.normalizeStringValue(decode(value, from, to), maxLength), out);
+  }
+
+  /** @see #stringValue(ByteBuffer, int, ByteBuffer) */
+  public static int stringValue(
+      byte[] value, int offset, int length, int maxLength, ByteBuffer out) {
+    return stringValue(ByteBuffer.wrap(value, offset, length), maxLength, out);
+  }
+
+  private static boolean isNormalizedMetricKey(ByteBuffer key, int from, int end) {
+    boolean firstSection = true;
+    boolean sectionStart = true;
+    for (int i = from; i < end; i++) {
+      byte c = key.get(i);
+      if (c == '.') {
+        if (sectionStart) {
+          return false;
+        }
+        sectionStart = true;
+        firstSection = false;
+      } else if (sectionStart) {
+        if (!AsciiClasses.is(c, metricKeySectionStart(firstSection))) {
+          return false;
+        }
+        sectionStart = false;
+      } else if (!AsciiClasses.is(c, AsciiClasses.METRIC_KEY)) {
+        return false;
+      }
+    }
+    return !sectionStart;
+  }
+
+  private static int putNormalizedMetricKeySection(
+      ByteBuffer key, int from, int end, boolean firstSection, ByteBuffer out) {
+    final int sectionStart = metricKeySectionStart(firstSection);
+    int i = from;
+    // first key section cannot start with a number while subsequent sections can.
+    if (!AsciiClasses.is(key.get(i), sectionStart)) {
+      out.put((byte) '_');
+      do {
+        i++;
+      } while (i < end && key.get(i) != '.' && !AsciiClasses.is(key.get(i), sectionStart));
+    }
+
+    // replace runs of invalid chars with an underscore
+    while (i < end && key.get(i) != '.') {
+      byte c = key.get(i);
+      if (AsciiClasses.is(c, AsciiClasses.METRIC_KEY)) {
+        out.put(c);
+        i++;
+      } else {
+        out.put((byte) '_');
+        do {
+          i++;
+        } while (i < end
+            && key.get(i) != '.'
+            && !AsciiClasses.is(key.get(i), AsciiClasses.METRIC_KEY));
+      }
+    }
+    return i;
+  }
+
+  private static int metricKeySectionStart(boolean firstSection) {
+    return firstSection
+        ? AsciiClasses.METRIC_KEY_FIRST_SECTION_START
+        : AsciiClasses.METRIC_KEY_SECTION_START;
+  }
+
+  private static boolean isNormalizedDimensionKey(ByteBuffer key, int from, int end) {
+    boolean sectionStart = true;
+    for (int i = from; i < end; i++) {
+      byte c = key.get(i);
+      if (c == '.') {
+        if (sectionStart) {
+          return false;
+        }
+        sectionStart = true;
+      } else if (sectionStart) {
+        if (!AsciiClasses.is(c, AsciiClasses.DIMENSION_KEY_SECTION_START)) {
+          return false;
+        }
+        sectionStart = false;
+      } else if (!AsciiClasses.is(c, AsciiClasses.DIMENSION_KEY)) {
+        return false;
+      }
+    }
+    return !sectionStart;
+  }
+
+  private static byte toLowerCase(byte c) {
+    return c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+  }
+
+  private static boolean isAscii(ByteBuffer buffer, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean contains(ByteBuffer buffer, int from, int to, int classes) {
+    for (int i = from; i < to; i++) {
+      if (AsciiClasses.is(buffer.get(i), classes)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int copy(ByteBuffer in, int from, int to, ByteBuffer out) {
+    if (in.hasArray()) {
+      out.put(in.array(), in.arrayOffset() + from, to - from);
+    } else {
+      for (int i = from; i < to; i++) {
+        out.put(in.get(i));
+      }
+    }
+    return to - from;
+  }
+
+  private static String decode(ByteBuffer in, int from, int to) {
+    if (in.hasArray()) {
+      return new String(in.array(), in.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[to - from];
+    for (int i = from; i < to; i++) {
+      bytes[i - from] = in.get(i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int put(String normalized, ByteBuffer out) {
+    if (normalized == null || normalized.isEmpty()) {
+      return 0;
+    }
+    byte[] bytes = normalized.getBytes(StandardCharsets.UTF_8);
+    out.put(bytes);
+    return bytes.length;
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class AsciiClassesTest {
+  private static final int ALL_CLASSES = (1 << 9) - 1;
+
+  // the character type based check that StringValueValidator used for every code point.
+  private static boolean isInvalidCodePointByType(int codePoint) {
+    switch (Character.getType(codePoint)) {
+      case Character.UNASSIGNED:
+        if (codePoint >= 0x1F900 && codePoint <= 0x1F9FF) {
+          return false;
+        }
+        // else fallthrough
+      case Character.CONTROL:
+      case Character.FORMAT:
+      case Character.PRIVATE_USE:
+      case Character.SURROGATE:
+      case Character.LINE_SEPARATOR:
+      case Character.PARAGRAPH_SEPARATOR:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static void assertClass(int flag, String characterClass) {
+    Pattern pattern = Pattern.compile(characterClass);
+    for (int c = 0; c < AsciiClasses.ASCII_LIMIT; c++) {
+      assertEquals(
+          pattern.matcher(String.valueOf((char) c)).matches(),
+          AsciiClasses.is(c, flag),
+          String.format("class %s, char 0x%02x", characterClass, c));
+    }
+  }
+
+  @Test
+  void asciiClassesMatchDefinitions() {
+    assertClass(AsciiClasses.ESCAPE, "[\"= ,\\\\]");
+    assertClass(AsciiClasses.ESCAPE_QUOTED, "[\"\\\\]");
+    assertClass(AsciiClasses.UNIT, "[a-zA-Z0-9%\\[\\]/_]");
+    assertClass(AsciiClasses.METRIC_KEY_FIRST_SECTION_START, "[a-zA-Z_]");
+    assertClass(AsciiClasses.METRIC_KEY_SECTION_START, "[a-zA-Z0-9_]");
+    assertClass(AsciiClasses.METRIC_KEY, "[a-zA-Z0-9_\\-]");
+    assertClass(AsciiClasses.DIMENSION_KEY_SECTION_START, "[a-z_]");
+    assertClass(AsciiClasses.DIMENSION_KEY, "[a-z0-9_\\-:]");
+  }
+
+  @Test
+  void invalidCodePointsMatchCharacterTypes() {
+    for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+      assertEquals(
+          isInvalidCodePointByType(codePoint),
+          StringValueValidator.isInvalidCodePoint(codePoint),
+          String.format("code point 0x%04x", codePoint));
+    }
+  }
+
+  @Test
+  void nonAsciiIsNeverInAnyClass() {
+    assertFalse(AsciiClasses.is(-1, ALL_CLASSES));
+    for (int codePoint = AsciiClasses.ASCII_LIMIT; codePoint <= 0xFFFF; codePoint++) {
+      assertFalse(AsciiClasses.is(codePoint, ALL_CLASSES));
+    }
+    assertFalse(AsciiClasses.is(Character.MAX_CODE_POINT, ALL_CLASSES));
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class AsciiScannerTest {
+
+  private static boolean isPrintableAscii(char c) {
+    return c >= 0x20 && c <= 0x7E;
+  }
+
+  @Test
+  void wordChecksMatchCharacterChecksInEveryLane() {
+    for (int lane = 0; lane < AsciiScanner.LANES; lane++) {
+      for (int c = 0; c <= Character.MAX_VALUE; c++) {
+        char[] chars = {'a', 'b', 'c', 'd'};
+        chars[lane] = (char) c;
+        long word = AsciiScanner.word(new String(chars), 0);
+
+        assertEquals(
+            StringValueValidator.shouldEscapeString(c),
+            AsciiScanner.hasCharacterToEscape(word),
+            String.format("escape check for lane %d, char 0x%04x", lane, c));
+        assertEquals(
+            !isPrintableAscii((char) c),
+            AsciiScanner.hasNonPrintableAscii(word),
+            String.format("printable check for lane %d, char 0x%04x", lane, c));
+      }
+    }
+  }
+
+  @Test
+  void byteChecksMatchCharacterChecksInEveryLane() {
+    for (int lane = 0; lane < AsciiScanner.BYTE_LANES; lane++) {
+      for (int c = 0; c <= 0xFF; c++) {
+        byte[] bytes = "abcdefgh".getBytes(StandardCharsets.ISO_8859_1);
+        bytes[lane] = (byte) c;
+
+        assertEquals(
+            StringValueValidator.shouldEscapeString(c),
+            AsciiScanner.containsCharacterToEscape(bytes),
+            String.format("escape check for lane %d, byte 0x%02x", lane, c));
+      }
+    }
+  }
+
+  @ParameterizedTest(name = "{index}: {0}, input: {1}, expected: {2}")
+  @MethodSource("provideContainsCharacterToEscape")
+  void containsCharacterToEscape(String name, String input, boolean expected) {
+    assertEquals(expected, AsciiScanner.containsCharacterToEscape(input));
+    byte[] latin1 = Latin1.encode(input);
+    if (latin1 != null) {
+      assertEquals(expected, AsciiScanner.containsCharacterToEscape(latin1));
+    }
+  }
+
+  private static Stream<Arguments> provideContainsCharacterToEscape() {
+    return Stream.of(
+        Arguments.of("empty", "", false),
+        Arguments.of("shorter than a word", "abc", false),
+        Arguments.of("shorter than a word with escape", "a=c", true),
+        Arguments.of("exactly one word", "abcd", false),
+        Arguments.of("exactly one word with escape", "abc\\", true),
+        Arguments.of("escape in remainder", "abcdefgh,", true),
+        Arguments.of("escape in second word", "abcdef g", true),
+        Arguments.of("non-ascii only", "äöüßäöüß", false),
+        Arguments.of("non-ascii with escape", "äöü\"äöüß", true),
+        Arguments.of("control characters", "\u0000\u0001\u0002\u0003", false),
+        Arguments.of("lane neighbours", "!#<>+-[]", false),
+        Arguments.of("escape in second byte word", "abcdefghijklmno=", true),
+        Arguments.of("latin-1 high bytes", "\u00a0\u00bc\u00dc\u00fcabcdefgh", false));
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class BoundedCacheTest {
+
+  @Test
+  void computesOnlyOnMiss() {
+    BoundedCache<String, String> cache = new BoundedCache<>(10);
+    AtomicInteger computations = new AtomicInteger();
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(
+          "VALUE",
+          cache.get(
+              "value",
+              k -> {
+                computations.incrementAndGet();
+                return k.toUpperCase();
+              }));
+    }
+
+    assertEquals(1, computations.get());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(4, cache.getHitCount());
+    assertEquals(0.8, cache.getHitRatio(), 0.0001);
+  }
+
+  @Test
+  void nullResultsAreNotCached() {
+    BoundedCache<String, String> cache = new BoundedCache<>(10);
+
+    assertNull(cache.get("key", k -> null));
+    assertNull(cache.get("key", k -> null));
+
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  void evictsUnreferencedEntriesFirst() {
+    BoundedCache<Integer, Integer> cache = new BoundedCache<>(10);
+    for (int i = 0; i < 10; i++) {
+      cache.get(i, k -> k);
+    }
+    // mark half of the entries as recently used
+    for (int i = 0; i < 5; i++) {
+      cache.get(i, k -> k);
+    }
+
+    for (int i = 100; i < 105; i++) {
+      cache.get(i, k -> k);
+    }
+
+    assertEquals(10, cache.size());
+    assertEquals(5, cache.getEvictionCount());
+    long hitsBefore = cache.getHitCount();
+    for (int i = 0; i < 5; i++) {
+      cache.get(i, k -> k);
+    }
+    assertEquals(hitsBefore + 5, cache.getHitCount());
+  }
+
+  @Test
+  void staysBoundedUnderConcurrentInserts() throws InterruptedException {
+    BoundedCache<Integer, Integer> cache = new BoundedCache<>(100);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int offset = t * 10_000;
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 10_000; i++) {
+                  cache.get(offset + i, k -> k);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // a concurrent insert can briefly overshoot while another thread is evicting.
+    assertTrue(cache.size() <= 100 + threads.size());
+  }
+
+  @Test
+  void invalidSizeThrows() {
+    assertThrows(IllegalArgumentException.class, () -> new BoundedCache<String, String>(0));
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CardinalityLimiterTest {
+  private static DimensionList user(int id) {
+    return DimensionList.create(Dimension.create("user", Integer.toString(id)));
+  }
+
+  @Test
+  void foldsSeriesBeyondTheLimit() {
+    CardinalityLimiter limiter = CardinalityLimiter.builder().withMaxSeriesPerMetric(2).build();
+    DimensionList overflow = DimensionList.create(Dimension.create("otel.metric.overflow", "true"));
+
+    assertEquals(user(1), limiter.limit("my.metric", user(1)));
+    assertEquals(user(2), limiter.limit("my.metric", user(2)));
+    assertEquals(overflow, limiter.limit("my.metric", user(3)));
+    assertEquals(overflow, limiter.limit("my.metric", user(3)));
+    // admitted series keep their dimensions, other metric keys have their own limit.
+    assertEquals(user(1), limiter.limit("my.metric", user(1)));
+    assertEquals(user(3), limiter.limit("other.metric", user(3)));
+    assertNull(limiter.limit("other.metric", null));
+    // invalid keys are left to the aggregators.
+    assertEquals(user(4), limiter.limit("", user(4)));
+
+    assertEquals(3, limiter.getSeriesCount("my.metric"));
+    assertEquals(2, limiter.getSeriesCount("other.metric"));
+    assertEquals(0, limiter.getSeriesCount("unknown"));
+    // user(3) was folded twice, but is one series.
+    assertEquals(
+        Collections.singletonList("metric.series.dropped,metric.key=my.metric count,delta=1"),
+        limiter.flush(null));
+    assertEquals(Collections.emptyList(), limiter.flush(null));
+    // series that were folded before are not counted again.
+    assertEquals(overflow, limiter.limit("my.metric", user(3)));
+    assertEquals(Collections.emptyList(), limiter.flush(null));
+    assertEquals(overflow, limiter.limit("my.metric", user(4)));
+    assertEquals(
+        Collections.singletonList("metric.series.dropped,metric.key=my.metric count,delta=1"),
+        limiter.flush(null));
+  }
+
+  @Test
+  void idleAdmittedSeriesExpire() {
+    CardinalityLimiter limiter = CardinalityLimiter.builder().withMaxSeriesPerMetric(2).build();
+    DimensionList overflow = DimensionList.create(Dimension.create("otel.metric.overflow", "true"));
+
+    assertEquals(user(1), limiter.limit("my.metric", user(1)));
+    assertEquals(user(2), limiter.limit("my.metric", user(2)));
+    limiter.flush(null);
+    for (int i = 0; i < SeriesMap.DEFAULT_MAX_IDLE_FLUSHES - 1; i++) {
+      assertEquals(user(2), limiter.limit("my.metric", user(2)));
+      limiter.flush(null);
+    }
+    assertEquals(overflow, limiter.limit("my.metric", user(3)));
+    limiter.flush(null);
+    // user(1) was not seen for 10 flushes and freed its slot, user(2) was seen in the last window.
+    assertEquals(2, limiter.getSeriesCount("my.metric"));
+    assertEquals(user(4), limiter.limit("my.metric", user(4)));
+    assertEquals(user(2), limiter.limit("my.metric", user(2)));
+    assertEquals(overflow, limiter.limit("my.metric", user(1)));
+  }
+
+  @Test
+  void seriesAreIdentifiedByNormalizedKeyAndDimensions() {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix("prefix").build();
+    DimensionList overflow = DimensionList.create(Dimension.create("overflow", "yes"));
+    CardinalityLimiter limiter =
+        CardinalityLimiter.builder()
+            .withMetricBuilderFactory(factory)
+            .withMaxSeriesPerMetric(1)
+            .withOverflowDimensions(overflow)
+            .build();
+
+    assertEquals(
+        DimensionList.create(Dimension.create("Dim", "a")),
+        limiter.limit("my.metric", DimensionList.create(Dimension.create("Dim", "a"))));
+    assertEquals(
+        DimensionList.create(Dimension.create("dim", "a")),
+        limiter.limit("my.metric", DimensionList.create(Dimension.create("dim", "a"))));
+    assertSame(
+        overflow, limiter.limit("my.metric", DimensionList.create(Dimension.create("dim", "b"))));
+
+    List<String> lines = limiter.flush(null);
+    assertEquals(
+        Collections.singletonList(
+            "prefix.metric.series.dropped,metric.key=prefix.my.metric count,delta=1"),
+        lines);
+  }
+
+  @Test
+  void countsSeriesBeyondTheLimitApproximately() {
+    CardinalityLimiter limiter = CardinalityLimiter.builder().withMaxSeriesPerMetric(100).build();
+    for (int i = 0; i < 100_000; i++) {
+      limiter.limit("my.metric", user(i));
+    }
+    for (int i = 0; i < 100_000; i++) {
+      limiter.limit("my.metric", user(i));
+    }
+    assertEquals(100_000, limiter.getSeriesCount("my.metric"), 100_000 * 0.08);
+    List<String> lines = limiter.flush(null);
+    assertEquals(1, lines.size());
+    String prefix = "metric.series.dropped,metric.key=my.metric count,delta=";
+    assertTrue(lines.get(0).startsWith(prefix), lines.get(0));
+    assertEquals(99_900, Long.parseLong(lines.get(0).substring(prefix.length())), 99_900 * 0.08);
+  }
+
+  @Test
+  void rejectsInvalidSettings() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> CardinalityLimiter.builder().withMaxSeriesPerMetric(0));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> CardinalityLimiter.builder().withOverflowDimensions(null));
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class CumulativeToDeltaConverterTest {
+  private static String serialize(Metric.Builder builder) throws MetricException {
+    return builder == null ? null : builder.serializeMetricLine();
+  }
+
+  @Test
+  void convertsLongTotalsToDeltas() throws MetricException {
+    CumulativeToDeltaConverter converter = CumulativeToDeltaConverter.create();
+    DimensionList dimensions = DimensionList.create(Dimension.create("dim", "a"));
+
+    assertNull(converter.convert("my.counter", dimensions, 100L));
+    assertEquals(
+        "my.counter,dim=a count,delta=20",
+        serialize(converter.convert("my.counter", dimensions, 120L)));
+    assertEquals(
+        "my.counter,dim=a count,delta=0",
+        serialize(converter.convert("my.counter", dimensions, 120L)));
+    // the source was reset.
+    assertEquals(
+        "my.counter,dim=a count,delta=5",
+        serialize(converter.convert("my.counter", dimensions, 5L)));
+  }
+
+  @Test
+  void convertsDoubleTotalsToDeltas() throws MetricException {
+    CumulativeToDeltaConverter converter = CumulativeToDeltaConverter.create();
+
+    assertNull(converter.convert("my.counter", null, 1.5));
+    assertEquals(
+        "my.counter count,delta=1.0", serialize(converter.convert("my.counter", null, 2.5)));
+    assertThrows(MetricException.class, () -> converter.convert("my.counter", null, Double.NaN));
+    // long series are tracked separately.
+    assertNull(converter.convert("my.counter", null, 2L));
+  }
+
+  @Test
+  void seriesAreIdentifiedByNormalizedKeyAndDimensions() throws MetricException {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix("prefix").build();
+    CumulativeToDeltaConverter converter = CumulativeToDeltaConverter.create(factory);
+
+    assertNull(
+        converter.convert("my.counter", DimensionList.create(Dimension.create("Dim", "a")), 1L));
+    assertNull(
+        converter.convert("my.counter", DimensionList.create(Dimension.create("dim", "b")), 1L));
+    assertEquals(
+        "prefix.my.counter,dim=a count,delta=2",
+        serialize(
+            converter.convert(
+                "my.counter", DimensionList.create(Dimension.create("dim", "a")), 3L)));
+    assertEquals(2, converter.size());
+    assertThrows(
+        MetricException.class, () -> CumulativeToDeltaConverter.create().convert("", null, 1L));
+  }
+
+  @Test
+  void idleSeriesAreEvicted() throws MetricException {
+    AtomicLong nanos = new AtomicLong();
+    CumulativeToDeltaConverter converter =
+        new CumulativeToDeltaConverter(
+            MetricBuilderFactory.builder().build(), Duration.ofMinutes(1), nanos::get);
+    converter.convert("active", null, 1L);
+    converter.convert("idle", null, 1L);
+
+    nanos.addAndGet(Duration.ofSeconds(45).toNanos());
+    converter.convert("active", null, 2L);
+    nanos.addAndGet(Duration.ofSeconds(30).toNanos());
+    assertNotNull(converter.convert("active", null, 3L));
+
+    assertEquals(1, converter.size());
+    // the evicted series starts over with a new baseline.
+    assertNull(converter.convert("idle", null, 5L));
+  }
+
+  @Test
+  void invalidSettingsAreRejected() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            CumulativeToDeltaConverter.create(
+                MetricBuilderFactory.builder().build(), Duration.ZERO));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> CumulativeToDeltaConverter.create(null, Duration.ofMinutes(1)));
+  }
+}
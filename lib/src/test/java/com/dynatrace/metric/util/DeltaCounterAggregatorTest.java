@@ -0,0 +1,161 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class DeltaCounterAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void aggregatesOneLinePerSeries() {
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create();
+    DimensionList dimensions = DimensionList.create(Dimension.create("dim", "a"));
+    for (int i = 0; i < 100; i++) {
+      aggregator.add("my.counter", dimensions, 2L);
+      aggregator.add("my.counter", DimensionList.create(Dimension.create("dim", "b")), 1L);
+    }
+    aggregator.add("my.double", null, 0.5);
+    aggregator.add("my.double", null, 0.25);
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+
+    assertEquals(3, lines.size());
+    assertEquals("my.counter,dim=a count,delta=200 1656000000000", lines.get(0));
+    assertEquals("my.counter,dim=b count,delta=100 1656000000000", lines.get(1));
+    assertEquals("my.double count,delta=0.75 1656000000000", lines.get(2));
+  }
+
+  @Test
+  void flushResetsCounters() {
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create();
+    DeltaCounterAggregator.LongCounter counter = aggregator.longCounter("my.counter", null);
+    counter.add(5);
+
+    assertEquals(Collections.singletonList("my.counter count,delta=5"), aggregator.flush(null));
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    counter.add(3);
+    assertEquals(Collections.singletonList("my.counter count,delta=3"), aggregator.flush(null));
+  }
+
+  @Test
+  void normalizedSeriesAreTheSame() {
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create();
+
+    assertSame(
+        aggregator.longCounter("my.counter", DimensionList.create(Dimension.create("Dim", "a"))),
+        aggregator.longCounter("my.counter", DimensionList.create(Dimension.create("dim", "a"))));
+    // the order of dimensions and overwritten duplicate keys do not make a new series.
+    assertSame(
+        aggregator.longCounter(
+            "my.counter",
+            DimensionList.create(Dimension.create("a", "1"), Dimension.create("b", "2"))),
+        aggregator.longCounter(
+            "my.counter",
+            DimensionList.create(
+                Dimension.create("b", "2"),
+                Dimension.create("a", "0"),
+                Dimension.create("a", "1"))));
+    assertSame(
+        aggregator.longCounter("my.counter", null),
+        aggregator.longCounter("my.counter", DimensionList.create()));
+    // metric keys that normalize to the same key share the series.
+    assertSame(
+        aggregator.longCounter("my.counter!", null), aggregator.longCounter("my.counter?", null));
+    assertThrows(
+        IllegalArgumentException.class, () -> aggregator.doubleCounter("my.counter", null));
+  }
+
+  @Test
+  void usesFactory() {
+    MetricBuilderFactory factory =
+        MetricBuilderFactory.builder()
+            .withPrefix("prefix")
+            .withDefaultDimensions(DimensionList.create(Dimension.create("default", "dim")))
+            .build();
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create(factory);
+    aggregator.add("my.counter", null, 1L);
+
+    assertEquals(
+        Collections.singletonList("prefix.my.counter,default=dim count,delta=1"),
+        aggregator.flush(null));
+    assertThrows(IllegalArgumentException.class, () -> DeltaCounterAggregator.create(null));
+  }
+
+  @Test
+  void dropsInvalidSeries() {
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create();
+    aggregator.add("~~~", null, 1L);
+    aggregator.add(".", null, 1L);
+    aggregator.add("valid", null, 1L);
+
+    List<String> lines = aggregator.flush(null);
+    Collections.sort(lines);
+    assertEquals(2, lines.size());
+    assertEquals("_ count,delta=1", lines.get(0));
+    assertEquals("valid count,delta=1", lines.get(1));
+  }
+
+  @Test
+  void concurrentUpdatesAreNotLost() throws Exception {
+    DeltaCounterAggregator aggregator = DeltaCounterAggregator.create();
+    DeltaCounterAggregator.LongCounter counter = aggregator.longCounter("my.counter", null);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 100_000; i++) {
+                    counter.add(1);
+                  }
+                }));
+      }
+
+      // flush while the threads are adding, every added value has to end up in one of the lines.
+      long total = 0;
+      for (Future<?> result : results) {
+        while (!result.isDone()) {
+          total += sum(aggregator.flush(null));
+        }
+        result.get();
+      }
+      total += sum(aggregator.flush(null));
+
+      assertEquals(800_000, total);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static long sum(List<String> lines) {
+    long sum = 0;
+    for (String line : lines) {
+      sum += Long.parseLong(line.substring(line.indexOf('=') + 1));
+    }
+    return sum;
+  }
+}
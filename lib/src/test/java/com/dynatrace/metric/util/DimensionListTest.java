@@ -19,6 +19,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.jupiter.api.Test;
 
 class DimensionListTest {
@@ -250,4 +254,83 @@ class DimensionListTest {
     String actual = dl.serialize();
     assertEquals(expected, actual);
   }
+
+  @Test
+  void normalizedOnFirstUse() {
+    Collection<Dimension> input = new ArrayList<>();
+    input.add(Dimension.create("Key~1", "value1"));
+    DimensionList dl = DimensionList.fromCollection(input);
+    assertFalse(dl.isNormalized());
+
+    // changes to the passed collection do not affect the list.
+    input.add(Dimension.create("key2", "value2"));
+
+    assertEquals("key_1=value1", dl.serialize());
+    assertTrue(dl.isNormalized());
+    assertUnorderedEquals(
+        Collections.singletonList(Dimension.create("key_1", "value1")), dl.getDimensions());
+  }
+
+  @Test
+  void normalizedOnMerge() {
+    DimensionList dl = DimensionList.create(Dimension.create("Key", "value"));
+    assertFalse(dl.isNormalized());
+
+    DimensionList merged = DimensionList.merge(dl);
+    assertTrue(dl.isNormalized());
+    assertEquals("key=value", merged.serialize());
+  }
+
+  @Test
+  void normalizedOnceAcrossThreads() throws Exception {
+    DimensionList dl =
+        DimensionList.create(Dimension.create("key1", "value1"), Dimension.create("key2", "v 2"));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 16; i++) {
+        results.add(executor.submit(dl::serialize));
+      }
+      for (Future<String> result : results) {
+        assertEquals("key1=value1,key2=v\\ 2", result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void equalsComparesNormalizedDimensions() {
+    DimensionList dl1 = DimensionList.create(Dimension.create("Key", "value"));
+    DimensionList dl2 = DimensionList.create(Dimension.create("key", "value"));
+    DimensionList dl3 = DimensionList.create(Dimension.create("key", "other"));
+
+    assertEquals(dl1, dl2);
+    assertEquals(dl1.hashCode(), dl2.hashCode());
+    assertNotEquals(dl1, dl3);
+    assertEquals(DimensionList.create(), DimensionList.fromCollection(null));
+  }
+
+  @Test
+  void equalsComparesSerializedDimensions() {
+    DimensionList ab = DimensionList.create(Dimension.create("a", "1"), Dimension.create("b", "2"));
+    DimensionList ba = DimensionList.create(Dimension.create("b", "2"), Dimension.create("a", "1"));
+    DimensionList duplicates =
+        DimensionList.create(
+            Dimension.create("a", "2"), Dimension.create("b", "2"), Dimension.create("a", "1"));
+    DimensionList empty =
+        DimensionList.create(
+            Dimension.create("a", "1"), Dimension.create("b", "2"), Dimension.create("c", ""));
+
+    assertEquals(ab, ba);
+    assertEquals(ab, duplicates);
+    assertEquals(ab, empty);
+    assertEquals(ab.hashCode(), ba.hashCode());
+    assertEquals(ab.hashCode(), duplicates.hashCode());
+    assertEquals(Fingerprint.of("key", ab), Fingerprint.of("key", duplicates));
+    assertNotEquals(
+        ab,
+        DimensionList.create(
+            Dimension.create("a", "1"), Dimension.create("b", "2"), Dimension.create("a", "2")));
+  }
 }
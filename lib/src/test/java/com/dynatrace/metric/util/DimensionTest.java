@@ -25,4 +25,44 @@ class DimensionTest {
     assertEquals("key=value", Dimension.create("key", "value").serialize());
     assertEquals("~!@#$=~@#$", Dimension.create("~!@#$", "~@#$").serialize());
   }
+
+  @Test
+  void serializeNormalized() {
+    assertEquals("key=value", Dimension.createNormalized("key", "value").serialize());
+    assertEquals("key=a\\ b\\=c", Dimension.createNormalized("key", "a b=c").serialize());
+    assertEquals("key=äöü", Dimension.createNormalized("key", "äöü").serialize());
+    assertEquals("key=\\\"😀\\\"", Dimension.createNormalized("key", "\"😀\"").serialize());
+  }
+
+  @Test
+  void normalizedEqualsCreated() {
+    String[][] pairs = {
+      {"key", "value"}, {"key", "äöü"}, {"key", "😀"}, {"key", ""}, {"key", null}
+    };
+    for (String[] pair : pairs) {
+      Dimension created = Dimension.create(pair[0], pair[1]);
+      Dimension normalized = Dimension.createNormalized(pair[0], pair[1]);
+
+      assertEquals(created, normalized);
+      assertEquals(normalized, created);
+      assertEquals(created.hashCode(), normalized.hashCode());
+      assertEquals(pair[0], normalized.getKey());
+      assertEquals(pair[1], normalized.getValue());
+    }
+
+    assertNotEquals(Dimension.create("key", "value"), Dimension.createNormalized("key", "valuf"));
+    assertNotEquals(Dimension.createNormalized("key", "value"), Dimension.create("kez", "value"));
+  }
+
+  @Test
+  void mapKeyComparesKeysInEitherRepresentation() {
+    Dimension.Key key = Dimension.createNormalized("käy", "1").mapKey();
+
+    assertEquals(key, Dimension.create("käy", "2").mapKey());
+    assertEquals(key.hashCode(), Dimension.create("käy", "2").mapKey().hashCode());
+    assertEquals("käy".hashCode(), key.hashCode());
+    assertNotEquals(key, Dimension.createNormalized("kay", "1").mapKey());
+    assertEquals(
+        Dimension.createNormalized("😀", "1").mapKey(), Dimension.create("😀", "2").mapKey());
+  }
 }
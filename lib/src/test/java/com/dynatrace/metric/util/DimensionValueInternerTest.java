@@ -0,0 +1,101 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.dynatrace.testutils.TestUtils;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DimensionValueInternerTest {
+  private static final List<String> VALUES =
+      Arrays.asList(
+          "value",
+          "",
+          "a b,c=d\\e\"f",
+          "\u0000a\u0007",
+          "äöü",
+          "😀 emoji",
+          TestUtils.repeatStringNTimes("a", 270),
+          TestUtils.repeatStringNTimes("a", 249) + "=",
+          TestUtils.repeatStringNTimes("=", 200));
+
+  @Test
+  void internedListsSerializeLikeRegularLists() {
+    DimensionValueInterner interner = DimensionValueInterner.create(100);
+    for (String value : VALUES) {
+      List<Dimension> dimensions =
+          Arrays.asList(Dimension.create("key", value), Dimension.create("other", value));
+
+      DimensionList expected = DimensionList.fromCollection(dimensions);
+      DimensionList actual = DimensionList.fromCollection(dimensions, interner);
+
+      assertEquals(expected.serialize(), actual.serialize());
+      assertEquals(expected.getDimensions(), actual.getDimensions());
+    }
+  }
+
+  @Test
+  void countsHitsAndMisses() {
+    DimensionValueInterner interner = DimensionValueInterner.create(100);
+
+    DimensionList.fromCollection(
+            Arrays.asList(
+                Dimension.create("host", "host-1"),
+                Dimension.create("method", "GET"),
+                Dimension.create("other_host", "host-1")),
+            interner)
+        .serialize();
+    DimensionList.fromCollection(
+            Arrays.asList(Dimension.create("host", "host-1"), Dimension.create("method", "POST")),
+            interner)
+        .serialize();
+
+    assertEquals(3, interner.size());
+    assertEquals(3, interner.getMissCount());
+    assertEquals(2, interner.getHitCount());
+  }
+
+  @Test
+  void nullValuesAreNotInterned() {
+    DimensionValueInterner interner = DimensionValueInterner.create(100);
+
+    DimensionList list =
+        DimensionList.fromCollection(
+            Arrays.asList(Dimension.create("key", null), Dimension.create("key2", "value")),
+            interner);
+
+    assertEquals("key2=value", list.serialize());
+    assertEquals(1, interner.size());
+  }
+
+  @Test
+  void staysWithinMaxSize() {
+    DimensionValueInterner interner = DimensionValueInterner.create(10);
+    for (int i = 0; i < 1000; i++) {
+      DimensionList.fromCollection(Arrays.asList(Dimension.create("key", "value" + i)), interner)
+          .serialize();
+    }
+
+    assertEquals(10, interner.size());
+    assertEquals(1000, interner.getMissCount());
+  }
+
+  @Test
+  void createWithInvalidSizeThrows() {
+    assertThrows(IllegalArgumentException.class, () -> DimensionValueInterner.create(0));
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DistinctCountAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void exportsDistinctCountsPerFlush() {
+    DistinctCountAggregator aggregator = DistinctCountAggregator.create();
+    DimensionList dimensions = DimensionList.create(Dimension.create("dim", "a"));
+    aggregator.record("unique.users", dimensions, "alice");
+    aggregator.record("unique.users", dimensions, "bob");
+    aggregator.record("unique.users", dimensions, "alice");
+    aggregator.record("unique.ips", null, 0x7f000001L);
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+    assertEquals(
+        Arrays.asList(
+            "unique.ips gauge,1 1656000000000", "unique.users,dim=a gauge,2 1656000000000"),
+        lines);
+
+    // every flush counts the values since the previous one.
+    assertTrue(aggregator.flush(TIMESTAMP).isEmpty());
+    aggregator.record("unique.users", dimensions, "alice");
+    assertEquals(Collections.singletonList("unique.users,dim=a gauge,1"), aggregator.flush(null));
+  }
+
+  @Test
+  void mergedSketchesAreExported() {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix("prefix").build();
+    DistinctCountAggregator aggregator =
+        DistinctCountAggregator.builder()
+            .withMetricBuilderFactory(factory)
+            .withPrecision(10)
+            .build();
+    DistinctCountSketch remote = DistinctCountSketch.create(10);
+    remote.record("a");
+    remote.record("b");
+
+    DistinctCountSketch sketch = aggregator.sketch("unique.users", null);
+    assertSame(sketch, aggregator.sketch("unique.users", null));
+    sketch.record("b");
+    sketch.merge(remote);
+    assertEquals(Collections.singletonList("prefix.unique.users gauge,2"), aggregator.flush(null));
+  }
+
+  @Test
+  void invalidSettingsAreRejected() {
+    assertThrows(
+        IllegalArgumentException.class, () -> DistinctCountAggregator.builder().withPrecision(3));
+    assertThrows(
+        IllegalArgumentException.class, () -> DistinctCountAggregator.builder().withPrecision(19));
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class DistinctCountSketchTest {
+  @Test
+  void estimatesDistinctValues() {
+    DistinctCountSketch sketch = DistinctCountSketch.create();
+    assertEquals(0, sketch.getEstimate());
+    for (int i = 0; i < 100_000; i++) {
+      sketch.record(i % 50_000);
+      sketch.record("user-" + (i % 50_000));
+    }
+    // five standard errors of 1.6%.
+    assertEquals(100_000, sketch.getEstimate(), 100_000 * 0.08);
+
+    DistinctCountSketch small = DistinctCountSketch.create(14);
+    small.record(1);
+    small.record(1);
+    small.record("1");
+    small.record((String) null);
+    assertEquals(3, small.getEstimate());
+    assertEquals(14, small.getPrecision());
+  }
+
+  @Test
+  void mergesSketchesFromOtherThreadsAndProcesses() throws Exception {
+    DistinctCountSketch merged = DistinctCountSketch.create();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<DistinctCountSketch>> results = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        long offset = t * 10_000L;
+        results.add(
+            executor.submit(
+                () -> {
+                  DistinctCountSketch sketch = DistinctCountSketch.create();
+                  for (long i = 0; i < 20_000; i++) {
+                    // half of the values overlap with the next thread.
+                    sketch.record(offset + i);
+                  }
+                  return sketch;
+                }));
+      }
+      for (Future<DistinctCountSketch> result : results) {
+        merged.merge(DistinctCountSketch.fromByteArray(result.get().toByteArray()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(50_000, merged.getEstimate(), 50_000 * 0.08);
+    assertArrayEquals(
+        merged.toByteArray(),
+        DistinctCountSketch.fromByteArray(merged.toByteArray()).toByteArray());
+  }
+
+  @Test
+  void drainResetsTheSketch() {
+    DistinctCountSketch sketch = DistinctCountSketch.create(8);
+    sketch.record("a");
+    sketch.record("b");
+    DistinctCountSketch snapshot = sketch.drain();
+    assertEquals(2, snapshot.getEstimate());
+    assertEquals(0, sketch.getEstimate());
+    assertEquals(8, snapshot.getPrecision());
+  }
+
+  @Test
+  void invalidArgumentsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> DistinctCountSketch.create(3));
+    assertThrows(IllegalArgumentException.class, () -> DistinctCountSketch.create(19));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> DistinctCountSketch.create(10).merge(DistinctCountSketch.create(12)));
+    assertThrows(IllegalArgumentException.class, () -> DistinctCountSketch.fromByteArray(null));
+    assertThrows(
+        IllegalArgumentException.class, () -> DistinctCountSketch.fromByteArray(new byte[] {4}));
+    byte[] invalidRank = DistinctCountSketch.create(4).toByteArray();
+    invalidRank[1] = 62;
+    assertThrows(
+        IllegalArgumentException.class, () -> DistinctCountSketch.fromByteArray(invalidRank));
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class FingerprintMapTest {
+  @Test
+  void findsAddedFingerprints() {
+    FingerprintMap map = new FingerprintMap();
+    for (long i = 0; i < 10_000; i++) {
+      map.add(i * 31, i, 0);
+    }
+
+    assertEquals(10_000, map.size());
+    assertTrue(map.capacity() >= 20_000);
+    for (long i = 0; i < 10_000; i++) {
+      int slot = map.find(i * 31);
+      assertTrue(slot >= 0);
+      assertEquals(i, map.valueAt(slot));
+    }
+    assertEquals(-1, map.find(7));
+  }
+
+  @Test
+  void removesUnusedEntriesAndShrinks() {
+    FingerprintMap map = new FingerprintMap();
+    for (long i = 1; i <= 1000; i++) {
+      map.add(i, i, i % 10 == 0 ? 100 : 0);
+    }
+    int capacity = map.capacity();
+
+    assertEquals(900, map.removeUnusedSince(50));
+    assertEquals(100, map.size());
+    assertTrue(map.capacity() < capacity);
+    assertEquals(-1, map.find(1));
+    assertEquals(10, map.valueAt(map.find(10)));
+  }
+
+  @Test
+  void fingerprintsOfCompactAndStringDimensionsAreEqual() {
+    DimensionList raw = DimensionList.create(Dimension.create("key", "välue"));
+    DimensionList compact =
+        DimensionList.create(Dimension.createNormalized(Latin1.encode("key"), "välue"));
+
+    assertEquals(Fingerprint.of("metric", raw), Fingerprint.of("metric", compact));
+    assertNotEquals(Fingerprint.of("metric", raw), Fingerprint.of("metric2", raw));
+
+    // length prefixes keep concatenations apart.
+    Set<Long> fingerprints = new HashSet<>();
+    fingerprints.add(Fingerprint.of("a", DimensionList.create(Dimension.create("bc", "d"))));
+    fingerprints.add(Fingerprint.of("a", DimensionList.create(Dimension.create("b", "cd"))));
+    fingerprints.add(Fingerprint.of("ab", DimensionList.create(Dimension.create("c", "d"))));
+    assertEquals(3, fingerprints.size());
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class FlushSchedulerTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void windowsAreAlignedToInterval() {
+    long minute = Duration.ofMinutes(1).toMillis();
+    assertEquals(TIMESTAMP.plusSeconds(60), FlushScheduler.windowEnd(TIMESTAMP, minute));
+    assertEquals(
+        TIMESTAMP.plusSeconds(60), FlushScheduler.windowEnd(TIMESTAMP.plusSeconds(59), minute));
+    assertEquals(
+        TIMESTAMP.plusSeconds(120), FlushScheduler.windowEnd(TIMESTAMP.plusSeconds(60), minute));
+    assertEquals(
+        TIMESTAMP.plusSeconds(10),
+        FlushScheduler.windowEnd(TIMESTAMP.plusMillis(1), Duration.ofSeconds(10).toMillis()));
+  }
+
+  @Test
+  void windowLinesAreStampedWithWindowEnd() {
+    List<List<String>> received = new ArrayList<>();
+    try (FlushScheduler scheduler =
+        FlushScheduler.builder(received::add)
+            .withClock(Clock.fixed(TIMESTAMP, ZoneOffset.UTC))
+            .build()) {
+      DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+      GaugeAggregator gauges = GaugeAggregator.create();
+      scheduler.register(counters);
+      scheduler.register(gauges);
+      counters.add("my.counter", null, 3L);
+      gauges.set("my.gauge", null, 5L);
+
+      scheduler.flushWindow(TIMESTAMP.plusSeconds(60));
+      // nothing was recorded, the sink is not called.
+      scheduler.flushWindow(TIMESTAMP.plusSeconds(120));
+
+      scheduler.unregister(gauges);
+      gauges.set("my.gauge", null, 6L);
+      scheduler.flushWindow(TIMESTAMP.plusSeconds(180));
+    }
+
+    assertEquals(1, received.size());
+    List<String> lines = new ArrayList<>(received.get(0));
+    Collections.sort(lines);
+    assertEquals("my.counter count,delta=3 1656000060000", lines.get(0));
+    assertEquals("my.gauge gauge,5 1656000060000", lines.get(1));
+  }
+
+  @Test
+  void failingSinkDoesNotStopFlushing() {
+    List<List<String>> received = new ArrayList<>();
+    DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+    try (FlushScheduler scheduler =
+        FlushScheduler.builder(
+                lines -> {
+                  received.add(lines);
+                  throw new IllegalStateException("sink failed");
+                })
+            .build()) {
+      scheduler.register(counters);
+      counters.add("my.counter", null, 1L);
+      scheduler.flushWindow(TIMESTAMP);
+      counters.add("my.counter", null, 1L);
+      scheduler.flushWindow(TIMESTAMP.plusSeconds(60));
+    }
+    assertEquals(2, received.size());
+  }
+
+  @Test
+  void flushesAtEndOfEveryWindowAndOnClose() throws Exception {
+    BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+    DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+    long interval = 50;
+    try (FlushScheduler scheduler =
+        FlushScheduler.builder(received::add).withInterval(Duration.ofMillis(interval)).build()) {
+      scheduler.register(counters);
+      for (int window = 0; window < 2; window++) {
+        counters.add("my.counter", null, 1L);
+        List<String> lines = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(lines);
+        String line = lines.get(0);
+        long timestamp = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        assertEquals(0, timestamp % interval, line);
+      }
+      counters.add("my.counter", null, 7L);
+      // values recorded in the window that is open when closing are flushed on close, unless the
+      // window happened to end first.
+    }
+    long total = 0;
+    for (List<String> lines : received) {
+      for (String line : lines) {
+        total += Long.parseLong(line.substring(line.indexOf('=') + 1, line.lastIndexOf(' ')));
+      }
+    }
+    assertEquals(7, total);
+  }
+
+  @Test
+  void closeStampsLinesWithEndOfCurrentWindow() {
+    List<List<String>> received = new ArrayList<>();
+    DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+    try (FlushScheduler scheduler =
+        FlushScheduler.builder(received::add)
+            .withClock(Clock.fixed(TIMESTAMP.plusSeconds(1), ZoneOffset.UTC))
+            .build()) {
+      scheduler.register(counters);
+      counters.add("my.counter", null, 1L);
+    }
+    assertEquals(
+        Collections.singletonList(
+            Collections.singletonList("my.counter count,delta=1 1656000060000")),
+        received);
+  }
+
+  @Test
+  void closingFromTheSinkDoesNotDeadlock() throws Exception {
+    BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+    CountDownLatch closed = new CountDownLatch(1);
+    AtomicReference<FlushScheduler> scheduler = new AtomicReference<>();
+    DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+    scheduler.set(
+        FlushScheduler.builder(
+                lines -> {
+                  received.add(lines);
+                  if (closed.getCount() > 0) {
+                    counters.add("my.counter", null, 2L);
+                    scheduler.get().close();
+                    closed.countDown();
+                  }
+                })
+            .withInterval(Duration.ofMillis(50))
+            .build());
+    scheduler.get().register(counters);
+    counters.add("my.counter", null, 1L);
+
+    assertTrue(closed.await(5, TimeUnit.SECONDS));
+    assertEquals(2, received.size());
+    assertTrue(received.poll().get(0).startsWith("my.counter count,delta=1 "));
+    assertTrue(received.poll().get(0).startsWith("my.counter count,delta=2 "));
+  }
+
+  @Test
+  void closeWaitsForRunningFlushOnMultiThreadedExecutor() throws Exception {
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+    BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+    CountDownLatch inSink = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    DeltaCounterAggregator counters = DeltaCounterAggregator.create();
+    try {
+      FlushScheduler scheduler =
+          FlushScheduler.builder(
+                  lines -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    received.add(lines);
+                    inSink.countDown();
+                    try {
+                      release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                      Thread.currentThread().interrupt();
+                    }
+                    active.decrementAndGet();
+                  })
+              .withInterval(Duration.ofMillis(50))
+              .withExecutor(executor)
+              .build();
+      scheduler.register(counters);
+      counters.add("my.counter", null, 1L);
+      assertTrue(inSink.await(5, TimeUnit.SECONDS));
+
+      counters.add("my.counter", null, 2L);
+      Thread closing = new Thread(scheduler::close);
+      closing.start();
+      closing.join(200);
+      // the final flush waits for the scheduled flush that is still in the sink.
+      assertTrue(closing.isAlive());
+      release.countDown();
+      closing.join(5000);
+      assertFalse(closing.isAlive());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+    assertEquals(1, maxActive.get());
+    assertEquals(2, received.size());
+    assertTrue(received.poll().get(0).startsWith("my.counter count,delta=1 "));
+    assertTrue(received.poll().get(0).startsWith("my.counter count,delta=2 "));
+  }
+
+  @Test
+  void errorInAggregatorDoesNotStopFlushing() throws Exception {
+    BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+    AtomicInteger flushes = new AtomicInteger();
+    try (FlushScheduler scheduler =
+        FlushScheduler.builder(received::add).withInterval(Duration.ofMillis(50)).build()) {
+      scheduler.register(
+          timestamp -> {
+            if (flushes.incrementAndGet() == 1) {
+              throw new AssertionError("aggregator failed");
+            }
+            return Collections.singletonList("my.gauge gauge,1");
+          });
+      assertNotNull(received.poll(5, TimeUnit.SECONDS));
+    }
+    assertTrue(flushes.get() >= 2);
+  }
+
+  @Test
+  void invalidSettingsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> FlushScheduler.builder(null));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> FlushScheduler.builder(lines -> {}).withInterval(Duration.ZERO));
+  }
+}
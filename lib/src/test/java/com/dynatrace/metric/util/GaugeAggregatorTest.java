@@ -0,0 +1,170 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class GaugeAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void emitsLastValuePerSeries() {
+    GaugeAggregator aggregator = GaugeAggregator.create();
+    for (int i = 0; i < 100; i++) {
+      aggregator.set("my.long", null, (long) i);
+    }
+    aggregator.set("my.double", DimensionList.create(Dimension.create("dim", "a")), 0.5);
+    aggregator.longGauge("my.unset", null);
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+
+    assertEquals(2, lines.size());
+    assertEquals("my.double,dim=a gauge,0.5 1656000000000", lines.get(0));
+    assertEquals("my.long gauge,99 1656000000000", lines.get(1));
+  }
+
+  @Test
+  void emitsOnlyChanges() {
+    GaugeAggregator aggregator = GaugeAggregator.create();
+    GaugeAggregator.LongGauge gauge = aggregator.longGauge("my.gauge", null);
+    gauge.set(5);
+
+    assertEquals(Collections.singletonList("my.gauge gauge,5"), aggregator.flush(null));
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    gauge.set(6);
+    gauge.set(5);
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    gauge.set(7);
+    assertEquals(Collections.singletonList("my.gauge gauge,7"), aggregator.flush(null));
+  }
+
+  @Test
+  void changesWithinDeadbandAreNotEmitted() {
+    GaugeAggregator aggregator = GaugeAggregator.builder().withDeadband(1.0).build();
+    GaugeAggregator.DoubleGauge gauge = aggregator.doubleGauge("my.gauge", null);
+    gauge.set(10.0);
+    assertEquals(Collections.singletonList("my.gauge gauge,10.0"), aggregator.flush(null));
+
+    gauge.set(10.75);
+    assertTrue(aggregator.flush(null).isEmpty());
+    gauge.set(9.0);
+    assertTrue(aggregator.flush(null).isEmpty());
+    gauge.set(11.5);
+    assertEquals(Collections.singletonList("my.gauge gauge,11.5"), aggregator.flush(null));
+  }
+
+  @Test
+  void unchangedValuesAreEmittedWithHeartbeat() {
+    AtomicLong nanos = new AtomicLong();
+    GaugeAggregator aggregator =
+        GaugeAggregator.builder()
+            .withHeartbeat(Duration.ofMinutes(1))
+            .withNanoClock(nanos::get)
+            .build();
+    aggregator.set("my.gauge", null, 3L);
+    assertEquals(1, aggregator.flush(null).size());
+
+    nanos.addAndGet(Duration.ofSeconds(59).toNanos());
+    assertTrue(aggregator.flush(null).isEmpty());
+    nanos.addAndGet(Duration.ofSeconds(1).toNanos());
+    assertEquals(Collections.singletonList("my.gauge gauge,3"), aggregator.flush(null));
+    assertTrue(aggregator.flush(null).isEmpty());
+  }
+
+  @Test
+  void gaugesExpireAfterHeartbeatsWithoutSet() {
+    AtomicLong nanos = new AtomicLong();
+    GaugeAggregator aggregator =
+        GaugeAggregator.builder()
+            .withHeartbeat(Duration.ofMinutes(1))
+            .withExpiry(2)
+            .withNanoClock(nanos::get)
+            .build();
+    GaugeAggregator.LongGauge gauge = aggregator.longGauge("my.gauge", null);
+    gauge.set(3L);
+    assertEquals(1, aggregator.flush(null).size());
+
+    // setting the same value again restarts the expiry.
+    nanos.addAndGet(Duration.ofMinutes(1).toNanos());
+    gauge.set(3L);
+    assertEquals(1, aggregator.flush(null).size());
+    for (int heartbeat = 0; heartbeat < 2; heartbeat++) {
+      nanos.addAndGet(Duration.ofMinutes(1).toNanos());
+      assertEquals(Collections.singletonList("my.gauge gauge,3"), aggregator.flush(null));
+    }
+    nanos.addAndGet(Duration.ofMinutes(1).toNanos());
+    assertTrue(aggregator.flush(null).isEmpty());
+    nanos.addAndGet(Duration.ofMinutes(1).toNanos());
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    // an expired gauge is emitted again once it is set.
+    gauge.set(3L);
+    assertEquals(Collections.singletonList("my.gauge gauge,3"), aggregator.flush(null));
+  }
+
+  @Test
+  void expiredGaugesAreEvicted() {
+    AtomicLong nanos = new AtomicLong();
+    GaugeAggregator aggregator =
+        GaugeAggregator.builder()
+            .withHeartbeat(Duration.ZERO)
+            .withExpiry(1)
+            .withNanoClock(nanos::get)
+            .build();
+    aggregator.set("my.gauge", null, 3L);
+    assertEquals(1, aggregator.flush(null).size());
+    assertEquals(1, aggregator.flush(null).size());
+    for (int i = 0; i < SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      assertTrue(aggregator.flush(null).isEmpty());
+    }
+    // the series was evicted, and is created again with the new value.
+    aggregator.set("my.gauge", null, 4.0);
+    assertEquals(Collections.singletonList("my.gauge gauge,4.0"), aggregator.flush(null));
+  }
+
+  @Test
+  void invalidSettingsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> GaugeAggregator.builder().withDeadband(-1));
+    assertThrows(
+        IllegalArgumentException.class, () -> GaugeAggregator.builder().withDeadband(Double.NaN));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> GaugeAggregator.builder().withHeartbeat(Duration.ofSeconds(-1)));
+    assertThrows(IllegalArgumentException.class, () -> GaugeAggregator.builder().withExpiry(-1));
+    GaugeAggregator aggregator = GaugeAggregator.create();
+    aggregator.set("my.gauge", null, 1.0);
+    assertThrows(IllegalArgumentException.class, () -> aggregator.set("my.gauge", null, 1L));
+  }
+
+  @Test
+  void nonFiniteValuesAreDropped() {
+    GaugeAggregator aggregator = GaugeAggregator.create();
+    GaugeAggregator.DoubleGauge gauge = aggregator.doubleGauge("my.gauge", null);
+    gauge.set(Double.NaN);
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    gauge.set(1.0);
+    assertEquals(Collections.singletonList("my.gauge gauge,1.0"), aggregator.flush(null));
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.dynatrace.testutils.TestUtils;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HistogramAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void exportsSummaryAndBuckets() {
+    HistogramAggregator aggregator = HistogramAggregator.create(0.1, 0.5, 1);
+    HistogramAggregator.Histogram histogram = aggregator.histogram("my.latency", null);
+    histogram.record(0.05);
+    histogram.record(0.1);
+    histogram.record(0.25);
+    histogram.record(2);
+    histogram.record(4);
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+
+    assertEquals(
+        Arrays.asList(
+            "my.latency gauge,min=0.05,max=4.0,sum=6.4,count=5 1656000000000",
+            "my.latency.bucket,le=+Inf count,delta=2 1656000000000",
+            "my.latency.bucket,le=0.1 count,delta=2 1656000000000",
+            "my.latency.bucket,le=0.5 count,delta=1 1656000000000"),
+        lines);
+    assertTrue(aggregator.flush(TIMESTAMP).isEmpty());
+  }
+
+  @Test
+  void boundaryIsAddedToSeriesDimensions() {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix("prefix").build();
+    HistogramAggregator aggregator = HistogramAggregator.create(factory, 10);
+    aggregator.record("my.latency", DimensionList.create(Dimension.create("dim", "a")), 5);
+    aggregator.record("my.latency", DimensionList.create(Dimension.create("dim", "a")), Double.NaN);
+
+    List<String> lines = aggregator.flush(null);
+    assertEquals(2, lines.size());
+    assertTrue(lines.contains("prefix.my.latency,dim=a gauge,min=5.0,max=5.0,sum=5.0,count=1"));
+    assertTrue(
+        lines.contains("prefix.my.latency.bucket,dim=a,le=10.0 count,delta=1")
+            || lines.contains("prefix.my.latency.bucket,le=10.0,dim=a count,delta=1"),
+        lines.toString());
+  }
+
+  @Test
+  void withoutBoundariesAllValuesAreInOneBucket() {
+    HistogramAggregator aggregator = HistogramAggregator.create();
+    aggregator.record("my.latency", null, -1);
+    aggregator.record("my.latency", null, 1);
+
+    List<String> lines = aggregator.flush(null);
+    Collections.sort(lines);
+    assertEquals(
+        Arrays.asList(
+            "my.latency gauge,min=-1.0,max=1.0,sum=0.0,count=2",
+            "my.latency.bucket,le=+Inf count,delta=2"),
+        lines);
+  }
+
+  @Test
+  void keysWithoutRoomForBucketSuffixAreDropped() {
+    HistogramAggregator aggregator = HistogramAggregator.create(1);
+    // metric keys are at most 250 characters long.
+    String longest = TestUtils.repeatStringNTimes("a", 250 - ".bucket".length());
+    aggregator.record(longest, null, 0.5);
+    aggregator.record(longest + "a", null, 0.5);
+    aggregator.record(TestUtils.repeatStringNTimes("a", 250), null, 0.5);
+
+    List<String> lines = aggregator.flush(null);
+    Collections.sort(lines);
+    assertEquals(
+        Arrays.asList(
+            longest + " gauge,min=0.5,max=0.5,sum=0.5,count=1",
+            longest + ".bucket,le=1.0 count,delta=1"),
+        lines);
+  }
+
+  @Test
+  void invalidBoundariesAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> HistogramAggregator.create(1, 1));
+    assertThrows(IllegalArgumentException.class, () -> HistogramAggregator.create(2, 1));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> HistogramAggregator.create(1, Double.POSITIVE_INFINITY));
+    assertThrows(IllegalArgumentException.class, () -> HistogramAggregator.create((double[]) null));
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class HyperLogLogTest {
+  private static long hash(long value) {
+    return Fingerprint.finish(Fingerprint.add(0, value));
+  }
+
+  @Test
+  void estimatesDistinctHashes() {
+    for (long distinct : new long[] {0, 1, 100, 10_000, 1_000_000}) {
+      HyperLogLog sketch = new HyperLogLog(12);
+      for (long i = 0; i < distinct; i++) {
+        sketch.add(hash(i));
+        // duplicates do not change the estimate.
+        sketch.add(hash(i));
+      }
+      // five standard errors of 1.6%.
+      assertEquals(distinct, sketch.estimate(), Math.max(1, distinct * 0.08), "" + distinct);
+    }
+  }
+
+  @Test
+  void mergesSketchesOfTheSamePrecision() {
+    HyperLogLog left = new HyperLogLog(10);
+    HyperLogLog right = new HyperLogLog(10);
+    HyperLogLog all = new HyperLogLog(10);
+    for (long i = 0; i < 50_000; i++) {
+      (i % 2 == 0 ? left : right).add(hash(i));
+      all.add(hash(i));
+    }
+    left.merge(right);
+    assertEquals(all.estimate(), left.estimate());
+
+    HyperLogLog drained = new HyperLogLog(10);
+    left.drainInto(drained);
+    assertEquals(0, left.estimate());
+    assertEquals(all.estimate(), drained.estimate());
+    assertThrows(IllegalArgumentException.class, () -> left.merge(new HyperLogLog(11)));
+    assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(3));
+    assertThrows(IllegalArgumentException.class, () -> new HyperLogLog(19));
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+
+class MetricBatchSerializerTest {
+  private static List<Metric.Builder> createMetrics(int count) throws MetricException {
+    List<Metric.Builder> metrics = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      metrics.add(Metric.builder("metric").setLongGaugeValue(i));
+    }
+    return metrics;
+  }
+
+  private static void assertLinesInOrder(List<String> payloads, int expectedLines) {
+    int next = 0;
+    for (String payload : payloads) {
+      for (String line : payload.split("\n")) {
+        assertEquals("metric gauge," + next++, line);
+      }
+    }
+    assertEquals(expectedLines, next);
+  }
+
+  @Test
+  void serializeEmpty() {
+    assertTrue(MetricBatchSerializer.create().serialize(Collections.emptyList()).isEmpty());
+    assertTrue(MetricBatchSerializer.create().serialize(null).isEmpty());
+  }
+
+  @Test
+  void serializeSinglePayload() throws MetricException {
+    List<String> payloads = MetricBatchSerializer.create().serialize(createMetrics(3));
+
+    assertEquals(1, payloads.size());
+    assertEquals("metric gauge,0\nmetric gauge,1\nmetric gauge,2", payloads.get(0));
+  }
+
+  @Test
+  void serializeRespectsPayloadLinesLimit() throws MetricException {
+    int limit = DynatraceMetricApiConstants.getPayloadLinesLimit();
+    List<String> payloads = MetricBatchSerializer.create().serialize(createMetrics(2 * limit + 1));
+
+    assertEquals(3, payloads.size());
+    assertEquals(limit, payloads.get(0).split("\n").length);
+    assertEquals(limit, payloads.get(1).split("\n").length);
+    assertEquals(1, payloads.get(2).split("\n").length);
+    assertLinesInOrder(payloads, 2 * limit + 1);
+  }
+
+  @Test
+  void serializeOnCallerSuppliedExecutor() throws MetricException {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<String> payloads =
+          MetricBatchSerializer.create(executor).serialize(createMetrics(10_500));
+
+      assertEquals(11, payloads.size());
+      assertLinesInOrder(payloads, 10_500);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void serializeDropsInvalidMetrics() throws MetricException {
+    List<Metric.Builder> metrics = new ArrayList<>();
+    metrics.add(Metric.builder("metric").setLongGaugeValue(0));
+    // no value set
+    metrics.add(Metric.builder("metric"));
+    // invalid key
+    metrics.add(Metric.builder(".").setLongGaugeValue(2));
+    metrics.add(Metric.builder("metric").setLongGaugeValue(1));
+
+    List<String> payloads = MetricBatchSerializer.create().serialize(metrics);
+
+    assertEquals(1, payloads.size());
+    assertEquals("metric gauge,0\nmetric gauge,1", payloads.get(0));
+  }
+
+  @Test
+  void createWithNullExecutorThrows() {
+    assertThrows(IllegalArgumentException.class, () -> MetricBatchSerializer.create(null));
+  }
+}
@@ -156,6 +156,34 @@ class MetricBuilderTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  void testFactoryPrefix() throws MetricException {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix("~prefix").build();
+
+    assertEquals(
+        "_prefix.name count,delta=1",
+        factory.newMetricBuilder("name").setLongCounterValueDelta(1).serializeMetricLine());
+    assertEquals(
+        "_prefix.0name._ count,delta=1",
+        factory.newMetricBuilder("0name..~").setLongCounterValueDelta(1).serializeMetricLine());
+    // overwriting the prefix on the builder discards the one normalized by the factory
+    assertEquals(
+        "other.name count,delta=1",
+        factory
+            .newMetricBuilder("name")
+            .setPrefix("other")
+            .setLongCounterValueDelta(1)
+            .serializeMetricLine());
+  }
+
+  @Test
+  void testFactoryInvalidPrefix() throws MetricException {
+    MetricBuilderFactory factory = MetricBuilderFactory.builder().withPrefix(".prefix").build();
+    Metric.Builder builder = factory.newMetricBuilder("name").setLongCounterValueDelta(1);
+
+    assertThrows(MetricException.class, builder::serializeMetricLine);
+  }
+
   @Test
   void testSetTimestamp() throws MetricException {
     String expected = "prefix.name count,delta=1 1616580000123";
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.dynatrace.testutils.TestUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MetricLineWriterTest {
+  private static String asString(ByteArrayOutputStream out) {
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void writeMetrics() throws IOException, MetricException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (MetricLineWriter writer = MetricLineWriter.create(out)) {
+      writer.write(Metric.builder("metric1").setLongGaugeValue(1));
+      writer.write(
+          Metric.builder("metric2")
+              .setDimensions(DimensionList.create(Dimension.create("dim", "value")))
+              .setLongCounterValueDelta(2));
+      // nothing written before flushing
+      assertEquals(0, out.size());
+    }
+
+    assertEquals("metric1 gauge,1\nmetric2,dim=value count,delta=2\n", asString(out));
+  }
+
+  @Test
+  void writeInvalidMetricThrowsAndWritesNothing() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricLineWriter writer = MetricLineWriter.create(out);
+
+    assertThrows(MetricException.class, () -> writer.write(Metric.builder("metric")));
+    writer.flush();
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  void drainsWhenBufferIsFull() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MetricLineWriter writer = MetricLineWriter.create(out, 8);
+
+    writer.writeLine("metric gauge,1");
+    // the first eight bytes were drained to make room for the rest of the line
+    assertEquals("metric g", asString(out));
+
+    writer.flush();
+    assertEquals("metric gauge,1\n", asString(out));
+  }
+
+  @Test
+  void writeLinesLongerThanBuffer() throws IOException {
+    String line = TestUtils.repeatStringNTimes("a", 1000) + " gauge,1";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (MetricLineWriter writer = MetricLineWriter.create(Channels.newChannel(out), 16)) {
+      writer.writeLine(line);
+      writer.writeLine(line);
+    }
+
+    assertEquals(line + "\n" + line + "\n", asString(out));
+  }
+
+  @Test
+  void writeNonAsciiLines() throws IOException {
+    String line = "metric,dim=äöü😀 gauge,1";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (MetricLineWriter writer = MetricLineWriter.create(out, 5)) {
+      writer.writeLine(line);
+      writer.writeLine("ascii gauge,2");
+    }
+
+    assertEquals(line + "\nascii gauge,2\n", asString(out));
+  }
+
+  @Test
+  void createWithInvalidArgumentsThrows() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> MetricLineWriter.create((ByteArrayOutputStream) null));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> MetricLineWriter.create(new ByteArrayOutputStream(), 0));
+  }
+}
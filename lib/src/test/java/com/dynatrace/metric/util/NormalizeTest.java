@@ -14,9 +14,16 @@
 package com.dynatrace.metric.util;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.dynatrace.testutils.TestUtils;
 import java.time.Instant;
+import java.util.Locale;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -29,6 +36,9 @@ public class NormalizeTest {
   @MethodSource("provideDimensionKeys")
   public void testDimensionKey(String name, String input, String expected) {
     assertEquals(expected, Normalize.dimensionKey(input));
+
+    byte[] compact = Normalize.compactDimensionKey(input);
+    assertEquals(expected, compact == null ? "" : Latin1.decode(compact));
   }
 
   @ParameterizedTest(name = "{index}: {0}, input: {1}, expected: {2}")
@@ -41,6 +51,8 @@ public class NormalizeTest {
   @MethodSource("provideMetricKeys")
   public void testMetricKey(String name, String input, String expected) {
     assertEquals(expected, Normalize.metricKey(input));
+    // the second call is served from the cache.
+    assertEquals(expected, Normalize.metricKey(input));
   }
 
   @ParameterizedTest(name = "{index}: {0}, input: {1}, expected: {2}")
@@ -55,6 +67,244 @@ public class NormalizeTest {
     assertEquals(expected, Normalize.needToEscapeDimensionValue(input));
   }
 
+  @Test
+  public void testPrefixedMetricKeyMatchesConcatenatedKey() {
+    String[] prefixes = {
+      "prefix",
+      "Prefix.Sub",
+      "0prefix",
+      "pre..fix",
+      "prefix.",
+      "prefix...",
+      "~pre#fix~",
+      ".prefix",
+      "..",
+      "_",
+      TestUtils.repeatStringNTimes("a", 247),
+      TestUtils.repeatStringNTimes("a", 248),
+      TestUtils.repeatStringNTimes("a", 249),
+      TestUtils.repeatStringNTimes("a", 250),
+      TestUtils.repeatStringNTimes("a", 260),
+    };
+    String[] keys = {
+      "key",
+      "0key",
+      "key.0sub",
+      ".key",
+      "key.",
+      "...",
+      "",
+      null,
+      "~~key~~",
+      "kä.ü",
+      "a.b.c",
+      TestUtils.repeatStringNTimes("b", 300),
+      TestUtils.repeatStringNTimes("b.", 150),
+    };
+
+    for (String prefix : prefixes) {
+      String normalizedPrefix = Normalize.metricKey(prefix);
+      for (String key : keys) {
+        assertEquals(
+            Normalize.metricKey(String.format("%s.%s", prefix, key)),
+            Normalize.metricKey(prefix, normalizedPrefix, key),
+            String.format("prefix: '%s', key: '%s'", prefix, key));
+      }
+    }
+  }
+
+  @Test
+  public void testMetricKeyMatchesRegexImplementation() {
+    Random random = new Random(42);
+    String alphabet = "aZz_-09.~#ä\u00a0\ud83d\ude00 ";
+    for (int i = 0; i < 20_000; i++) {
+      String key = randomString(random, alphabet, random.nextInt(12));
+      assertEquals(regexMetricKey(key), Normalize.metricKey(key), String.format("key: '%s'", key));
+    }
+
+    for (Arguments arguments : provideMetricKeys().toArray(Arguments[]::new)) {
+      String key = (String) arguments.get()[1];
+      assertEquals(regexMetricKey(key), Normalize.metricKey(key), String.format("key: '%s'", key));
+    }
+  }
+
+  @Test
+  public void testValidMetricKeyIsReturnedUnchanged() {
+    String key = new StringBuilder("valid.metric_key-1._2").toString();
+    assertSame(key, Normalize.metricKey(key));
+  }
+
+  @Test
+  public void testDimensionKeyMatchesRegexImplementation() {
+    Random random = new Random(42);
+    // includes characters that only become valid (Kelvin sign) or change length (dotted capital I)
+    // when lowercased.
+    String alphabet = "aZz_-:09.~#ä\u212a\u0130\u03a3\ud83d\ude00 ";
+    for (int i = 0; i < 20_000; i++) {
+      String key = randomString(random, alphabet, random.nextInt(12));
+      assertEquals(
+          regexDimensionKey(key), Normalize.dimensionKey(key), String.format("key: '%s'", key));
+    }
+
+    for (Arguments arguments : provideDimensionKeys().toArray(Arguments[]::new)) {
+      String key = (String) arguments.get()[1];
+      assertEquals(
+          regexDimensionKey(key), Normalize.dimensionKey(key), String.format("key: '%s'", key));
+    }
+  }
+
+  @Test
+  public void testValidDimensionKeyIsReturnedUnchanged() {
+    String key = new StringBuilder("http.method:_1-a").toString();
+    assertSame(key, Normalize.dimensionKey(key));
+  }
+
+  @Test
+  public void testDimensionValueMatchesRegexImplementation() {
+    Random random = new Random(42);
+    // control, format, private use, unassigned and surrogate characters, and a valid surrogate
+    // pair.
+    String alphabet = "aZ_ä\"= ,\\\\\u0000\u0007\u0085\u00ad\ue000\uffff\ud83d\ude00";
+    for (int i = 0; i < 20_000; i++) {
+      // values around the maximum length, so that truncation splits escape sequences and pairs.
+      int length = i % 2 == 0 ? random.nextInt(12) : 230 + random.nextInt(40);
+      String value = randomString(random, alphabet, length);
+      String message = String.format("value: '%s'", value);
+
+      String normalized = regexDimensionValue(value);
+      assertEquals(normalized, Normalize.dimensionValue(value), message);
+      assertEquals(
+          regexEscapeDimensionValue(value), Normalize.escapeDimensionValue(value), message);
+
+      String expected = normalized.isEmpty() ? "" : regexEscapeDimensionValue(normalized);
+      StringBuilder fused = new StringBuilder("prefix,");
+      Normalize.appendNormalizedEscapedDimensionValue(fused, value);
+      assertEquals("prefix," + expected, fused.toString(), message);
+
+      StringBuilder escaped = new StringBuilder("prefix,");
+      Normalize.appendEscapedDimensionValue(escaped, normalized);
+      assertEquals("prefix," + expected, escaped.toString(), message);
+    }
+  }
+
+  @Test
+  public void testValidDimensionValueIsReturnedUnchanged() {
+    String value = new StringBuilder("valid value, =\\\"äöü").toString();
+    assertSame(value, Normalize.dimensionValue(value));
+  }
+
+  private static String randomString(Random random, String alphabet, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return builder.toString();
+  }
+
+  // the regular expression based metric key normalization that Normalize used to implement.
+  private static final Pattern re_mk_firstIdentifierSectionStart = Pattern.compile("^[^a-zA-Z_]+");
+  private static final Pattern re_mk_subsequentIdentifierSectionStart =
+      Pattern.compile("^[^a-zA-Z0-9_]+");
+  private static final Pattern re_mk_invalidCharacters = Pattern.compile("[^a-zA-Z0-9_\\-]+");
+
+  // the regular expression based dimension key normalization that Normalize used to implement.
+  private static final Pattern re_dk_sectionStart = Pattern.compile("^[^a-z_]+");
+  private static final Pattern re_dk_invalidCharacters = Pattern.compile("[^a-z0-9_\\-:]+");
+
+  private static String regexDimensionKey(String key) {
+    if (key == null || key.isEmpty()) {
+      return "";
+    }
+    if (key.length() > 100) {
+      key = key.substring(0, 100);
+    }
+
+    StringJoiner joiner = new StringJoiner(".");
+    for (String section : key.split("\\.")) {
+      if (!section.isEmpty()) {
+        String normalized = section.toLowerCase(Locale.ROOT);
+        normalized = re_dk_sectionStart.matcher(normalized).replaceAll("_");
+        joiner.add(re_dk_invalidCharacters.matcher(normalized).replaceAll("_"));
+      }
+    }
+    return joiner.toString();
+  }
+
+  // the regular expression based dimension value normalization that Normalize used to implement.
+  private static final Pattern re_dv_charactersToEscape = Pattern.compile("([\"= ,\\\\])");
+  private static final Pattern re_dv_controlCharacters = Pattern.compile("[\\p{C}]+");
+  private static final Pattern re_dv_hasOddNumberOfTrailingBackslashes =
+      Pattern.compile("[^\\\\](?:\\\\\\\\)*\\\\$");
+
+  private static String regexDimensionValue(String value) {
+    if (value.length() > 250) {
+      value = value.substring(0, 250);
+    }
+    return re_dv_controlCharacters.matcher(value).replaceAll("_");
+  }
+
+  private static String regexEscapeDimensionValue(String value) {
+    if (value.isEmpty()) {
+      return value;
+    }
+    String escaped = re_dv_charactersToEscape.matcher(value).replaceAll("\\\\$1");
+    if (escaped.length() > 250) {
+      escaped = escaped.substring(0, 250);
+      if (re_dv_hasOddNumberOfTrailingBackslashes.matcher(escaped).find()) {
+        escaped = escaped.substring(0, 249);
+      }
+    }
+    return escaped;
+  }
+
+  private static String regexMetricKey(String key) {
+    if (key == null || key.isEmpty()) {
+      return null;
+    }
+    if (key.length() > 250) {
+      key = key.substring(0, 250);
+    }
+    String[] sections = key.split("\\.");
+    if (sections.length == 0 || sections[0].isEmpty()) {
+      return null;
+    }
+
+    StringJoiner joiner = new StringJoiner(".");
+    boolean firstSection = true;
+    for (String section : sections) {
+      if (section.isEmpty()) {
+        continue;
+      }
+      Pattern sectionStart =
+          firstSection ? re_mk_firstIdentifierSectionStart : re_mk_subsequentIdentifierSectionStart;
+      String normalized = sectionStart.matcher(section).replaceAll("_");
+      joiner.add(re_mk_invalidCharacters.matcher(normalized).replaceAll("_"));
+      firstSection = false;
+    }
+    return joiner.toString();
+  }
+
+  @Test
+  public void testNormalizedKeysAreCached() {
+    BoundedCache<String, String> metricKeyCache = Normalize.getMetricKeyCache();
+    long metricKeyHits = metricKeyCache.getHitCount();
+    String metricKey = Normalize.metricKey("cached.metric~key");
+    assertEquals("cached.metric_key", metricKey);
+    assertSame(metricKey, Normalize.metricKey("cached.metric~key"));
+    assertTrue(metricKeyCache.getHitCount() > metricKeyHits);
+
+    BoundedCache<String, byte[]> dimensionKeyCache = Normalize.getDimensionKeyCache();
+    long dimensionKeyHits = dimensionKeyCache.getHitCount();
+    byte[] dimensionKey = Normalize.compactDimensionKey("Cached~Key");
+    assertEquals("cached_key", Latin1.decode(dimensionKey));
+    assertSame(dimensionKey, Normalize.compactDimensionKey("Cached~Key"));
+    assertTrue(dimensionKeyCache.getHitCount() > dimensionKeyHits);
+
+    // invalid keys are not cached, but still normalize to nothing on every call.
+    assertNull(Normalize.compactDimensionKey("."));
+    assertNull(Normalize.compactDimensionKey("."));
+  }
+
   @Test
   public void testDimensionValuesEscapedOnlyOnce() throws MetricException {
     MetricBuilderFactory metricBuilderFactory = MetricBuilderFactory.builder().build();
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class OffHeapSeriesRegistryTest {
+  private OffHeapSeriesRegistry registry;
+
+  @BeforeEach
+  void setUp() {
+    assumeTrue(OffHeapSeriesRegistry.isSupported());
+    registry = OffHeapSeriesRegistry.create(MetricBuilderFactory.builder().build(), 1000, 1 << 16);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (registry != null) {
+      registry.close();
+    }
+  }
+
+  @Test
+  void aggregatesCountersSummariesAndGauges() throws MetricException {
+    DimensionList dimensions = DimensionList.create(Dimension.create("dim", "a"));
+    long counter = registry.counter("my.counter", dimensions);
+    long summary = registry.summary("my.summary", null);
+    long gauge = registry.gauge("my.gauge", dimensions);
+
+    registry.add(counter, 2);
+    registry.add(counter, 3);
+    registry.record(summary, 1.5);
+    registry.record(summary, 0.5);
+    registry.record(summary, Double.NaN);
+    registry.set(gauge, 7);
+
+    Instant timestamp = Instant.ofEpochMilli(1_600_000_000_000L);
+    List<String> lines = registry.flush(timestamp);
+    Collections.sort(lines);
+    assertEquals(
+        Arrays.asList(
+            Metric.builder("my.counter")
+                .setDimensions(dimensions)
+                .setLongCounterValueDelta(5)
+                .setTimestamp(timestamp)
+                .serializeMetricLine(),
+            Metric.builder("my.gauge")
+                .setDimensions(dimensions)
+                .setDoubleGaugeValue(7)
+                .setTimestamp(timestamp)
+                .serializeMetricLine(),
+            "my.summary gauge,min=0.5,max=1.5,sum=2.0,count=2 1600000000000"),
+        lines);
+
+    // counters and summaries are reset, gauges keep their last value.
+    assertEquals(Collections.singletonList("my.gauge,dim=a gauge,7.0"), registry.flush(null));
+    assertEquals(3, registry.size());
+  }
+
+  @Test
+  void seriesAreIdentifiedByNormalizedKeyDimensionsAndType() {
+    MetricBuilderFactory factory =
+        MetricBuilderFactory.builder()
+            .withPrefix("prefix")
+            .withDefaultDimensions(DimensionList.create(Dimension.create("default", "dim")))
+            .build();
+    try (OffHeapSeriesRegistry prefixed = OffHeapSeriesRegistry.create(factory, 10, 1024)) {
+      long counter =
+          prefixed.counter("my.metric", DimensionList.create(Dimension.create("Dim", "a")));
+      assertEquals(
+          counter,
+          prefixed.counter("my.metric", DimensionList.create(Dimension.create("dim", "a"))));
+      assertNotEquals(counter, prefixed.gauge("my.metric", null));
+      assertThrows(IllegalArgumentException.class, () -> prefixed.set(counter, 1));
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, registry.counter("", null));
+
+      prefixed.add(counter, 1);
+      assertEquals(
+          Collections.singletonList("prefix.my.metric,default=dim,dim=a count,delta=1"),
+          prefixed.flush(null));
+    }
+  }
+
+  @Test
+  void doesNotCreateSeriesWhenFull() {
+    try (OffHeapSeriesRegistry small =
+        OffHeapSeriesRegistry.create(MetricBuilderFactory.builder().build(), 2, 1024)) {
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("a", null));
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("b", null));
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("c", null));
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("a", null));
+      assertEquals(2, small.size());
+    }
+
+    try (OffHeapSeriesRegistry small =
+        OffHeapSeriesRegistry.create(MetricBuilderFactory.builder().build(), 10, 8)) {
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("a", null));
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("too.long", null));
+      // the failed series stays unavailable, and is not flushed.
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("too.long", null));
+      assertEquals(Collections.emptyList(), small.flush(null));
+      // the failed series did not take any arena space, so shorter series still fit.
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, small.counter("b.long", null));
+      assertEquals(2, small.size());
+    }
+  }
+
+  @Test
+  void doesNotCreateSeriesWithTooLongLines() {
+    List<Dimension> dimensions = new ArrayList<>();
+    char[] value = new char[250];
+    Arrays.fill(value, 'x');
+    for (int i = 0; i < 200; i++) {
+      dimensions.add(Dimension.create("dim" + i, new String(value)));
+    }
+    DimensionList tooLong = DimensionList.fromCollection(dimensions);
+    try (OffHeapSeriesRegistry large =
+        OffHeapSeriesRegistry.create(MetricBuilderFactory.builder().build(), 1, 1 << 20)) {
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, large.counter("my.counter", tooLong));
+      assertEquals(OffHeapSeriesRegistry.NO_SERIES, large.counter("my.counter", tooLong));
+      assertEquals(
+          OffHeapSeriesRegistry.NO_SERIES,
+          large.counter("my.counter", DimensionList.fromCollection(dimensions)));
+      for (int i = 0; i < 10; i++) {
+        assertEquals(OffHeapSeriesRegistry.NO_SERIES, large.counter("other" + i, tooLong));
+      }
+      assertEquals(Collections.emptyList(), large.flush(null));
+      // series that were not created do not count against the maximum number of series.
+      assertEquals(0, large.size());
+      assertNotEquals(OffHeapSeriesRegistry.NO_SERIES, large.counter("my.counter", null));
+    }
+  }
+
+  @Test
+  void closedRegistryRejectsUpdates() {
+    long counter = registry.counter("my.counter", null);
+    registry.close();
+    assertThrows(IllegalStateException.class, () -> registry.add(counter, 1));
+    assertThrows(IllegalStateException.class, () -> registry.counter("my.counter", null));
+    assertEquals(Collections.emptyList(), registry.flush(null));
+  }
+
+  @Test
+  void concurrentUpdatesAreNotLost() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int i = 1; i <= 100_000; i++) {
+                    // every thread looks up the same series.
+                    registry.add(registry.counter("my.counter", null), 1);
+                    registry.record(registry.summary("my.summary", null), i);
+                  }
+                }));
+      }
+
+      List<String> lines = new ArrayList<>();
+      for (Future<?> result : results) {
+        while (!result.isDone()) {
+          lines.addAll(registry.flush(null));
+        }
+        result.get();
+      }
+      lines.addAll(registry.flush(null));
+
+      long counted = 0;
+      long observed = 0;
+      double sum = 0;
+      for (String line : lines) {
+        if (line.startsWith("my.counter ")) {
+          counted += Long.parseLong(line.substring(line.indexOf("delta=") + 6));
+        } else {
+          String[] fields = line.substring(line.indexOf("min=")).split("[=,]");
+          assertTrue(Double.parseDouble(fields[1]) >= 1);
+          assertTrue(Double.parseDouble(fields[3]) <= 100_000);
+          sum += Double.parseDouble(fields[5]);
+          observed += Long.parseLong(fields[7]);
+        }
+      }
+      assertEquals(800_000, counted);
+      assertEquals(800_000, observed);
+      assertEquals(8 * 100_000.0 * 100_001 / 2, sum);
+      assertEquals(2, registry.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
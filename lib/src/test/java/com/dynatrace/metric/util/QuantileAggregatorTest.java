@@ -0,0 +1,100 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class QuantileAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void exportsSummaryAndQuantiles() {
+    QuantileAggregator aggregator =
+        QuantileAggregator.builder().withRelativeAccuracy(0.001).withQuantiles(0.5, 1).build();
+    QuantileSketch sketch = aggregator.sketch("my.latency", null);
+    for (int i = 1; i <= 101; i++) {
+      sketch.record(i);
+    }
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+
+    assertEquals(
+        Arrays.asList(
+            "my.latency gauge,min=1.0,max=101.0,sum=5151.0,count=101 1656000000000",
+            "my.latency,quantile=0.5 gauge,51.0 1656000000000",
+            "my.latency,quantile=1.0 gauge,101.0 1656000000000"),
+        normalizeQuantileValues(lines));
+    assertTrue(aggregator.flush(TIMESTAMP).isEmpty());
+  }
+
+  @Test
+  void usesDefaultQuantiles() {
+    QuantileAggregator aggregator = QuantileAggregator.create();
+    aggregator.record("my.latency", null, 10);
+
+    List<String> lines = aggregator.flush(null);
+    Collections.sort(lines);
+    assertEquals(
+        Arrays.asList(
+            "my.latency gauge,min=10.0,max=10.0,sum=10.0,count=1",
+            "my.latency,quantile=0.5 gauge,10.0",
+            "my.latency,quantile=0.95 gauge,10.0",
+            "my.latency,quantile=0.99 gauge,10.0"),
+        lines);
+  }
+
+  @Test
+  void quantileIsAddedToSeriesDimensions() {
+    QuantileAggregator aggregator = QuantileAggregator.builder().withQuantiles(0.9).build();
+    DimensionList dimensions = DimensionList.create(Dimension.create("dim", "a"));
+    aggregator.record("my.latency", dimensions, 10);
+
+    List<String> lines = aggregator.flush(null);
+    assertEquals(2, lines.size());
+    assertTrue(lines.contains("my.latency,dim=a gauge,min=10.0,max=10.0,sum=10.0,count=1"));
+    assertTrue(
+        lines.contains("my.latency,dim=a,quantile=0.9 gauge,10.0")
+            || lines.contains("my.latency,quantile=0.9,dim=a gauge,10.0"),
+        lines.toString());
+  }
+
+  @Test
+  void invalidSettingsAreRejected() {
+    assertThrows(
+        IllegalArgumentException.class, () -> QuantileAggregator.builder().withQuantiles(1.5));
+    assertThrows(
+        IllegalArgumentException.class, () -> QuantileAggregator.builder().withRelativeAccuracy(0));
+  }
+
+  // estimates are only within the relative accuracy, round them to whole numbers.
+  private static List<String> normalizeQuantileValues(List<String> lines) {
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      if (line.contains("quantile=")) {
+        int start = line.indexOf("gauge,") + "gauge,".length();
+        int end = line.indexOf(' ', start);
+        double value = Math.round(Double.parseDouble(line.substring(start, end)));
+        lines.set(i, line.substring(0, start) + value + line.substring(end));
+      }
+    }
+    return lines;
+  }
+}
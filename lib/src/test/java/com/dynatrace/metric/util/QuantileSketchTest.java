@@ -0,0 +1,124 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class QuantileSketchTest {
+  private static void assertQuantilesWithinAccuracy(double[] values, QuantileSketch sketch) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (double quantile : new double[] {0, 0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 0.999, 1}) {
+      double expected = sorted[(int) (quantile * (sorted.length - 1))];
+      double actual = sketch.getQuantile(quantile);
+      assertEquals(
+          expected,
+          actual,
+          Math.abs(expected) * sketch.getRelativeAccuracy() + 1e-12,
+          String.format("quantile %s", quantile));
+    }
+  }
+
+  @Test
+  void quantilesAreWithinRelativeAccuracy() {
+    Random random = new Random(42);
+    double[] values = new double[100_000];
+    QuantileSketch sketch = QuantileSketch.create();
+    for (int i = 0; i < values.length; i++) {
+      // log-normally distributed latencies, spanning several orders of magnitude.
+      values[i] = Math.exp(random.nextGaussian() * 2 + 5);
+      sketch.record(values[i]);
+    }
+
+    assertQuantilesWithinAccuracy(values, sketch);
+    assertEquals(values.length, sketch.getCount());
+    assertEquals(Arrays.stream(values).min().getAsDouble(), sketch.getMin());
+    assertEquals(Arrays.stream(values).max().getAsDouble(), sketch.getMax());
+    assertEquals(Arrays.stream(values).sum(), sketch.getSum(), 1e-6 * sketch.getSum());
+  }
+
+  @Test
+  void negativeAndZeroValues() {
+    QuantileSketch sketch = QuantileSketch.create(0.001);
+    double[] values = new double[2001];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i - 1000;
+      sketch.record(values[i]);
+    }
+
+    assertQuantilesWithinAccuracy(values, sketch);
+    assertEquals(0, sketch.getQuantile(0.5));
+  }
+
+  @Test
+  void mergeAddsValues() {
+    QuantileSketch first = QuantileSketch.create();
+    QuantileSketch second = QuantileSketch.create();
+    double[] values = new double[2000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i + 1;
+      (i % 2 == 0 ? first : second).record(values[i]);
+    }
+
+    first.merge(second);
+    assertQuantilesWithinAccuracy(values, first);
+    assertEquals(2000, first.getCount());
+    assertEquals(1000, second.getCount());
+    assertEquals(1, first.getMin());
+    assertEquals(2000, first.getMax());
+    assertThrows(IllegalArgumentException.class, () -> first.merge(QuantileSketch.create(0.02)));
+  }
+
+  @Test
+  void drainMovesValues() {
+    QuantileSketch sketch = QuantileSketch.create();
+    sketch.record(1);
+    sketch.record(3);
+
+    QuantileSketch snapshot = sketch.drain();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(4, snapshot.getSum());
+    assertEquals(1, snapshot.getMin());
+    assertEquals(3, snapshot.getMax());
+    assertEquals(0, sketch.getCount());
+    assertEquals(0, sketch.getSum());
+    assertTrue(Double.isNaN(sketch.getMin()));
+    assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+  }
+
+  @Test
+  void valuesOutsideIndexedRangeAreClamped() {
+    QuantileSketch sketch = QuantileSketch.create();
+    sketch.record(1e-12);
+    sketch.record(1e30);
+    sketch.record(Double.NaN);
+
+    assertEquals(2, sketch.getCount());
+    assertEquals(1e-12, sketch.getMin());
+    assertEquals(1e30, sketch.getMax());
+    assertEquals(1e-9, sketch.getQuantile(0), 1e-9 * sketch.getRelativeAccuracy());
+    assertEquals(1e18, sketch.getQuantile(1), 1e18 * sketch.getRelativeAccuracy());
+  }
+
+  @Test
+  void invalidArguments() {
+    assertThrows(IllegalArgumentException.class, () -> QuantileSketch.create(0));
+    assertThrows(IllegalArgumentException.class, () -> QuantileSketch.create(1));
+    assertThrows(IllegalArgumentException.class, () -> QuantileSketch.create().getQuantile(1.5));
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class SeriesMapTest {
+  private final SeriesMap<Counter> series = new SeriesMap<>(MetricBuilderFactory.builder().build());
+
+  private static final class Counter extends SeriesMap.State {
+    final AtomicLong value = new AtomicLong();
+
+    Counter(SeriesKey key) {
+      super(key);
+    }
+  }
+
+  private Counter add(String metricKey, long value) {
+    Counter counter = series.get(metricKey, null, Counter.class, Counter::new);
+    counter.value.addAndGet(value);
+    series.recorded(counter);
+    return counter;
+  }
+
+  private List<Long> flush() {
+    List<Long> values = new ArrayList<>();
+    series.drainAll(
+        counter -> {
+          long value = counter.value.getAndSet(0);
+          if (value == 0) {
+            return false;
+          }
+          values.add(value);
+          return true;
+        });
+    return values;
+  }
+
+  @Test
+  void idleSeriesAreEvicted() {
+    Counter counter = add("my.counter", 1);
+    assertEquals(1, series.size());
+    for (int i = 1; i < SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      add("my.counter", 1);
+      flush();
+    }
+    // recording resets the number of idle flushes.
+    for (int i = 1; i < SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      flush();
+    }
+    assertEquals(1, series.size());
+    flush();
+    assertEquals(0, series.size());
+
+    // the next lookup creates a new series instead of returning the evicted one.
+    assertNotSame(counter, add("my.counter", 2));
+    assertEquals(1, series.size());
+    assertEquals(1, flush().size());
+  }
+
+  @Test
+  void valuesRecordedAfterEvictionAreFlushed() {
+    Counter counter = add("my.counter", 1);
+    for (int i = 0; i <= SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      flush();
+    }
+    assertEquals(0, series.size());
+
+    // e.g. a thread that looked the series up just before it was evicted.
+    counter.value.addAndGet(3);
+    series.recorded(counter);
+    counter.value.addAndGet(4);
+    series.recorded(counter);
+    List<Long> values = flush();
+    assertEquals(1, values.size());
+    assertEquals(7L, values.get(0));
+    assertTrue(flush().isEmpty());
+    assertEquals(0, series.size());
+  }
+
+  @Test
+  void pinnedSeriesAreNotEvicted() {
+    Counter pinned = series.pin("my.counter", null, Counter.class, Counter::new);
+    for (int i = 0; i <= SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      flush();
+    }
+    assertEquals(1, series.size());
+    assertSame(pinned, add("my.counter", 1));
+  }
+
+  @Test
+  void evictedSeriesAreNotPinned() {
+    Counter counter = add("my.counter", 1);
+    for (int i = 0; i <= SeriesMap.DEFAULT_MAX_IDLE_FLUSHES; i++) {
+      flush();
+    }
+    assertFalse(counter.pin());
+
+    Counter pinned = series.pin("my.counter", null, Counter.class, Counter::new);
+    assertNotSame(counter, pinned);
+    assertSame(pinned, add("my.counter", 1));
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class StripedCellsTest {
+  @Test
+  void stripeCountIsPowerOfTwo() {
+    assertEquals(1, StripedCells.stripeCount(0));
+    assertEquals(1, StripedCells.stripeCount(1));
+    assertEquals(4, StripedCells.stripeCount(3));
+    assertEquals(8, StripedCells.stripeCount(8));
+    assertEquals(64, StripedCells.stripeCount(1000));
+  }
+
+  @Test
+  void drainResetsToInitialValues() {
+    StripedCells cells = new StripedCells(0, Long.MAX_VALUE, StripedCells.toBits(0.0));
+    cells.add(0, 3);
+    cells.add(0, 4);
+    cells.accumulate(1, 5, StripedCells.MIN);
+    cells.accumulate(1, 2, StripedCells.MIN);
+    cells.addDouble(2, 0.25);
+    cells.addDouble(2, 0.5);
+
+    assertEquals(7, cells.drain(0));
+    assertEquals(2, cells.drain(1, StripedCells.MIN));
+    assertEquals(0.75, cells.drainDouble(2));
+
+    assertEquals(0, cells.drain(0));
+    assertEquals(Long.MAX_VALUE, cells.drain(1, StripedCells.MIN));
+    assertEquals(0.0, cells.drainDouble(2));
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class SummaryAggregatorTest {
+  private static final Instant TIMESTAMP = Instant.ofEpochMilli(1656000000000L);
+
+  @Test
+  void aggregatesOneLinePerSeries() {
+    SummaryAggregator aggregator = SummaryAggregator.create();
+    for (int i = 1; i <= 100; i++) {
+      aggregator.record("my.long", null, (long) i);
+    }
+    aggregator.record("my.double", null, 0.5);
+    aggregator.record("my.double", null, -1.25);
+
+    List<String> lines = aggregator.flush(TIMESTAMP);
+    Collections.sort(lines);
+
+    assertEquals(2, lines.size());
+    assertEquals("my.double gauge,min=-1.25,max=0.5,sum=-0.75,count=2 1656000000000", lines.get(0));
+    assertEquals("my.long gauge,min=1,max=100,sum=5050,count=100 1656000000000", lines.get(1));
+  }
+
+  @Test
+  void flushResetsSummaries() {
+    SummaryAggregator aggregator = SummaryAggregator.create();
+    SummaryAggregator.LongSummary summary =
+        aggregator.longSummary("my.summary", DimensionList.create(Dimension.create("dim", "a")));
+    summary.record(5);
+    summary.record(-3);
+
+    assertEquals(
+        Collections.singletonList("my.summary,dim=a gauge,min=-3,max=5,sum=2,count=2"),
+        aggregator.flush(null));
+    assertTrue(aggregator.flush(null).isEmpty());
+
+    summary.record(7);
+    assertEquals(
+        Collections.singletonList("my.summary,dim=a gauge,min=7,max=7,sum=7,count=1"),
+        aggregator.flush(null));
+  }
+
+  @Test
+  void dropsNonFiniteValues() {
+    SummaryAggregator aggregator = SummaryAggregator.create();
+    SummaryAggregator.DoubleSummary summary = aggregator.doubleSummary("my.summary", null);
+    summary.record(Double.NaN);
+    summary.record(Double.POSITIVE_INFINITY);
+    summary.record(1.5);
+
+    assertEquals(
+        Collections.singletonList("my.summary gauge,min=1.5,max=1.5,sum=1.5,count=1"),
+        aggregator.flush(null));
+    assertThrows(IllegalArgumentException.class, () -> aggregator.longSummary("my.summary", null));
+  }
+
+  @Test
+  void concurrentObservationsAreNotLost() throws Exception {
+    SummaryAggregator aggregator = SummaryAggregator.create();
+    SummaryAggregator.LongSummary summary = aggregator.longSummary("my.summary", null);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        long offset = t * 100_000L;
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int i = 1; i <= 100_000; i++) {
+                    summary.record(offset + i);
+                  }
+                }));
+      }
+
+      List<String> lines = new ArrayList<>();
+      for (Future<?> result : results) {
+        while (!result.isDone()) {
+          lines.addAll(aggregator.flush(null));
+        }
+        result.get();
+      }
+      lines.addAll(aggregator.flush(null));
+
+      long count = 0;
+      long sum = 0;
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (String line : lines) {
+        String[] fields = line.substring(line.indexOf("min=")).split("[=,]");
+        min = Math.min(min, Long.parseLong(fields[1]));
+        max = Math.max(max, Long.parseLong(fields[3]));
+        sum += Long.parseLong(fields[5]);
+        count += Long.parseLong(fields[7]);
+      }
+      assertEquals(800_000, count);
+      assertEquals(800_000L * 800_001L / 2, sum);
+      assertEquals(1, min);
+      assertEquals(800_000, max);
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ThrottledWarningTest {
+  private final List<String> messages = new ArrayList<>();
+  private final AtomicLong nanos = new AtomicLong();
+  private Logger logger;
+
+  @BeforeEach
+  void setUp() {
+    logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+    logger.addHandler(
+        new Handler() {
+          @Override
+          public synchronized void publish(LogRecord record) {
+            messages.add(record.getMessage());
+          }
+
+          @Override
+          public void flush() {}
+
+          @Override
+          public void close() {}
+        });
+  }
+
+  private ThrottledWarning createWarning() {
+    return new ThrottledWarning(logger, Duration.ofSeconds(10), nanos::get);
+  }
+
+  @Test
+  void logsFirstWarningAndSuppressesUntilIntervalPassed() {
+    ThrottledWarning warning = createWarning();
+
+    warning.warn(() -> "first");
+    warning.warn(() -> "second");
+    warning.warn(() -> "third");
+    assertEquals(1, messages.size());
+    assertEquals("first", messages.get(0));
+    assertEquals(2, warning.getSuppressedCount());
+
+    nanos.addAndGet(Duration.ofSeconds(10).toNanos());
+    warning.warn(() -> "fourth");
+    assertEquals(2, messages.size());
+    assertEquals(
+        "fourth (2 similar warnings were suppressed since the last one was logged)",
+        messages.get(1));
+    assertEquals(0, warning.getSuppressedCount());
+  }
+
+  @Test
+  void reportsSuppressedWarningsAfterBurstEnds() {
+    ThrottledWarning warning = createWarning();
+
+    warning.warn(() -> "first");
+    warning.warn(() -> "second");
+    warning.warn(() -> "third");
+    // the interval has not passed yet.
+    warning.reportSuppressed();
+    assertEquals(1, messages.size());
+
+    nanos.addAndGet(Duration.ofSeconds(10).toNanos());
+    warning.reportSuppressed();
+    assertEquals(2, messages.size());
+    assertEquals(
+        "2 warnings similar to 'first' were suppressed since the last one was logged",
+        messages.get(1));
+    assertEquals(0, warning.getSuppressedCount());
+
+    // nothing was suppressed since.
+    nanos.addAndGet(Duration.ofSeconds(10).toNanos());
+    warning.reportSuppressed();
+    assertEquals(2, messages.size());
+  }
+
+  @Test
+  void suppressedMessagesAreNotCreated() {
+    ThrottledWarning warning = createWarning();
+    warning.warn(() -> "first");
+
+    warning.warn(
+        () -> {
+          throw new AssertionError("message must not be created");
+        });
+    assertEquals(1, messages.size());
+  }
+
+  @Test
+  void nothingIsRecordedIfWarningsAreDisabled() {
+    logger.setLevel(Level.SEVERE);
+    ThrottledWarning warning = createWarning();
+
+    warning.warn(() -> "first");
+    warning.warn(() -> "second");
+    assertEquals(0, messages.size());
+    assertEquals(0, warning.getSuppressedCount());
+  }
+
+  @Test
+  void handlesNanoClockOverflow() {
+    nanos.set(Long.MAX_VALUE - 5);
+    ThrottledWarning warning = createWarning();
+
+    warning.warn(() -> "first");
+    nanos.addAndGet(Duration.ofSeconds(5).toNanos());
+    warning.warn(() -> "second");
+    nanos.addAndGet(Duration.ofSeconds(5).toNanos());
+    warning.warn(() -> "third");
+
+    assertEquals(2, messages.size());
+    assertFalse(messages.get(1).isEmpty());
+  }
+
+  @Test
+  void logsOnlyOnceUnderContention() throws InterruptedException {
+    ThrottledWarning warning = createWarning();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 1000; i++) {
+      executor.execute(() -> warning.warn(() -> "warning"));
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertEquals(1, messages.size());
+    assertEquals(999, warning.getSuppressedCount());
+  }
+}
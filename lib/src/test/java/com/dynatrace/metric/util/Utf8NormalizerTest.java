@@ -0,0 +1,139 @@
+/**
+ * Copyright 2022 Dynatrace LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dynatrace.metric.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.dynatrace.testutils.TestUtils;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+class Utf8NormalizerTest {
+  private static final String ASCII_ALPHABET = "aZz_-:09.~#\"= ,\\\u0000\u0007\u007f";
+  private static final String ALPHABET = ASCII_ALPHABET + "äKİ­😀";
+
+  // picks whole code points, lone surrogates cannot be encoded as UTF-8.
+  private static String randomString(Random random, String alphabet, int length) {
+    int[] codePoints = alphabet.codePoints().toArray();
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.appendCodePoint(codePoints[random.nextInt(codePoints.length)]);
+    }
+    return builder.toString();
+  }
+
+  private static String normalize(
+      String input, BiFunction<ByteBuffer, ByteBuffer, Integer> normalizer, boolean direct) {
+    byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer in;
+    if (direct) {
+      in = ByteBuffer.allocateDirect(bytes.length + 2);
+      in.put((byte) 'x').put(bytes).put((byte) 'x');
+      in.position(1).limit(1 + bytes.length);
+    } else {
+      in = ByteBuffer.wrap(bytes);
+    }
+    int position = in.position();
+
+    ByteBuffer out = ByteBuffer.allocate(4096);
+    out.put((byte) '>');
+    int written = normalizer.apply(in, out);
+
+    assertEquals(position, in.position(), "input position must not change");
+    assertEquals(1 + written, out.position());
+    return new String(out.array(), 1, written, StandardCharsets.UTF_8);
+  }
+
+  private static void assertMatches(
+      Function<String, String> expected, BiFunction<ByteBuffer, ByteBuffer, Integer> normalizer) {
+    Random random = new Random(42);
+    for (int i = 0; i < 20_000; i++) {
+      String alphabet = i % 2 == 0 ? ASCII_ALPHABET : ALPHABET;
+      int length = i % 4 < 2 ? random.nextInt(12) : 90 + random.nextInt(180);
+      String input = randomString(random, alphabet, length);
+
+      String expectedResult = expected.apply(input);
+      if (expectedResult == null) {
+        expectedResult = "";
+      }
+      // truncation can split a surrogate pair, compare what the encoded result decodes to.
+      expectedResult =
+          new String(expectedResult.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+      String message = String.format("input: '%s'", input);
+      assertEquals(expectedResult, normalize(input, normalizer, false), message);
+      assertEquals(expectedResult, normalize(input, normalizer, true), message);
+    }
+  }
+
+  @Test
+  void metricKeyMatchesStringNormalization() {
+    assertMatches(Normalize::metricKey, Utf8Normalizer::metricKey);
+  }
+
+  @Test
+  void dimensionKeyMatchesStringNormalization() {
+    assertMatches(Normalize::dimensionKey, Utf8Normalizer::dimensionKey);
+  }
+
+  @Test
+  void dimensionValueMatchesStringNormalization() {
+    assertMatches(
+        value -> {
+          StringBuilder builder = new StringBuilder();
+          Normalize.appendNormalizedEscapedDimensionValue(builder, value);
+          return builder.toString();
+        },
+        Utf8Normalizer::dimensionValue);
+  }
+
+  @Test
+  void stringValueMatchesStringNormalization() {
+    assertMatches(
+        value -> StringValueNormalizer.normalizeStringValue(value, 100),
+        (in, out) -> Utf8Normalizer.stringValue(in, 100, out));
+    assertMatches(
+        value -> StringValueNormalizer.normalizeStringValue("\"" + value + "\"", 100),
+        (in, out) -> {
+          ByteBuffer quoted = ByteBuffer.allocate(in.remaining() + 2);
+          quoted.put((byte) '"').put(in.duplicate()).put((byte) '"').flip();
+          return Utf8Normalizer.stringValue(quoted, 100, out);
+        });
+  }
+
+  @Test
+  void validAsciiInputIsCopied() {
+    byte[] input = "xxvalid_key.sub-1xx".getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer out = ByteBuffer.allocate(100);
+
+    assertEquals(15, Utf8Normalizer.metricKey(input, 2, 15, out));
+    assertEquals("valid_key.sub-1", new String(out.array(), 0, 15, StandardCharsets.US_ASCII));
+    out.clear();
+    assertEquals(
+        0, Utf8Normalizer.metricKey(".valid".getBytes(StandardCharsets.US_ASCII), 0, 6, out));
+    assertEquals(0, out.position());
+  }
+
+  @Test
+  void longDimensionValueIsTruncated() {
+    byte[] input =
+        TestUtils.repeatStringNTimes("a", 249).concat("==").getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer out = ByteBuffer.allocate(300);
+
+    assertEquals(249, Utf8Normalizer.dimensionValue(input, 0, input.length, out));
+  }
+}